@@ -5,6 +5,7 @@ module se.mau.chifferchat {
     requires org.kordamp.bootstrapfx.core;
     requires org.kordamp.ikonli.javafx;
     requires java.sql;
+    requires java.management;
 
 
     exports se.mau.chifferchat.ui;
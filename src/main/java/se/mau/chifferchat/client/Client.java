@@ -1,41 +1,107 @@
 package se.mau.chifferchat.client;
 
 import javafx.application.Platform;
+import se.mau.chifferchat.common.BinaryCodec;
+import se.mau.chifferchat.common.CipherPayload;
+import se.mau.chifferchat.common.CommandRegistry;
+import se.mau.chifferchat.common.Conversation;
 import se.mau.chifferchat.common.Group;
-import se.mau.chifferchat.crypto.CryptoKeyGenerator;
+import se.mau.chifferchat.common.GroupSummary;
+import se.mau.chifferchat.common.Handshake;
+import se.mau.chifferchat.common.Opcode;
+import se.mau.chifferchat.common.Packet;
+import se.mau.chifferchat.common.PacketReader;
+import se.mau.chifferchat.common.TextCodec;
+import se.mau.chifferchat.common.UserKey;
+import se.mau.chifferchat.common.WireFormat;
+import se.mau.chifferchat.crypto.CryptoSuite;
 import se.mau.chifferchat.crypto.Decryption;
 import se.mau.chifferchat.ui.IChatController;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.security.*;
-import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Client implements Runnable {
+    // Same limit as the server's
+    private static final int KEYS_PER_REQUEST = 1000;
+    private static final String JOINED = " joined the chat!";
+
     private Socket client;
-    private BufferedReader in;
-    private PrintWriter out;
+    private InputStream in;
+    private OutputStream out;
     private volatile boolean listening = true;
     private volatile boolean loggedIn = false;
 
+    // Format agreed in the handshake; packets sent before it completes wait here
+    private WireFormat wireFormat = WireFormat.TEXT;
+    private boolean handshakeDone;
+    // Replies sent while handling a packet are flushed together once it's done
+    private Thread readerThread;
+    private boolean unflushed;
+    private final List<Packet> pendingPackets = new ArrayList<>();
+
+    private final CommandRegistry<Client> commands = new CommandRegistry<Client>("Client")
+            .register(Opcode.KEY, Client::onKey)
+            .register(Opcode.KEYS, Client::onKeys)
+            .register(Opcode.GROUP_CREATED, Client::onGroupCreated)
+            .register(Opcode.GROUP_CHAT, Client::onGroupChat)
+            .register(Opcode.GROUPS, Client::onGroups)
+            .register(Opcode.MEMBERS, Client::onMembers)
+            .register(Opcode.USERS, Client::onUsers)
+            // Refresh groups
+            .register(Opcode.GROUP_UPDATED, (client, packet) -> client.requestGroups())
+            .register(Opcode.GROUP_MEMBER_ADDED, (client, packet) -> client.requestGroups())
+            .register(Opcode.CHAT, Client::onChat)
+            .register(Opcode.DIRECT_CHAT, Client::onDirectChat)
+            .register(Opcode.HISTORY_END, Client::onHistoryEnd)
+            .register(Opcode.SYSTEM, Client::onNotice)
+            .register(Opcode.ERROR, Client::onNotice);
+
     private final Map<String, Group> groups = new HashMap<>();
+    // Sequence numbers seen per conversation, and where the last catch-up request for
+    // each started
+    private final SeenSequences seen = new SeenSequences();
+    // The server numbering those sequence numbers belong to
+    private volatile String numbering;
+    private final Map<String, Long> catchUpFrom = new ConcurrentHashMap<>();
     private volatile String username;
 
-    private final Map<String, PublicKey> publicKeyCache = new HashMap<>();
+    private final Map<String, PublicKey> publicKeyCache = new ConcurrentHashMap<>();
+    private final KeyResolver keyResolver = new KeyResolver(publicKeyCache, this::requestPublicKeys);
+    private final SessionKeys sessionKeys = new SessionKeys();
     private volatile IChatController controller;
+    // Every chat message we accept is kept here, whatever the UI is showing
+    private volatile MessageStore messageStore;
     private PublicKey publicKey;
     private PrivateKey privateKey;
+    // Agreed in the handshake
+    private CryptoSuite suite = CryptoSuite.RSA;
+    // Unlocks the stored identity; cleared once it is loaded
+    private char[] password;
+    // For the time from login to the first message from the server
+    private long connectStartedAt;
+    private long keysMillis;
+    private boolean firstMessageSeen;
 
     public Client() {
     }
 
     public void connect() {
+        connectStartedAt = System.nanoTime();
+        restoreState();
+        openHistory();
         Thread clientThread = new Thread(this);
         clientThread.setDaemon(true);
         clientThread.setName("Client Thread");
@@ -46,18 +112,8 @@ public class Client implements Runnable {
     public void run() {
         try {
             client = new Socket("localhost", 5090);
-            out = new PrintWriter(client.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-
-            try {
-                KeyPair keyPair = CryptoKeyGenerator.generateRSAKeyPair();
-                this.publicKey = keyPair.getPublic();
-                this.privateKey = keyPair.getPrivate();
-            } catch (NoSuchAlgorithmException e) {
-                System.err.println("Failed to generate RSA keypair: " + e.getMessage());
-                shutdown();
-                return;
-            }
+            out = new BufferedOutputStream(client.getOutputStream());
+            in = new BufferedInputStream(client.getInputStream());
 
             if (controller != null) {
                 Platform.runLater(() -> controller.setConnectionStatus(true));
@@ -75,353 +131,47 @@ public class Client implements Runnable {
                 return;
             }
 
-            if (username != null && out != null) {
-                out.println(username);
-                System.out.println("Sent username: " + username);
-            } else {
+            if (username == null) {
                 System.err.println("Username is null, cannot proceed");
                 shutdown();
                 return;
             }
+            if (password == null) {
+                System.err.println("No password set, cannot open identity keys");
+                shutdown();
+                return;
+            }
 
-            String publicKeyB64 = Base64.getEncoder().encodeToString(publicKey.getEncoded());
-            out.println("/pubkey " + publicKeyB64);
-            System.out.println("Sent public key");
-
-            String line;
-
-            while (listening && (line = in.readLine()) != null) {
-
-                if (line.startsWith("/key ")) {
-                    try {
-                        String[] parts = line.split(" ", 3);
-                        String targetUser = parts[1];
-                        byte[] keyBytes = Base64.getDecoder().decode(parts[2]);
-                        X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-                        KeyFactory kf = KeyFactory.getInstance("RSA");
-                        PublicKey targetPubKey = kf.generatePublic(spec);
-                        publicKeyCache.put(targetUser, targetPubKey);
-                        System.out.println("Stored public key for user: " + targetUser);
-                    } catch (Exception e) {
-                        System.err.println("Failed to parse public key: " + e.getMessage());
-                    }
-                    continue;
-                }
-
-                // Group commands
-                if (line.startsWith("/groupcreated ")) {
-                    String[] parts = line.substring(14).split(" ", 2);
-                    String groupId = parts[0];
-                    String groupName = parts[1];
-                    Group group = new Group(groupId, groupName, username, List.of(username),
-                            System.currentTimeMillis());
-                    groups.put(groupId, group);
-                    if (controller != null) {
-                        Platform.runLater(() -> controller.onGroupCreated(group));
-                    }
-                    continue;
-                }
-                // Group message with explicit group id prefix
-                if (line.startsWith("/g ")) {
-                    // Format: /g <groupId> [Sender]: <encryptedPart>
-                    try {
-                        int firstSpace = line.indexOf(' ', 3);
-                        if (firstSpace > 0) {
-                            String groupId = line.substring(3, firstSpace);
-                            String rest = line.substring(firstSpace + 1);
-
-                            // Only process if user is currently viewing this group
-                            if (controller != null && controller.getCurrentGroup() != null
-                                    && groupId.equals(controller.getCurrentGroup().getGroupId())) {
-
-                                // Expect rest like: [Sender]: <payload>
-                                int colonIdx = rest.indexOf(": ");
-                                if (colonIdx > 0) {
-                                    String senderName = rest.substring(1, rest.indexOf(']'));
-                                    String encryptedPart = rest.substring(colonIdx + 2);
-
-                                    String decrypted;
-                                    // Parse using the same logic as legacy group format
-                                    if (encryptedPart.contains("|")) {
-                                        String[] segments = encryptedPart.split("\\|");
-                                        if (segments.length >= 2) {
-                                            String last = segments[segments.length - 1];
-                                            int idx2 = last.indexOf(':');
-                                            if (idx2 > 0) {
-                                                String ivBase64 = last.substring(0, idx2);
-                                                String encPayload = last.substring(idx2 + 1);
-                                                String wrappedKeyForMe = null;
-                                                for (int i = 0; i < segments.length - 1; i++) {
-                                                    String seg = segments[i];
-                                                    int c = seg.indexOf(':');
-                                                    if (c > 0) {
-                                                        String user = seg.substring(0, c);
-                                                        String encKey = seg.substring(c + 1);
-                                                        if (user.equals(username)) {
-                                                            wrappedKeyForMe = encKey;
-                                                            break;
-                                                        }
-                                                    }
-                                                }
-                                                if (wrappedKeyForMe != null) {
-                                                    SecretKey aesKey = Decryption.decryptAESKeyRSA(wrappedKeyForMe,
-                                                            privateKey);
-                                                    byte[] ivBytes = Base64.getDecoder().decode(ivBase64);
-                                                    GCMParameterSpec iv = new GCMParameterSpec(128, ivBytes);
-                                                    String plainMessage = Decryption.decryptAES(encPayload, aesKey, iv);
-                                                    decrypted = senderName + ": " + plainMessage;
-                                                } else {
-                                                    // No key for us; skip
-                                                    continue;
-                                                }
-                                            } else {
-                                                // malformed last segment; skip
-                                                continue;
-                                            }
-                                        } else {
-                                            continue;
-                                        }
-                                    } else if (encryptedPart.contains(":")) {
-                                        String[] parts = encryptedPart.split(":", 3);
-                                        if (parts.length == 3) {
-                                            String encryptedAESKey = parts[0];
-                                            String ivBase64 = parts[1];
-                                            String encryptedMessage = parts[2];
-                                            SecretKey aesKey = Decryption.decryptAESKeyRSA(encryptedAESKey, privateKey);
-                                            byte[] ivBytes = Base64.getDecoder().decode(ivBase64);
-                                            GCMParameterSpec iv = new GCMParameterSpec(128, ivBytes);
-                                            String plainMessage = Decryption.decryptAES(encryptedMessage, aesKey, iv);
-                                            decrypted = senderName + ": " + plainMessage;
-                                        } else {
-                                            continue;
-                                        }
-                                    } else {
-                                        String plainMessage = Decryption.decryptRSA(encryptedPart, privateKey);
-                                        decrypted = senderName + ": " + plainMessage;
-                                    }
-
-                                    String finalDecrypted = decrypted;
-                                    Platform.runLater(() -> controller.appendGroupMessage(finalDecrypted));
-                                }
-                            }
-                        }
-                    } catch (Exception ex) {
-                        System.err.println("Failed to process group message: " + ex.getMessage());
-                    }
-                    continue;
-                }
-                if (line.startsWith("/groups ")) {
-                    String groupsData = line.substring(8);
-                    if (!groupsData.isEmpty()) {
-                        String[] groupEntries = groupsData.split("\\|");
-                        for (String entry : groupEntries) {
-                            String[] parts = entry.split(":", 3);
-                            if (parts.length == 3) {
-                                String groupId = parts[0];
-                                String groupName = parts[1];
-                                Group group = groups.get(groupId);
-                                if (group == null) {
-                                    group = new Group(groupId, groupName, "", new ArrayList<>(),
-                                            System.currentTimeMillis());
-                                    groups.put(groupId, group);
-                                }
-                                // Request members to get up-to-date counts
-                                if (out != null) {
-                                    out.println("/groupmembers " + groupId);
-                                }
-                            }
-                        }
-                        if (controller != null) {
-                            Platform.runLater(() -> controller.refreshGroups(new ArrayList<>(groups.values())));
-                        }
-                    }
-                    continue;
-                }
-                if (line.startsWith("/members ")) {
-                    String[] parts = line.substring(9).split(" ", 2);
-                    String groupId = parts[0];
-                    String[] members = parts.length > 1 && !parts[1].isEmpty() ? parts[1].split("\\|") : new String[0];
-                    Group group = groups.get(groupId);
-                    if (group != null) {
-                        group.setMembers(Arrays.asList(members));
-                        // If this is the currently selected group, update UI header and member drawer
-                        if (controller != null && controller.getCurrentGroup() != null
-                                && groupId.equals(controller.getCurrentGroup().getGroupId())) {
-                            Group finalGroup = group;
-                            Platform.runLater(() -> controller.onGroupMembersUpdated(finalGroup));
-                        }
-                        // Refresh groups list to update counts
-                        if (controller != null) {
-                            Platform.runLater(() -> controller.refreshGroups(new ArrayList<>(groups.values())));
-                        }
-                    }
-                    continue;
-                }
-                if (line.startsWith("/users ")) {
-                    String usersData = line.substring(7);
-                    System.out.println("Received /users command with data: '" + usersData + "'");
-                    String[] users = usersData.split("\\|");
-                    System.out.println("Parsed " + users.length + " users: " + Arrays.toString(users));
-                    if (controller != null) {
-                        Platform.runLater(() -> controller.updateOnlineUsers(Arrays.asList(users)));
-                    }
-                    continue;
-                }
-                if (line.startsWith("/groupupdated ") || line.startsWith("/groupmemberadded ")) {
-                    // Refresh groups
-                    out.println("/listgroups");
-                    continue;
-                }
-
-                final String decryptedMessage;
+            PacketReader reader = handshake();
 
-                // Check if it's a system message (no decryption needed)
-                if (line.startsWith("Welcome ") ||
-                        line.endsWith(" joined the chat!") ||
-                        line.endsWith(" left the chat!")) {
-                    decryptedMessage = line;
-                }
-                // Check if it's a group message
-                else if (line.startsWith("[") && line.contains("]: ")) {
-                    int colonIndex = line.indexOf(": ");
-                    String senderName = line.substring(1, line.indexOf(']')); // strip brackets
-                    String encryptedPart = line.substring(colonIndex + 2);
-
-                    try {
-                        // Preferred format (group): user1:encKey1|user2:encKey2|...|ivBase64:encPayload
-                        if (encryptedPart.contains("|")) {
-                            String[] segments = encryptedPart.split("\\|");
-                            if (segments.length >= 2) {
-                                // Last segment must be ivBase64:encryptedMessage
-                                String last = segments[segments.length - 1];
-                                int idx = last.indexOf(':');
-                                if (idx > 0) {
-                                    String ivBase64 = last.substring(0, idx);
-                                    String encPayload = last.substring(idx + 1);
-
-                                    // Find this client's wrapped AES key
-                                    String wrappedKeyForMe = null;
-                                    for (int i = 0; i < segments.length - 1; i++) {
-                                        String seg = segments[i];
-                                        int c = seg.indexOf(':');
-                                        if (c > 0) {
-                                            String user = seg.substring(0, c);
-                                            String encKey = seg.substring(c + 1);
-                                            if (user.equals(username)) {
-                                                wrappedKeyForMe = encKey;
-                                                break;
-                                            }
-                                        }
-                                    }
-
-                                    if (wrappedKeyForMe != null) {
-                                        SecretKey aesKey = Decryption.decryptAESKeyRSA(wrappedKeyForMe, privateKey);
-                                        byte[] ivBytes = Base64.getDecoder().decode(ivBase64);
-                                        GCMParameterSpec iv = new GCMParameterSpec(128, ivBytes);
-                                        String plainMessage = Decryption.decryptAES(encPayload, aesKey, iv);
-                                        decryptedMessage = senderName + ": " + plainMessage;
-                                    } else {
-                                        // No key for us; cannot decrypt — skip message silently
-                                        System.err
-                                                .println("No wrapped key for user '" + username + "' in group message");
-                                        continue;
-                                    }
-                                } else {
-                                    // Malformed last segment; fallback to generic handling below
-                                    // attempt old 3-part format
-                                    String[] parts = encryptedPart.split(":", 3);
-                                    if (parts.length == 3) {
-                                        String encryptedAESKey = parts[0];
-                                        String ivBase64 = parts[1];
-                                        String encryptedMessage = parts[2];
-                                        SecretKey aesKey = Decryption.decryptAESKeyRSA(encryptedAESKey, privateKey);
-                                        byte[] ivBytes = Base64.getDecoder().decode(ivBase64);
-                                        GCMParameterSpec iv = new GCMParameterSpec(128, ivBytes);
-                                        String plainMessage = Decryption.decryptAES(encryptedMessage, aesKey, iv);
-                                        decryptedMessage = senderName + ": " + plainMessage;
-                                    } else {
-                                        String plainMessage = Decryption.decryptRSA(encryptedPart, privateKey);
-                                        decryptedMessage = senderName + ": " + plainMessage;
-                                    }
-                                }
-                            } else {
-                                // Not enough segments; fallback
-                                String plainMessage = Decryption.decryptRSA(encryptedPart, privateKey);
-                                decryptedMessage = senderName + ": " + plainMessage;
-                            }
-                        } else if (encryptedPart.contains(":")) {
-                            // Legacy 3-part AES format: encKey:iv:cipher
-                            String[] parts = encryptedPart.split(":", 3);
-                            if (parts.length == 3) {
-                                String encryptedAESKey = parts[0];
-                                String ivBase64 = parts[1];
-                                String encryptedMessage = parts[2];
-                                SecretKey aesKey = Decryption.decryptAESKeyRSA(encryptedAESKey, privateKey);
-                                byte[] ivBytes = Base64.getDecoder().decode(ivBase64);
-                                GCMParameterSpec iv = new GCMParameterSpec(128, ivBytes);
-                                String plainMessage = Decryption.decryptAES(encryptedMessage, aesKey, iv);
-                                decryptedMessage = senderName + ": " + plainMessage;
-                            } else {
-                                String plainMessage = Decryption.decryptRSA(encryptedPart, privateKey);
-                                decryptedMessage = senderName + ": " + plainMessage;
-                            }
-                        } else {
-                            // Fallback to simple RSA decryption
-                            String plainMessage = Decryption.decryptRSA(encryptedPart, privateKey);
-                            decryptedMessage = senderName + ": " + plainMessage;
-                        }
-                    } catch (Exception e) {
-                        System.err.println("Failed to decrypt group message: " + e.getMessage());
-                        System.err.println("Message was: " + line.substring(0, Math.min(80, line.length())) + "...");
-                        continue;
-                    }
-                } else {
-                    // Private or broadcast message: expected format "Sender: <payload>"
-                    int idx = line.indexOf(": ");
-                    if (idx > 0) {
-                        String senderName = line.substring(0, idx);
-                        String payload = line.substring(idx + 2);
-                        try {
-                            if (payload.contains(":")) {
-                                String[] parts = payload.split(":", 3);
-                                if (parts.length == 3) {
-                                    // AES-GCM payload with RSA-wrapped AES key
-                                    String encryptedAESKey = parts[0];
-                                    String ivBase64 = parts[1];
-                                    String encryptedMessage = parts[2];
-                                    SecretKey aesKey = Decryption.decryptAESKeyRSA(encryptedAESKey, privateKey);
-                                    byte[] ivBytes = Base64.getDecoder().decode(ivBase64);
-                                    GCMParameterSpec iv = new GCMParameterSpec(128, ivBytes);
-                                    String plainMessage = Decryption.decryptAES(encryptedMessage, aesKey, iv);
-                                    decryptedMessage = senderName + ": " + plainMessage;
-                                } else {
-                                    // Fallback: RSA-only encryption of whole payload
-                                    String plainMessage = Decryption.decryptRSA(payload, privateKey);
-                                    decryptedMessage = senderName + ": " + plainMessage;
-                                }
-                            } else {
-                                // Not encrypted or unknown format; pass through
-                                decryptedMessage = line;
-                            }
-                        } catch (Exception e) {
-                            System.err.println("Failed to decrypt private message: " + e.getMessage());
-                            System.err
-                                    .println("Message was: " + line.substring(0, Math.min(80, line.length())) + "...");
-                            // Skip message on decryption failure
-                            continue;
-                        }
-                    } else {
-                        // No sender separator — pass through (system or malformed)
-                        decryptedMessage = line;
-                    }
+            // Reused from the last session, or generated while the login screen showed
+            long keysStart = System.nanoTime();
+            try {
+                KeyPair keyPair = IdentityStore.loadOrCreate(username, password, suite);
+                this.publicKey = keyPair.getPublic();
+                this.privateKey = keyPair.getPrivate();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Failed to load identity keys: " + e.getMessage());
+                shutdown();
+                return;
+            } finally {
+                if (password != null) {
+                    Arrays.fill(password, '\0');
+                    password = null;
                 }
+            }
+            keysMillis = (System.nanoTime() - keysStart) / 1_000_000;
 
-                if ("/quit".equals(decryptedMessage)) {
-                    break;
-                }
-                if (controller != null) {
-                    Platform.runLater(() -> controller.receiveMessage(decryptedMessage));
-                }
+            send(Packet.of(Opcode.PUBKEY, publicKey.getEncoded()));
+            System.out.println("Sent public key");
+            catchUp(new ArrayList<>(seen.conversations()));
+            refreshPublicKeys();
+
+            Packet packet;
+            readerThread = Thread.currentThread();
+            while (listening && (packet = reader.read()) != null) {
+                handle(packet);
+                flushReplies();
             }
 
         } catch (IOException | InterruptedException e) {
@@ -432,9 +182,274 @@ public class Client implements Runnable {
         }
     }
 
+    // Offers the binary protocol and our crypto suites. A server from before the
+    // handshake would take the whole /hello line as our username, so it isn't supported.
+    private PacketReader handshake() throws IOException {
+        synchronized (this) {
+            out.write((Handshake.request(username, CryptoSuite.ids()) + "\n").getBytes(TextCodec.CHARSET));
+            out.flush();
+        }
+        System.out.println("Sent username: " + username);
+
+        String reply = TextCodec.readLine(in);
+        WireFormat agreed = Handshake.parseReply(reply);
+        if (agreed == null) {
+            throw new IOException("Server did not answer " + Handshake.HELLO + ": " + reply);
+        }
+        PacketReader reader;
+        if (agreed == WireFormat.BINARY) {
+            reader = BinaryCodec.reader(in);
+        } else {
+            reader = TextCodec.reader(new BufferedReader(new InputStreamReader(in, TextCodec.CHARSET)),
+                    TextCodec::decodeServerLine);
+        }
+        synchronized (this) {
+            wireFormat = agreed;
+            handshakeDone = true;
+            for (Packet packet : pendingPackets) {
+                write(packet);
+            }
+            pendingPackets.clear();
+        }
+        CryptoSuite agreedSuite = CryptoSuite.forId(Handshake.parseSuite(reply));
+        suite = agreedSuite != null ? agreedSuite : CryptoSuite.RSA;
+        System.out.println("Using " + wireFormat + " protocol and " + suite.id() + " keys");
+
+        // Positions saved under another numbering, e.g. before a server restart without
+        // a message log, would make us skip the new messages under the same numbers
+        String serverNumbering = Handshake.parseNumbering(reply);
+        if (serverNumbering == null || !serverNumbering.equals(numbering)) {
+            if (seen.size() > 0) {
+                System.out.println("Server numbering changed, forgetting " + seen.size() + " conversation positions");
+            }
+            seen.clear();
+        }
+        numbering = serverNumbering;
+        return reader;
+    }
+
+    private void handle(Packet packet) {
+        if (!firstMessageSeen) {
+            firstMessageSeen = true;
+            System.out.println("Login: first message " + (System.nanoTime() - connectStartedAt) / 1_000_000
+                    + " ms after connecting, " + keysMillis + " ms of it loading identity keys");
+        }
+        commands.dispatch(this, packet);
+    }
+
+    // Also pushed by the server when a user we looked up rotates their key
+    private void onKey(Packet packet) {
+        storePublicKey(packet.string(0), packet.bytes(1));
+    }
+
+    private void onKeys(Packet packet) {
+        for (UserKey key : packet.keys(0)) {
+            storePublicKey(key.username(), key.key());
+        }
+        if (!packet.strings(1).isEmpty()) {
+            System.out.println("No public key yet for: " + packet.strings(1));
+        }
+    }
+
+    private void storePublicKey(String targetUser, byte[] encoded) {
+        try {
+            PublicKey targetPubKey = CryptoSuite.decodeAnyPublicKey(encoded);
+            publicKeyCache.put(targetUser, targetPubKey);
+            keyResolver.complete(targetUser, targetPubKey);
+            System.out.println("Stored public key for user: " + targetUser);
+        } catch (Exception e) {
+            System.err.println("Failed to parse public key: " + e.getMessage());
+        }
+    }
+
+    // Group commands
+    private void onGroupCreated(Packet packet) {
+        String groupId = packet.string(0);
+        Group group = new Group(groupId, packet.string(1), username, List.of(username), System.currentTimeMillis());
+        groups.put(groupId, group);
+        if (controller != null) {
+            Platform.runLater(() -> controller.onGroupCreated(group));
+        }
+    }
+
+    // Group message with explicit group id
+    private void onGroupChat(Packet packet) {
+        String conversation = Conversation.group(packet.string(0));
+        if (isNew(conversation, packet.longValue(3))) {
+            receiveChat(conversation, packet.string(1), packet.payload(2));
+        }
+    }
+
+    // Reconciles the server's listing with the groups we know, which may come from the
+    // last session, and only asks for members where the membership epoch moved on
+    private void onGroups(Packet packet) {
+        List<GroupSummary> summaries = packet.groups(0);
+        if (summaries.isEmpty() && groups.isEmpty()) {
+            return;
+        }
+        List<String> unseen = new ArrayList<>();
+        Set<String> listed = new HashSet<>();
+        for (GroupSummary summary : summaries) {
+            listed.add(summary.groupId());
+            Group known = groups.get(summary.groupId());
+            if (known == null) {
+                groups.put(summary.groupId(), new Group(summary.groupId(), summary.groupName(), "",
+                        new ArrayList<>(), System.currentTimeMillis()));
+                requestGroupMembers(summary.groupId());
+            } else if (known.getEpoch() != summary.epoch() || known.getMemberCount() != summary.memberCount()) {
+                requestGroupMembers(summary.groupId());
+            }
+            String conversation = Conversation.group(summary.groupId());
+            if (!seen.contains(conversation) && !catchUpFrom.containsKey(conversation)) {
+                unseen.add(conversation);
+            }
+        }
+        // Groups we were removed from while away
+        groups.keySet().retainAll(listed);
+        // Fetch what was said in groups we have no history for yet
+        catchUp(unseen);
+        if (controller != null) {
+            Platform.runLater(() -> controller.refreshGroups(new ArrayList<>(groups.values())));
+        }
+    }
+
+    private void onMembers(Packet packet) {
+        String groupId = packet.string(0);
+        Group group = groups.get(groupId);
+        if (group == null) {
+            return;
+        }
+        group.setMembers(packet.strings(1));
+        group.setEpoch(packet.longValue(2));
+        // If this is the currently selected group, update UI header and member drawer
+        if (controller != null && controller.getCurrentGroup() != null
+                && groupId.equals(controller.getCurrentGroup().getGroupId())) {
+            Platform.runLater(() -> controller.onGroupMembersUpdated(group));
+        }
+        // Refresh groups list to update counts
+        if (controller != null) {
+            Platform.runLater(() -> controller.refreshGroups(new ArrayList<>(groups.values())));
+        }
+    }
+
+    private void onUsers(Packet packet) {
+        List<String> users = packet.strings(0);
+        System.out.println("Received " + users.size() + " online users: " + users);
+        if (controller != null) {
+            Platform.runLater(() -> controller.updateOnlineUsers(users));
+        }
+    }
+
+    private void onChat(Packet packet) {
+        if (isNew(Conversation.BROADCAST, packet.longValue(2))) {
+            receiveChat(Conversation.BROADCAST, packet.string(0), packet.payload(1));
+        }
+    }
+
+    private void onDirectChat(Packet packet) {
+        String sender = packet.string(0);
+        String peer = sender.equals(username) ? packet.string(1) : sender;
+        // Our own messages come back in catch-up, encrypted for the recipient only
+        if (isNew(Conversation.withUser(peer), packet.longValue(3)) && !sender.equals(username)) {
+            receiveChat(Conversation.withUser(peer), sender, packet.payload(2));
+        }
+    }
+
+    // Decrypts, stores and hands a message to the UI, which shows it if its chat is open
+    private void receiveChat(String conversation, String sender, CipherPayload payload) {
+        String text;
+        try {
+            text = decrypt(conversation, sender, payload);
+        } catch (Exception e) {
+            System.err.println("Failed to decrypt message from " + sender + ": " + e.getMessage());
+            return;
+        }
+        if (text == null) {
+            System.err.println("No key for us in message from " + sender + " in " + conversation);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        MessageStore store = messageStore;
+        if (store != null) {
+            try {
+                store.append(conversation, new MessageStore.StoredMessage(now, sender, text, false));
+            } catch (RuntimeException e) {
+                System.err.println("Failed to store message: " + e.getMessage());
+            }
+        }
+        if (controller != null) {
+            Platform.runLater(() -> controller.receiveChat(conversation, sender, text, now));
+        }
+    }
+
+    // Asks again while a conversation still has gaps below the server's latest and the
+    // last batch filled some of them
+    private void onHistoryEnd(Packet packet) {
+        String conversation = packet.string(0);
+        long latest = packet.longValue(1);
+        long floor = seen.floor(conversation);
+        Long requestedFrom = catchUpFrom.remove(conversation);
+        if (latest > floor && requestedFrom != null && floor > requestedFrom) {
+            catchUp(List.of(conversation));
+        }
+    }
+
+    /**
+     * Records a chat packet's sequence number.
+     *
+     * @return false if it was already seen, e.g. delivered live and again in catch-up.
+     * Older numbers that arrive after newer ones are still new.
+     */
+    private boolean isNew(String conversation, long sequence) {
+        // Text connections carry no numbers
+        if (sequence == 0) {
+            return true;
+        }
+        return seen.mark(conversation, sequence);
+    }
+
+    // System messages and errors need no decryption
+    private void onNotice(Packet packet) {
+        String text = packet.opcode() == Opcode.SYSTEM ? packet.string(0) : TextCodec.encode(packet);
+        // Someone who logs in again may have restarted and lost the session keys we sent
+        if (packet.opcode() == Opcode.SYSTEM && text.endsWith(JOINED)) {
+            sessionKeys.rejoined(text.substring(0, text.length() - JOINED.length()));
+        }
+        if (controller != null) {
+            Platform.runLater(() -> controller.receiveMessage(text));
+        }
+    }
+
+    /**
+     * @return the plaintext, or null if the message carries no key for us
+     */
+    private String decrypt(String conversation, String sender, CipherPayload payload) throws Exception {
+        if (payload.getFormat() == CipherPayload.Format.OPAQUE) {
+            String text = payload.getText();
+            if (!text.contains(":")) {
+                // Not encrypted or unknown format; pass through
+                return text;
+            }
+            // Fallback: RSA-only encryption of whole payload
+            return Decryption.decryptRSA(text, privateKey);
+        }
+        if (payload.getFormat() == CipherPayload.Format.SESSION) {
+            return sessionKeys.open(payload, conversation, sender, username, privateKey);
+        }
+        byte[] wrappedKeyForMe = payload.keyFor(username);
+        if (wrappedKeyForMe == null) {
+            return null;
+        }
+        SecretKey aesKey = CryptoSuite.forKey(privateKey).unwrapKey(wrappedKeyForMe, privateKey);
+        GCMParameterSpec iv = new GCMParameterSpec(128, payload.getIv());
+        return Decryption.openAES(payload.getCiphertext(), aesKey, iv);
+    }
+
     private void shutdown() {
+        saveState();
+        closeHistory();
         if (loggedIn && username != null && !username.isBlank() && out != null) {
-            out.println("/quit");
+            send(Packet.of(Opcode.QUIT));
             try {
                 Thread.sleep(100);
             } catch (InterruptedException e) {
@@ -461,6 +476,73 @@ public class Client implements Runnable {
         }
     }
 
+    // Loads the last session's state, so the UI can show it before the server answers
+    private void restoreState() {
+        if (username == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        ClientState state = ClientState.load(ClientState.defaultPath(username));
+        if (state == null) {
+            return;
+        }
+        for (Group group : state.groups()) {
+            groups.put(group.getGroupId(), group);
+        }
+        state.publicKeys().forEach(this::storePublicKey);
+        seen.restore(state.positions());
+        numbering = state.numbering();
+        System.out.println("Restored " + groups.size() + " groups, " + publicKeyCache.size() + " keys and "
+                + seen.size() + " conversation positions in " + (System.nanoTime() - start) / 1_000_000
+                + " ms");
+    }
+
+    private void openHistory() {
+        if (username == null) {
+            return;
+        }
+        try {
+            messageStore = MessageStore.open(MessageStore.defaultDirectory(username));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Local history unavailable: " + e.getMessage());
+        }
+    }
+
+    private void closeHistory() {
+        MessageStore store = messageStore;
+        messageStore = null;
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close local history: " + e.getMessage());
+            }
+        }
+    }
+
+    private void saveState() {
+        if (username == null || username.isBlank()) {
+            return;
+        }
+        Map<String, byte[]> keys = new HashMap<>();
+        publicKeyCache.forEach((user, key) -> keys.put(user, key.getEncoded()));
+        try {
+            new ClientState(new ArrayList<>(groups.values()), keys, seen.positions(), numbering)
+                    .save(ClientState.defaultPath(username));
+        } catch (IOException e) {
+            System.err.println("Failed to save client state: " + e.getMessage());
+        }
+    }
+
+    // Keys kept from the last session may have changed since. Asking again replaces
+    // them and makes the server push future changes to us.
+    private void refreshPublicKeys() {
+        List<String> users = new ArrayList<>(publicKeyCache.keySet());
+        for (int i = 0; i < users.size(); i += KEYS_PER_REQUEST) {
+            requestPublicKeys(users.subList(i, Math.min(users.size(), i + KEYS_PER_REQUEST)));
+        }
+    }
+
     public void disconnect() {
         shutdown();
     }
@@ -477,22 +559,148 @@ public class Client implements Runnable {
         return username;
     }
 
+    /**
+     * The local history, or null if it couldn't be opened or the client has shut down.
+     */
+    public MessageStore getMessageStore() {
+        return messageStore;
+    }
+
     public void setUsername(String username) {
         this.username = username;
     }
 
+    public void setPassword(char[] password) {
+        this.password = password;
+    }
+
+    private synchronized void send(Packet packet) {
+        if (out == null) {
+            return;
+        }
+        if (!handshakeDone) {
+            pendingPackets.add(packet);
+            return;
+        }
+        write(packet);
+    }
+
+    // Caller holds the lock
+    private void write(Packet packet) {
+        try {
+            out.write(wireFormat.encode(packet));
+            if (Thread.currentThread() == readerThread) {
+                unflushed = true;
+            } else {
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to send " + packet.opcode() + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void flushReplies() {
+        if (!unflushed) {
+            return;
+        }
+        unflushed = false;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to flush: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a line in the text protocol's syntax, e.g. a command typed by the user.
+     * It is re-encoded in whichever format the connection uses.
+     */
     public void sendMessage(String message) {
-        if (out != null) {
-            out.println(message);
+        Packet packet = TextCodec.decodeClientLine(message);
+        if (packet != null) {
+            send(packet);
         }
     }
 
-    public PrintWriter getOut() {
-        return out;
+    public void sendEncryptedMessage(CipherPayload payload) {
+        send(Packet.of(Opcode.MESSAGE, payload));
     }
 
-    public BufferedReader getIn() {
-        return in;
+    /**
+     * Encrypts a private message under the session with {@code recipient}, see
+     * {@link SessionKeys}.
+     */
+    public CipherPayload sealPrivateMessage(String recipient, PublicKey recipientKey, String message)
+            throws Exception {
+        return sessionKeys.sealPrivate(recipient, recipientKey, message);
+    }
+
+    /**
+     * Encrypts a group message under our sender key for the group's current membership
+     * epoch, see {@link SessionKeys}.
+     *
+     * @param memberKeys public keys of the members to send to
+     */
+    public CipherPayload sealGroupMessage(Group group, Map<String, PublicKey> memberKeys, String message)
+            throws Exception {
+        return sessionKeys.sealGroup(group.getGroupId(), group.getEpoch(), memberKeys, message);
+    }
+
+    /**
+     * Sends a message to one user only, instead of broadcasting it to everyone online.
+     */
+    public void sendPrivateMessage(String recipient, CipherPayload payload) {
+        send(Packet.of(Opcode.PRIVATE_MSG, recipient, payload));
+    }
+
+    /**
+     * Requests everything after the oldest gap in each conversation, in one batched
+     * request. Conversations are named as in {@link Conversation}: the group
+     * conversation, {@link Conversation#withUser} or {@link Conversation#BROADCAST}.
+     */
+    public void catchUp(List<String> conversations) {
+        if (conversations.isEmpty()) {
+            return;
+        }
+        List<String> entries = new ArrayList<>();
+        for (String conversation : conversations) {
+            long after = seen.floor(conversation);
+            catchUpFrom.put(conversation, after);
+            entries.add(conversation + "@" + after);
+        }
+        send(Packet.of(Opcode.HISTORY, entries));
+    }
+
+    public void requestPublicKey(String username) {
+        send(Packet.of(Opcode.GET_KEY, username));
+    }
+
+    /**
+     * @return a future completed with the user's key, or with null if the server has
+     * none for them within {@link KeyResolver#DEFAULT_TIMEOUT_MILLIS}
+     */
+    public CompletableFuture<PublicKey> resolvePublicKey(String username) {
+        return keyResolver.resolve(username);
+    }
+
+    /**
+     * Resolves several keys with a single request; users without a key are left out.
+     */
+    public CompletableFuture<Map<String, PublicKey>> resolvePublicKeys(Collection<String> usernames) {
+        return keyResolver.resolveAll(usernames);
+    }
+
+    /**
+     * Requests the keys of several users in one round trip.
+     */
+    public void requestPublicKeys(Collection<String> usernames) {
+        if (!usernames.isEmpty()) {
+            send(Packet.of(Opcode.GET_KEYS, List.copyOf(usernames)));
+        }
+    }
+
+    public void quit() {
+        send(Packet.of(Opcode.QUIT));
     }
 
     public PublicKey getPublicKeyForUser(String username) {
@@ -501,39 +709,34 @@ public class Client implements Runnable {
 
     // Group management methods
     public void createGroup(String groupName) {
-        if (out != null) {
-            out.println("/creategroup " + groupName);
-        }
+        send(Packet.of(Opcode.CREATE_GROUP, groupName));
     }
 
     public void requestGroups() {
-        if (out != null) {
-            out.println("/listgroups");
-        }
+        send(Packet.of(Opcode.LIST_GROUPS));
     }
 
     public void addToGroup(String groupId, String username) {
-        if (out != null) {
-            out.println("/addtogroup " + groupId + " " + username);
-        }
+        send(Packet.of(Opcode.ADD_TO_GROUP, groupId, username));
     }
 
     public void requestGroupMembers(String groupId) {
-        if (out != null) {
-            out.println("/groupmembers " + groupId);
-        }
+        send(Packet.of(Opcode.GROUP_MEMBERS, groupId));
     }
 
     public void requestOnlineUsers() {
-        if (out != null) {
-            out.println("/getusers");
-        }
+        send(Packet.of(Opcode.GET_USERS));
     }
 
-    public void sendGroupMessage(String groupId, String message) {
-        if (out != null) {
-            out.println("/groupmsg " + groupId + " " + message);
-        }
+    public void sendGroupMessage(String groupId, CipherPayload payload) {
+        send(Packet.of(Opcode.GROUP_MSG, groupId, payload));
+    }
+
+    /**
+     * Calls and time spent per incoming command since this client connected.
+     */
+    public List<CommandRegistry.CommandStats> getCommandStats() {
+        return commands.stats();
     }
 
     public Group getGroup(String groupId) {
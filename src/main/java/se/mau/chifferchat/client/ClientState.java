@@ -0,0 +1,145 @@
+package se.mau.chifferchat.client;
+
+import se.mau.chifferchat.common.Group;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a client knew when it last disconnected: its groups and their members, the
+ * public keys it had fetched and which sequence numbers it had seen per conversation,
+ * along with the server numbering those belong to.
+ * Loaded before connecting, so the UI has something to show at once and the login
+ * only needs to fetch what changed since.
+ *
+ * @param publicKeys X.509-encoded keys by username
+ * @param numbering  the server's numbering id from the handshake, or null
+ */
+public record ClientState(List<Group> groups, Map<String, byte[]> publicKeys,
+                          Map<String, SeenSequences.Position> positions, String numbering) {
+
+    private static final int MAGIC = 0x43435354; // "CCST"
+    private static final int VERSION = 4;
+    private static final String FILE = "state.bin";
+
+    /**
+     * Where a user's state is kept, next to their local history.
+     */
+    public static Path defaultPath(String username) {
+        return MessageStore.defaultDirectory(username).resolve(FILE);
+    }
+
+    /**
+     * @return the saved state, or null if there is none or it can't be read
+     */
+    public static ClientState load(Path path) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            // Version 1 had no membership epochs, versions before 3 kept only the newest
+            // sequence number per conversation and versions before 4 no numbering id
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                return null;
+            }
+            int groupCount = in.readInt();
+            List<Group> groups = new ArrayList<>(groupCount);
+            for (int i = 0; i < groupCount; i++) {
+                String groupId = in.readUTF();
+                String groupName = in.readUTF();
+                String creator = in.readUTF();
+                long createdAt = in.readLong();
+                long epoch = version > 1 ? in.readLong() : 0;
+                List<String> members = new ArrayList<>();
+                for (int m = in.readInt(); m > 0; m--) {
+                    members.add(in.readUTF());
+                }
+                groups.add(new Group(groupId, groupName, creator, members, createdAt, epoch));
+            }
+            Map<String, byte[]> keys = new LinkedHashMap<>();
+            for (int k = in.readInt(); k > 0; k--) {
+                String username = in.readUTF();
+                keys.put(username, in.readNBytes(in.readInt()));
+            }
+            Map<String, SeenSequences.Position> positions = new LinkedHashMap<>();
+            for (int s = in.readInt(); s > 0; s--) {
+                String conversation = in.readUTF();
+                long floor = in.readLong();
+                long[] seen = new long[version > 2 ? in.readInt() : 0];
+                for (int i = 0; i < seen.length; i++) {
+                    seen[i] = in.readLong();
+                }
+                positions.put(conversation, new SeenSequences.Position(floor, seen));
+            }
+            String numbering = version > 3 ? in.readUTF() : "";
+            return new ClientState(groups, keys, positions, numbering.isEmpty() ? null : numbering);
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable client state: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the state beside the old one and moves it over, so a crash leaves one or
+     * the other.
+     */
+    public void save(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(groups.size());
+            for (Group group : groups) {
+                out.writeUTF(group.getGroupId());
+                out.writeUTF(group.getGroupName());
+                out.writeUTF(group.getCreator());
+                out.writeLong(group.getCreatedAt());
+                out.writeLong(group.getEpoch());
+                List<String> members = group.getMembers();
+                out.writeInt(members.size());
+                for (String member : members) {
+                    out.writeUTF(member);
+                }
+            }
+            out.writeInt(publicKeys.size());
+            for (Map.Entry<String, byte[]> key : publicKeys.entrySet()) {
+                out.writeUTF(key.getKey());
+                out.writeInt(key.getValue().length);
+                out.write(key.getValue());
+            }
+            out.writeInt(positions.size());
+            for (Map.Entry<String, SeenSequences.Position> position : positions.entrySet()) {
+                out.writeUTF(position.getKey());
+                out.writeLong(position.getValue().floor());
+                long[] seen = position.getValue().seen();
+                out.writeInt(seen.length);
+                for (long sequence : seen) {
+                    out.writeLong(sequence);
+                }
+            }
+            out.writeUTF(numbering != null ? numbering : "");
+        }
+        try {
+            Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,205 @@
+package se.mau.chifferchat.client;
+
+import se.mau.chifferchat.crypto.CryptoEngine;
+import se.mau.chifferchat.crypto.CryptoSuite;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A user's identity key pairs, one per {@link CryptoSuite}, kept between sessions next
+ * to their local history so logging in doesn't have to generate a new one: RSA in
+ * {@code identity.key}, other suites in {@code identity-<suite>.key}. The private key
+ * is sealed with AES-GCM under a key derived from the login password with PBKDF2; the
+ * public key is stored in the clear and authenticated along with it.
+ * <p>
+ * Generating an RSA-4096 pair takes seconds. When this machine has no stored identity
+ * for a suite yet, {@link #prepare(CryptoSuite)} starts one in the background while the
+ * user is still typing their name, and the first login without a stored identity
+ * takes it.
+ * <p>
+ * Note that the login password is still fixed in {@code LoginController}, the same for
+ * every user, so until logins have a real secret the sealing protects nothing and
+ * the key derivation only costs about a second per login.
+ */
+public final class IdentityStore {
+
+    private static final int MAGIC = 0x43434944; // "CCID"
+    private static final int VERSION = 1;
+    private static final String RSA_FILE = "identity.key";
+    private static final int ITERATIONS = 210_000;
+    private static final int SALT_LENGTH = 16;
+
+    private static final CryptoEngine engine = CryptoEngine.getInstance();
+    // Key pairs generated ahead of a login that needs one
+    private static final Map<CryptoSuite, CompletableFuture<KeyPair>> spares = new EnumMap<>(CryptoSuite.class);
+
+    private IdentityStore() {
+    }
+
+    /**
+     * Where a user's identity for a suite is kept, next to their local history.
+     */
+    public static Path defaultPath(String username, CryptoSuite suite) {
+        return MessageStore.defaultDirectory(username).resolve(fileName(suite));
+    }
+
+    private static String fileName(CryptoSuite suite) {
+        return suite == CryptoSuite.RSA ? RSA_FILE : "identity-" + suite.id() + ".key";
+    }
+
+    /**
+     * Starts generating a key pair for {@code suite} in the background unless some user
+     * already has one on this machine, in which case the next login most likely
+     * loads it.
+     */
+    public static synchronized void prepare(CryptoSuite suite) {
+        if (spares.containsKey(suite) || hasStoredIdentity(suite)) {
+            return;
+        }
+        spares.put(suite, CompletableFuture.supplyAsync(() -> generate(suite)));
+        System.out.println("Generating " + suite.id() + " identity key pair in the background");
+    }
+
+    /**
+     * The user's stored identity for {@code suite}, or a new one that is stored for
+     * next time if there is none.
+     *
+     * @throws IOException if a stored identity can't be read or opened with this
+     * password; it is left as it is, since replacing it would lose the key peers know
+     */
+    public static KeyPair loadOrCreate(String username, char[] password, CryptoSuite suite) throws IOException {
+        Path path = defaultPath(username, suite);
+        if (Files.exists(path)) {
+            try {
+                return load(path, password, suite);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot open identity for " + username + ", wrong password or damaged file: "
+                        + e.getMessage(), e);
+            }
+        }
+        KeyPair keyPair = takeSpare(suite);
+        try {
+            save(path, keyPair, password);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        return keyPair;
+    }
+
+    private static KeyPair takeSpare(CryptoSuite suite) {
+        CompletableFuture<KeyPair> pending;
+        synchronized (IdentityStore.class) {
+            pending = spares.remove(suite);
+        }
+        return pending != null ? pending.join() : generate(suite);
+    }
+
+    private static KeyPair generate(CryptoSuite suite) {
+        try {
+            return suite.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean hasStoredIdentity(CryptoSuite suite) {
+        Path root = MessageStore.historyRoot();
+        if (!Files.isDirectory(root)) {
+            return false;
+        }
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path user : users) {
+                if (Files.exists(user.resolve(fileName(suite)))) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to look for stored identities: " + e.getMessage());
+        }
+        return false;
+    }
+
+    // Layout: magic, version, salt, iterations, public key, nonce, sealed private key
+    static KeyPair load(Path path, char[] password, CryptoSuite suite) throws IOException, GeneralSecurityException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not an identity file: " + path);
+            }
+            byte[] salt = in.readNBytes(in.readInt());
+            int iterations = in.readInt();
+            byte[] publicBytes = in.readNBytes(in.readInt());
+            byte[] nonce = in.readNBytes(in.readInt());
+            byte[] sealed = in.readNBytes(in.readInt());
+            byte[] privateBytes = engine.open(sealed, deriveKey(password, salt, iterations),
+                    new GCMParameterSpec(CryptoEngine.TAG_BITS, nonce), publicBytes);
+            PublicKey publicKey = suite.decodePublicKey(publicBytes);
+            PrivateKey privateKey = suite.decodePrivateKey(privateBytes);
+            return new KeyPair(publicKey, privateKey);
+        }
+    }
+
+    // Written beside the old file and moved over it, so a crash leaves one or the other
+    static void save(Path path, KeyPair keyPair, char[] password) throws IOException, GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        engine.nextNonce(salt);
+        GCMParameterSpec nonce = engine.newIv();
+        byte[] publicBytes = keyPair.getPublic().getEncoded();
+        byte[] sealed = engine.seal(keyPair.getPrivate().getEncoded(), deriveKey(password, salt, ITERATIONS), nonce,
+                publicBytes);
+
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeBytes(out, salt);
+            out.writeInt(ITERATIONS);
+            writeBytes(out, publicBytes);
+            writeBytes(out, nonce.getIV());
+            writeBytes(out, sealed);
+        }
+        try {
+            Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static SecretKey deriveKey(char[] password, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, 256);
+        try {
+            byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,144 @@
+package se.mau.chifferchat.client;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Resolves users' public keys without blocking a thread per lookup.
+ * <p>
+ * Each user has at most one lookup in flight; everyone asking for the same key gets
+ * the same future. Lookups made within {@link #BATCH_WINDOW_MILLIS} of each other go
+ * out as one {@code /getkeys}. Futures are completed by the key handlers as soon as a
+ * key arrives, including keys the server pushes later because a user only logged in
+ * after we asked. A lookup that gets no key within its timeout completes with null.
+ * Timeouts and batch flushes run on one shared scheduler thread.
+ */
+public class KeyResolver {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+    static final long BATCH_WINDOW_MILLIS = 5;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "KeyResolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, PublicKey> cache;
+    private final Consumer<Collection<String>> lookup;
+    private final ConcurrentHashMap<String, CompletableFuture<PublicKey>> inFlight = new ConcurrentHashMap<>();
+    // Users waiting for the next batch; guarded by itself
+    private final Set<String> batch = new LinkedHashSet<>();
+
+    /**
+     * @param cache  keys already known, checked before asking the server
+     * @param lookup sends one request for a batch of users
+     */
+    public KeyResolver(Map<String, PublicKey> cache, Consumer<Collection<String>> lookup) {
+        this.cache = cache;
+        this.lookup = lookup;
+    }
+
+    public CompletableFuture<PublicKey> resolve(String username) {
+        return resolve(username, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @return a future completed with the user's key, or with null if none arrived in time
+     */
+    public CompletableFuture<PublicKey> resolve(String username, long timeoutMillis) {
+        PublicKey cached = cache.get(username);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<PublicKey> created = new CompletableFuture<>();
+        CompletableFuture<PublicKey> future = inFlight.putIfAbsent(username, created);
+        if (future != null) {
+            return future;
+        }
+        // The key may have arrived between the cache check and registering
+        cached = cache.get(username);
+        if (cached != null) {
+            complete(username, cached);
+            return created;
+        }
+        SCHEDULER.schedule(() -> {
+            if (inFlight.remove(username, created)) {
+                created.complete(null);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        enqueue(username);
+        return created;
+    }
+
+    /**
+     * Resolves several keys with at most one request.
+     *
+     * @return a future completed once every key has arrived or timed out; users
+     * without a key are left out of the map
+     */
+    public CompletableFuture<Map<String, PublicKey>> resolveAll(Collection<String> usernames) {
+        Map<String, CompletableFuture<PublicKey>> futures = new HashMap<>();
+        for (String username : usernames) {
+            futures.put(username, resolve(username));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, PublicKey> keys = new HashMap<>();
+            futures.forEach((username, future) -> {
+                PublicKey key = future.join();
+                if (key != null) {
+                    keys.put(username, key);
+                }
+            });
+            return keys;
+        });
+    }
+
+    /**
+     * Called by the key handlers whenever a key arrives.
+     */
+    public void complete(String username, PublicKey key) {
+        CompletableFuture<PublicKey> future = inFlight.remove(username);
+        if (future != null) {
+            future.complete(key);
+        }
+    }
+
+    public int getPendingCount() {
+        return inFlight.size();
+    }
+
+    private void enqueue(String username) {
+        boolean first;
+        synchronized (batch) {
+            first = batch.isEmpty();
+            batch.add(username);
+        }
+        if (first) {
+            SCHEDULER.schedule(this::flush, BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        List<String> usernames;
+        synchronized (batch) {
+            usernames = new ArrayList<>(batch);
+            batch.clear();
+        }
+        if (!usernames.isEmpty()) {
+            lookup.accept(usernames);
+        }
+    }
+}
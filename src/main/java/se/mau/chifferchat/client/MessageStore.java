@@ -0,0 +1,362 @@
+package se.mau.chifferchat.client;
+
+import se.mau.chifferchat.crypto.CryptoEngine;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Local chat history, encrypted at rest and read a page at a time.
+ * <p>
+ * Each conversation has an append-only {@code .log} of records and an {@code .idx}
+ * holding the offset of every record, so record {@code n} of a conversation is found
+ * with one 8-byte read and a page of them with two reads. Nothing is cached besides a
+ * few open files, so memory use does not depend on how much history there is.
+ * <p>
+ * Records are sealed with AES-GCM under a key kept in {@code history.key} in the same
+ * directory, readable only by the owner. The conversation name is authenticated with
+ * each record, so records cannot be moved between conversations unnoticed.
+ * <p>
+ * The key itself is stored unencrypted, so this only protects history that is copied
+ * without the key next to it, e.g. a backup of the log files alone; anyone who can
+ * read the whole directory as this user can read the history. Wrapping the key the
+ * way {@link IdentityStore} seals identity keys would not help until logins have a
+ * real secret; see the note there.
+ * <p>
+ * Every appended message is also handed to a {@link SearchIndex}, kept in the same
+ * directory.
+ */
+public class MessageStore implements Closeable {
+
+    private static final String KEY_FILE = "history.key";
+    private static final int IV_LENGTH = CryptoEngine.NONCE_LENGTH;
+    private static final int MAX_OPEN_CONVERSATIONS = 16;
+
+    /**
+     * A stored message. {@code sender} may be null, e.g. for private messages we sent.
+     */
+    public record StoredMessage(long time, String sender, String text, boolean sent) {
+    }
+
+    private final Path directory;
+    private final SecretKey key;
+    private final CryptoEngine engine = CryptoEngine.getInstance();
+    // Least recently used conversations are closed first
+    private final LinkedHashMap<String, ConversationFiles> open = new LinkedHashMap<>(16, 0.75f, true);
+    private final SearchIndex searchIndex;
+
+    private MessageStore(Path directory, SecretKey key) {
+        this.directory = directory;
+        this.key = key;
+        this.searchIndex = new SearchIndex(this, directory);
+    }
+
+    /**
+     * The history directory of a user, under {@code ~/.chifferchat}.
+     */
+    public static Path defaultDirectory(String username) {
+        return historyRoot().resolve(hex(username));
+    }
+
+    /**
+     * The directory holding every user's history directory.
+     */
+    public static Path historyRoot() {
+        return Path.of(System.getProperty("user.home"), ".chifferchat", "history");
+    }
+
+    public static MessageStore open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        MessageStore store = new MessageStore(directory, loadKey(directory.resolve(KEY_FILE)));
+        Map<String, Long> counts = new HashMap<>();
+        for (String conversation : store.conversations()) {
+            counts.put(conversation, store.count(conversation));
+        }
+        store.searchIndex.start(counts);
+        return store;
+    }
+
+    /**
+     * Searches the text of every conversation, see {@link SearchIndex#search}.
+     */
+    public CompletableFuture<List<SearchIndex.Hit>> search(String query, int limit) {
+        return searchIndex.search(query, limit);
+    }
+
+    /**
+     * @return the names of the conversations with stored history
+     */
+    public List<String> conversations() throws IOException {
+        List<String> conversations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.idx")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.equals(SearchIndex.SNAPSHOT_FILE)) {
+                    conversations.add(new String(HexFormat.of().parseHex(name.substring(0, name.length() - 4)),
+                            StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return conversations;
+    }
+
+    /**
+     * Appends a message to a conversation.
+     *
+     * @return its record number, counting from 0
+     */
+    public synchronized long append(String conversation, StoredMessage message) {
+        try {
+            ConversationFiles files = files(conversation);
+            byte[] sealed = seal(conversation, encode(message));
+            long offset = files.log.size();
+            ByteBuffer record = ByteBuffer.allocate(4 + sealed.length);
+            record.putInt(sealed.length).put(sealed).flip();
+            writeFully(files.log, record, offset);
+            // The index entry goes last, so a record only counts once it is complete
+            ByteBuffer entry = ByteBuffer.allocate(8);
+            entry.putLong(offset).flip();
+            writeFully(files.index, entry, files.count * 8);
+            long number = files.count++;
+            searchIndex.add(conversation, number, message.text());
+            return number;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return how many messages a conversation has
+     */
+    public synchronized long count(String conversation) {
+        try {
+            ConversationFiles files = existing(conversation);
+            return files != null ? files.count : 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads up to {@code max} messages starting at record {@code from}, oldest first.
+     */
+    public synchronized List<StoredMessage> read(String conversation, long from, int max) {
+        try {
+            ConversationFiles files = existing(conversation);
+            List<StoredMessage> messages = new ArrayList<>();
+            if (files == null) {
+                return messages;
+            }
+            long to = Math.min(files.count, from + max);
+            if (from < 0 || from >= to) {
+                return messages;
+            }
+            long start = offset(files, from);
+            long end = to < files.count ? offset(files, to) : files.log.size();
+            // The page's records are contiguous in the log
+            ByteBuffer page = ByteBuffer.allocate((int) (end - start));
+            readFully(files.log, page, start);
+            page.flip();
+            while (page.hasRemaining()) {
+                byte[] sealed = new byte[page.getInt()];
+                page.get(sealed);
+                messages.add(decode(unseal(conversation, sealed)));
+            }
+            return messages;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // First, as the index reads from the store while it finishes
+        searchIndex.close();
+        synchronized (this) {
+            for (ConversationFiles files : open.values()) {
+                files.close();
+            }
+            open.clear();
+        }
+    }
+
+    private ConversationFiles files(String conversation) throws IOException {
+        ConversationFiles files = open.get(conversation);
+        if (files != null) {
+            return files;
+        }
+        files = new ConversationFiles(directory.resolve(hex(conversation) + ".log"),
+                directory.resolve(hex(conversation) + ".idx"));
+        open.put(conversation, files);
+        if (open.size() > MAX_OPEN_CONVERSATIONS) {
+            Iterator<ConversationFiles> eldest = open.values().iterator();
+            eldest.next().close();
+            eldest.remove();
+        }
+        return files;
+    }
+
+    // Like files(), but null for a conversation with no history, so reading does not create it
+    private ConversationFiles existing(String conversation) throws IOException {
+        if (!open.containsKey(conversation) && !Files.exists(directory.resolve(hex(conversation) + ".idx"))) {
+            return null;
+        }
+        return files(conversation);
+    }
+
+    private static long offset(ConversationFiles files, long record) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(8);
+        readFully(files.index, entry, record * 8);
+        return entry.getLong(0);
+    }
+
+    // Also used for the search index, with the file name as associated data. The
+    // engine's ciphers are per thread, so this needs no lock.
+    byte[] seal(String conversation, byte[] plain) {
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            engine.nextNonce(iv);
+            byte[] sealed = new byte[IV_LENGTH + plain.length + CryptoEngine.TAG_LENGTH];
+            System.arraycopy(iv, 0, sealed, 0, IV_LENGTH);
+            engine.seal(ByteBuffer.wrap(plain), ByteBuffer.wrap(sealed, IV_LENGTH, sealed.length - IV_LENGTH), key,
+                    new GCMParameterSpec(CryptoEngine.TAG_BITS, iv), conversation.getBytes(StandardCharsets.UTF_8));
+            return sealed;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    byte[] unseal(String conversation, byte[] sealed) {
+        try {
+            byte[] plain = new byte[sealed.length - IV_LENGTH - CryptoEngine.TAG_LENGTH];
+            engine.open(ByteBuffer.wrap(sealed, IV_LENGTH, sealed.length - IV_LENGTH), ByteBuffer.wrap(plain), key,
+                    new GCMParameterSpec(CryptoEngine.TAG_BITS, sealed, 0, IV_LENGTH),
+                    conversation.getBytes(StandardCharsets.UTF_8));
+            return plain;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Plaintext: byte flags (1 = sent, 2 = has sender), long time, sender, text
+    private static byte[] encode(StoredMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + message.text().length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte((message.sent() ? 1 : 0) | (message.sender() != null ? 2 : 0));
+        out.writeLong(message.time());
+        if (message.sender() != null) {
+            writeString(out, message.sender());
+        }
+        writeString(out, message.text());
+        return bytes.toByteArray();
+    }
+
+    private static StoredMessage decode(byte[] plain) {
+        ByteBuffer in = ByteBuffer.wrap(plain);
+        byte flags = in.get();
+        long time = in.getLong();
+        String sender = (flags & 2) != 0 ? readString(in) : null;
+        return new StoredMessage(time, sender, readString(in), (flags & 1) != 0);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static SecretKey loadKey(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            Path temp = path.resolveSibling(KEY_FILE + ".tmp");
+            Files.write(temp, key);
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system; rely on the home directory's permissions
+            }
+            Files.move(temp, path);
+        }
+        return new SecretKeySpec(Files.readAllBytes(path), "AES");
+    }
+
+    private static String hex(String value) {
+        return HexFormat.of().formatHex(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of history file");
+            }
+            position += read;
+        }
+    }
+
+    // The open log and index of one conversation
+    private static class ConversationFiles implements Closeable {
+        final FileChannel log;
+        final FileChannel index;
+        long count;
+
+        ConversationFiles(Path logPath, Path indexPath) throws IOException {
+            log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            index = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            count = index.size() / 8;
+            // Drop a torn index entry, and any record written after the last indexed one
+            index.truncate(count * 8);
+            long end = 0;
+            if (count > 0) {
+                long last = offset(this, count - 1);
+                ByteBuffer length = ByteBuffer.allocate(4);
+                readFully(log, length, last);
+                end = last + 4 + length.getInt(0);
+            }
+            log.truncate(end);
+        }
+
+        @Override
+        public void close() throws IOException {
+            log.close();
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package se.mau.chifferchat.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inverted index over the text of a {@link MessageStore}: every word maps to the
+ * messages containing it, across all conversations.
+ * <p>
+ * The index is updated and queried on its own thread, so callers never wait on
+ * indexing and no locking is needed. Each conversation has a watermark of how many
+ * of its records are indexed; anything past it is read back from the store before a
+ * new message is added, so history written while the index was closed, or lost with
+ * an unsaved snapshot, is picked up again.
+ * <p>
+ * The index is saved as one sealed snapshot on close, and while running whenever
+ * the messages indexed since the last save reach a quarter of the total (but at
+ * least {@link #SNAPSHOT_INTERVAL}), so saving costs a constant amount per message
+ * however large the index grows.
+ */
+public class SearchIndex implements Closeable {
+
+    static final String SNAPSHOT_FILE = "search.idx";
+    private static final int SNAPSHOT_INTERVAL = 1000;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int MIN_TOKEN_LENGTH = 2;
+    private static final int MAX_TOKEN_LENGTH = 32;
+    // Record numbers take the low bits of a posting, the conversation index the rest
+    private static final int RECORD_BITS = 40;
+    private static final long RECORD_MASK = (1L << RECORD_BITS) - 1;
+
+    /**
+     * One message matching a query.
+     */
+    public record Hit(String conversation, long record, MessageStore.StoredMessage message) {
+    }
+
+    private final MessageStore store;
+    private final Path snapshotPath;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "SearchIndex");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Only touched on the executor thread
+    private final List<String> conversations = new ArrayList<>();
+    private final Map<String, Integer> conversationIds = new HashMap<>();
+    private final List<Long> watermarks = new ArrayList<>();
+    private final TreeMap<String, Postings> postings = new TreeMap<>();
+    private long indexed;
+    private long unsaved;
+
+    SearchIndex(MessageStore store, Path directory) {
+        this.store = store;
+        this.snapshotPath = directory.resolve(SNAPSHOT_FILE);
+    }
+
+    /**
+     * Loads the snapshot and indexes whatever the store holds beyond it.
+     *
+     * @param counts the number of records of each stored conversation when it was
+     *               opened, before anything new was appended
+     */
+    void start(Map<String, Long> counts) {
+        executor.execute(() -> {
+            long begin = System.nanoTime();
+            load();
+            clampToStore(counts);
+            counts.forEach(this::catchUp);
+            System.out.println("Search index: " + postings.size() + " words ready in "
+                    + (System.nanoTime() - begin) / 1_000_000 + " ms");
+        });
+    }
+
+    /**
+     * Queues a stored message for indexing.
+     */
+    void add(String conversation, long record, String text) {
+        executor.execute(() -> {
+            catchUp(conversation, record);
+            if (record == watermark(conversation)) {
+                index(conversation, record, text);
+            }
+        });
+    }
+
+    /**
+     * Finds messages containing every word of the query; the last word also matches
+     * as a prefix, so results update while the user types.
+     *
+     * @return the newest matches first, at most {@code limit}
+     */
+    public CompletableFuture<List<Hit>> search(String query, int limit) {
+        return CompletableFuture.supplyAsync(() -> find(query, limit), executor);
+    }
+
+    @Override
+    public void close() {
+        executor.execute(this::save);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Splits text into lower-case words.
+     */
+    static List<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start >= MIN_TOKEN_LENGTH) {
+                    tokens.add(lower.substring(start, Math.min(i, start + MAX_TOKEN_LENGTH)));
+                }
+                start = -1;
+            }
+        }
+        return new ArrayList<>(tokens);
+    }
+
+    private List<Hit> find(String query, int limit) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return List.of();
+        }
+        long[] matches = null;
+        for (int i = 0; i < words.size(); i++) {
+            long[] found = i == words.size() - 1 ? prefixMatches(words.get(i)) : exactMatches(words.get(i));
+            matches = matches == null ? found : intersect(matches, found);
+            if (matches.length == 0) {
+                return List.of();
+            }
+        }
+        // Matches are grouped by conversation, oldest first within each. Read back the
+        // newest few of every conversation and order those by time.
+        List<Hit> hits = new ArrayList<>();
+        int currentId = -1;
+        int taken = 0;
+        for (int i = matches.length - 1; i >= 0; i--) {
+            int id = (int) (matches[i] >>> RECORD_BITS);
+            if (id != currentId) {
+                currentId = id;
+                taken = 0;
+            }
+            if (taken++ >= limit) {
+                continue;
+            }
+            String conversation = conversations.get(id);
+            long record = matches[i] & RECORD_MASK;
+            List<MessageStore.StoredMessage> message = store.read(conversation, record, 1);
+            if (!message.isEmpty()) {
+                hits.add(new Hit(conversation, record, message.get(0)));
+            }
+        }
+        hits.sort(Comparator.comparingLong((Hit hit) -> hit.message().time()).reversed());
+        return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+    }
+
+    private long[] exactMatches(String word) {
+        Postings list = postings.get(word);
+        return list != null ? list.toArray() : new long[0];
+    }
+
+    private long[] prefixMatches(String prefix) {
+        NavigableMap<String, Postings> range = postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        if (range.size() == 1) {
+            return range.firstEntry().getValue().toArray();
+        }
+        int total = 0;
+        for (Postings list : range.values()) {
+            total += list.size;
+        }
+        // Sorted again below, so the lists' own order doesn't matter
+        long[] merged = new long[total];
+        int position = 0;
+        for (Postings list : range.values()) {
+            System.arraycopy(list.values, 0, merged, position, list.size);
+            position += list.size;
+        }
+        // One message may contain several words with the prefix
+        Arrays.sort(merged);
+        int unique = 0;
+        for (int i = 0; i < merged.length; i++) {
+            if (i == 0 || merged[i] != merged[i - 1]) {
+                merged[unique++] = merged[i];
+            }
+        }
+        return Arrays.copyOf(merged, unique);
+    }
+
+    // Both inputs sorted and free of duplicates
+    static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private void catchUp(String conversation, long upTo) {
+        long from = watermark(conversation);
+        while (from < upTo) {
+            List<MessageStore.StoredMessage> page = store.read(conversation, from, (int) Math.min(500, upTo - from));
+            if (page.isEmpty()) {
+                return;
+            }
+            for (MessageStore.StoredMessage message : page) {
+                index(conversation, from++, message.text());
+            }
+        }
+    }
+
+    // The store trims a torn tail when it opens, so the snapshot may cover records that
+    // are gone. Forget those, or new records would never meet the watermark again. The
+    // counts are from before any append, as a new record may already reuse a number.
+    private void clampToStore(Map<String, Long> counts) {
+        long[] limits = new long[conversations.size()];
+        boolean clamped = false;
+        for (int id = 0; id < limits.length; id++) {
+            long watermark = watermarks.get(id);
+            limits[id] = Math.min(watermark, counts.getOrDefault(conversations.get(id), 0L));
+            if (limits[id] < watermark) {
+                System.err.println("Search index ahead of " + conversations.get(id) + ", dropping "
+                        + (watermark - limits[id]) + " records");
+                watermarks.set(id, limits[id]);
+                indexed -= watermark - limits[id];
+                clamped = true;
+            }
+        }
+        if (clamped) {
+            postings.values().removeIf(list -> list.retainBelow(limits) == 0);
+            unsaved++;
+        }
+    }
+
+    private void index(String conversation, long record, String text) {
+        int id = conversationId(conversation);
+        long posting = ((long) id << RECORD_BITS) | record;
+        for (String token : tokenize(text)) {
+            postings.computeIfAbsent(token, t -> new Postings()).add(posting);
+        }
+        watermarks.set(id, record + 1);
+        indexed++;
+        if (++unsaved >= Math.max(SNAPSHOT_INTERVAL, indexed / 4)) {
+            save();
+        }
+    }
+
+    private long watermark(String conversation) {
+        return watermarks.get(conversationId(conversation));
+    }
+
+    private int conversationId(String conversation) {
+        Integer id = conversationIds.get(conversation);
+        if (id == null) {
+            id = conversations.size();
+            conversations.add(conversation);
+            conversationIds.put(conversation, id);
+            watermarks.add(0L);
+        }
+        return id;
+    }
+
+    // Snapshot: version, conversations with their watermarks, then each word and its
+    // postings. A postings list is sorted, so it is stored as deltas.
+    private void save() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(conversations.size());
+            for (int i = 0; i < conversations.size(); i++) {
+                out.writeUTF(conversations.get(i));
+                out.writeLong(watermarks.get(i));
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+                out.writeUTF(entry.getKey());
+                Postings list = entry.getValue();
+                list.sort();
+                out.writeInt(list.size);
+                long previous = 0;
+                for (int i = 0; i < list.size; i++) {
+                    writeVarLong(out, list.values[i] - previous);
+                    previous = list.values[i];
+                }
+            }
+            Path temp = snapshotPath.resolveSibling(SNAPSHOT_FILE + ".tmp");
+            Files.write(temp, store.seal(SNAPSHOT_FILE, bytes.toByteArray()));
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            unsaved = 0;
+        } catch (IOException e) {
+            System.err.println("Failed to save search index: " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    store.unseal(SNAPSHOT_FILE, Files.readAllBytes(snapshotPath))));
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                return;
+            }
+            int conversationCount = in.readInt();
+            for (int i = 0; i < conversationCount; i++) {
+                String conversation = in.readUTF();
+                conversationId(conversation);
+                watermarks.set(i, in.readLong());
+                indexed += watermarks.get(i);
+            }
+            int words = in.readInt();
+            for (int w = 0; w < words; w++) {
+                String word = in.readUTF();
+                Postings list = new Postings(in.readInt());
+                long previous = 0;
+                for (int i = 0; i < list.values.length; i++) {
+                    previous += readVarLong(in);
+                    list.add(previous);
+                }
+                postings.put(word, list);
+            }
+        } catch (Exception e) {
+            // Start over; everything is re-read from the store
+            System.err.println("Search index unreadable, rebuilding: " + e.getMessage());
+            conversations.clear();
+            conversationIds.clear();
+            watermarks.clear();
+            postings.clear();
+            indexed = 0;
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    // A growable array of postings, sorted when read. Records arrive in order within a
+    // conversation, but conversations interleave.
+    private static class Postings {
+        long[] values;
+        int size;
+        boolean sorted = true;
+
+        Postings() {
+            this(4);
+        }
+
+        Postings(int capacity) {
+            values = new long[Math.max(1, capacity)];
+        }
+
+        void add(long posting) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            if (size > 0 && posting < values[size - 1]) {
+                sorted = false;
+            }
+            values[size++] = posting;
+        }
+
+        void sort() {
+            if (!sorted) {
+                Arrays.sort(values, 0, size);
+                sorted = true;
+            }
+        }
+
+        // Keeps the postings under their conversation's limit; order is unchanged
+        int retainBelow(long[] limits) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if ((values[i] & RECORD_MASK) < limits[(int) (values[i] >>> RECORD_BITS)]) {
+                    values[kept++] = values[i];
+                }
+            }
+            size = kept;
+            return size;
+        }
+
+        long[] toArray() {
+            sort();
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package se.mau.chifferchat.client;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which sequence numbers of each conversation this client has seen, so a message
+ * delivered live and again by catch-up or the mailbox is only shown once, while older
+ * messages that arrive after newer ones still are.
+ * <p>
+ * Each conversation keeps a floor, at or below which everything has been seen, and a
+ * bitmap of what has been seen in the {@value #WINDOW} numbers above it. Catch-up asks
+ * for everything after the floor, which fills the gaps; as they fill the floor moves
+ * up. A number more than a window ahead of the floor gives up on the oldest gaps.
+ */
+public final class SeenSequences {
+
+    static final int WINDOW = 4096;
+
+    /**
+     * A conversation's floor and the numbers seen above it, as saved between sessions.
+     */
+    public record Position(long floor, long[] seen) {
+    }
+
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    /**
+     * Records a sequence number.
+     *
+     * @return false if it was already seen
+     */
+    public boolean mark(String conversation, long sequence) {
+        return windows.computeIfAbsent(conversation, k -> new Window(0)).mark(sequence);
+    }
+
+    public boolean contains(String conversation) {
+        return windows.containsKey(conversation);
+    }
+
+    public Set<String> conversations() {
+        return windows.keySet();
+    }
+
+    /**
+     * @return the number below which nothing is missing, where catch-up starts
+     */
+    public long floor(String conversation) {
+        Window window = windows.get(conversation);
+        return window == null ? 0 : window.floor();
+    }
+
+    public Map<String, Position> positions() {
+        Map<String, Position> positions = new HashMap<>();
+        windows.forEach((conversation, window) -> positions.put(conversation, window.position()));
+        return positions;
+    }
+
+    public void restore(Map<String, Position> positions) {
+        positions.forEach((conversation, position) -> {
+            Window window = new Window(position.floor());
+            for (long sequence : position.seen()) {
+                window.mark(sequence);
+            }
+            windows.put(conversation, window);
+        });
+    }
+
+    public void clear() {
+        windows.clear();
+    }
+
+    public int size() {
+        return windows.size();
+    }
+
+    private static final class Window {
+        private long floor;
+        // Bit i is floor + 1 + i
+        private BitSet seen = new BitSet();
+
+        Window(long floor) {
+            this.floor = floor;
+        }
+
+        synchronized boolean mark(long sequence) {
+            if (sequence <= floor) {
+                return false;
+            }
+            long offset = sequence - floor - 1;
+            if (offset >= WINDOW) {
+                advance(offset - WINDOW + 1);
+                offset = WINDOW - 1;
+            }
+            if (seen.get((int) offset)) {
+                return false;
+            }
+            seen.set((int) offset);
+            advance(seen.nextClearBit(0));
+            return true;
+        }
+
+        private void advance(long by) {
+            if (by > 0) {
+                seen = by >= seen.length() ? new BitSet() : seen.get((int) by, seen.length());
+                floor += by;
+            }
+        }
+
+        synchronized long floor() {
+            return floor;
+        }
+
+        synchronized Position position() {
+            return new Position(floor, seen.stream().mapToLong(i -> floor + 1 + i).toArray());
+        }
+    }
+}
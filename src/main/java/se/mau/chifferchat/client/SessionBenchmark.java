@@ -0,0 +1,153 @@
+package se.mau.chifferchat.client;
+
+import se.mau.chifferchat.common.BinaryCodec;
+import se.mau.chifferchat.common.CipherPayload;
+import se.mau.chifferchat.common.Conversation;
+import se.mau.chifferchat.common.Opcode;
+import se.mau.chifferchat.common.Packet;
+import se.mau.chifferchat.crypto.CryptoKeyGenerator;
+import se.mau.chifferchat.crypto.Decryption;
+import se.mau.chifferchat.crypto.Encryption;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Development benchmark comparing the per-message cost of messages that RSA-wrap a
+ * fresh AES key each time with messages under cached {@link SessionKeys}, for a
+ * private chat and for a group. Reports sender and recipient CPU time per message and
+ * the encoded size of the payload in both wire formats. Group members share one RSA
+ * key pair here, as generating hundreds of them would take minutes.
+ * <p>
+ * Usage: {@code SessionBenchmark [--messages=N] [--length=CHARS] [--members=N]}
+ */
+public class SessionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = 2000;
+        int length = 64;
+        int members = 100;
+        for (String arg : args) {
+            if (arg.startsWith("--messages=")) {
+                messages = Integer.parseInt(arg.substring("--messages=".length()));
+            } else if (arg.startsWith("--length=")) {
+                length = Integer.parseInt(arg.substring("--length=".length()));
+            } else if (arg.startsWith("--members=")) {
+                members = Integer.parseInt(arg.substring("--members=".length()));
+            }
+        }
+        String message = "x".repeat(length);
+        KeyPair recipient = CryptoKeyGenerator.generateRSAKeyPair();
+        Map<String, PublicKey> memberKeys = new LinkedHashMap<>();
+        for (int i = 0; i < members; i++) {
+            memberKeys.put("member" + i, recipient.getPublic());
+        }
+
+        // Warm up both paths before measuring
+        runPerMessage(recipient, message, Math.max(1, messages / 10));
+        runSession(recipient, message, Math.max(1, messages / 10));
+
+        System.out.printf("%d messages of %d chars, RSA-4096%n", messages, length);
+        report("per-message RSA", runPerMessage(recipient, message, messages), messages);
+        report("session key", runSession(recipient, message, messages), messages);
+
+        // Per-message wrapping costs one RSA operation per member, so fewer messages
+        int groupMessages = Math.max(10, messages / 10);
+        System.out.printf("%d group messages to %d members%n", groupMessages, members);
+        report("per-message RSA", runGroupPerMessage(recipient, memberKeys, message, groupMessages), groupMessages);
+        report("sender key", runGroupSession(recipient, memberKeys, message, groupMessages), groupMessages);
+    }
+
+    // sender nanos, recipient nanos, text bytes, binary bytes
+    private static long[] runPerMessage(KeyPair recipient, String message, int messages) throws Exception {
+        long[] totals = new long[4];
+        for (int i = 0; i < messages; i++) {
+            long start = System.nanoTime();
+            SecretKey aesKey = CryptoKeyGenerator.generateAESKey();
+            GCMParameterSpec iv = CryptoKeyGenerator.generateIv();
+            byte[] ciphertext = Encryption.sealAES(message, aesKey, iv);
+            byte[] wrapped = Encryption.wrapAESKeyRSA(aesKey, recipient.getPublic());
+            CipherPayload payload = CipherPayload.privateMessage(wrapped, iv.getIV(), ciphertext);
+            long sent = System.nanoTime();
+            SecretKey unwrapped = Decryption.unwrapAESKeyRSA(payload.keyFor("bob"), recipient.getPrivate());
+            Decryption.openAES(payload.getCiphertext(), unwrapped, new GCMParameterSpec(128, payload.getIv()));
+            long received = System.nanoTime();
+            count(totals, payload, sent - start, received - sent);
+        }
+        return totals;
+    }
+
+    private static long[] runSession(KeyPair recipient, String message, int messages) throws Exception {
+        SessionKeys sender = new SessionKeys();
+        SessionKeys receiver = new SessionKeys();
+        long[] totals = new long[4];
+        for (int i = 0; i < messages; i++) {
+            long start = System.nanoTime();
+            CipherPayload payload = sender.sealPrivate("bob", recipient.getPublic(), message);
+            long sent = System.nanoTime();
+            receiver.open(payload, Conversation.withUser("alice"), "alice", "bob", recipient.getPrivate());
+            long received = System.nanoTime();
+            count(totals, payload, sent - start, received - sent);
+        }
+        return totals;
+    }
+
+    private static long[] runGroupPerMessage(KeyPair member, Map<String, PublicKey> memberKeys, String message,
+                                             int messages) throws Exception {
+        long[] totals = new long[4];
+        for (int i = 0; i < messages; i++) {
+            long start = System.nanoTime();
+            SecretKey aesKey = CryptoKeyGenerator.generateAESKey();
+            GCMParameterSpec iv = CryptoKeyGenerator.generateIv();
+            byte[] ciphertext = Encryption.sealAES(message, aesKey, iv);
+            List<CipherPayload.WrappedKey> keys = new ArrayList<>();
+            for (Map.Entry<String, PublicKey> key : memberKeys.entrySet()) {
+                keys.add(new CipherPayload.WrappedKey(key.getKey(), Encryption.wrapAESKeyRSA(aesKey, key.getValue())));
+            }
+            CipherPayload payload = CipherPayload.groupMessage(keys, iv.getIV(), ciphertext);
+            long sent = System.nanoTime();
+            SecretKey unwrapped = Decryption.unwrapAESKeyRSA(payload.keyFor("member0"), member.getPrivate());
+            Decryption.openAES(payload.getCiphertext(), unwrapped, new GCMParameterSpec(128, payload.getIv()));
+            long received = System.nanoTime();
+            count(totals, payload, sent - start, received - sent);
+        }
+        return totals;
+    }
+
+    private static long[] runGroupSession(KeyPair member, Map<String, PublicKey> memberKeys, String message,
+                                          int messages) throws Exception {
+        SessionKeys sender = new SessionKeys();
+        SessionKeys receiver = new SessionKeys();
+        long[] totals = new long[4];
+        for (int i = 0; i < messages; i++) {
+            long start = System.nanoTime();
+            CipherPayload payload = sender.sealGroup("group", 0, memberKeys, message);
+            long sent = System.nanoTime();
+            receiver.open(payload, Conversation.group("group"), "alice", "member0", member.getPrivate());
+            long received = System.nanoTime();
+            count(totals, payload, sent - start, received - sent);
+        }
+        return totals;
+    }
+
+    // Sizes are of a PRIVATE_MSG frame; a GROUP_MSG with a group id of the same length
+    // encodes to the same size
+    private static void count(long[] totals, CipherPayload payload, long senderNanos, long recipientNanos) {
+        totals[0] += senderNanos;
+        totals[1] += recipientNanos;
+        totals[2] += payload.toText().length();
+        totals[3] += BinaryCodec.encode(Packet.of(Opcode.PRIVATE_MSG, "bob", payload)).length;
+    }
+
+    private static void report(String name, long[] totals, int messages) {
+        System.out.printf("%-16s sender %8.1f us  recipient %8.1f us  text %5d B  binary frame %5d B%n", name,
+                totals[0] / 1000.0 / messages, totals[1] / 1000.0 / messages, totals[2] / messages,
+                totals[3] / messages);
+    }
+}
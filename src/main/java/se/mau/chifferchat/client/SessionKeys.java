@@ -0,0 +1,214 @@
+package se.mau.chifferchat.client;
+
+import se.mau.chifferchat.common.CipherPayload;
+import se.mau.chifferchat.crypto.CryptoKeyGenerator;
+import se.mau.chifferchat.crypto.CryptoSuite;
+import se.mau.chifferchat.crypto.Decryption;
+import se.mau.chifferchat.crypto.Encryption;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session keys for private and group messages, so the public-key operations run once
+ * per session instead of once per message.
+ * <p>
+ * The first message to a user starts a session: a fresh AES key, wrapped for the
+ * recipient with their key's {@link CryptoSuite} and sent along with that message
+ * only. Later messages name the key by its id and use the message counter as GCM
+ * nonce, which never repeats because every session has its own key. Sessions run one
+ * way, from sender to recipient. A new one starts after {@link #MAX_MESSAGES}
+ * messages, after {@link #MAX_AGE_MILLIS}, or when the recipient's public key
+ * changes.
+ * <p>
+ * Groups work the same way with one sender key per group and membership epoch: it is
+ * wrapped for each member the first time they are sent a message under it, so after
+ * the first message only members whose key arrived late cost a public-key operation.
+ * A new epoch, i.e. a member joining or leaving, always starts a new key, so members
+ * only read what was sent while they were in the group.
+ * <p>
+ * Received session keys are kept in memory by conversation, sender and id, so a key
+ * is only ever used for messages from whoever sent it, in the chat it was sent to.
+ * Identity keys outlive a restart, so when a user comes back online their next
+ * message from us carries the key again, see {@link #rejoined(String)}.
+ */
+public class SessionKeys {
+
+    public static final int MAX_MESSAGES = 1000;
+    public static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final int KEY_ID_LENGTH = 16;
+    // Received keys kept; the least recently used is forgotten first
+    private static final int MAX_RECEIVED_KEYS = 4096;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, PrivateSession> sessions = new HashMap<>();
+    private final Map<String, GroupSession> groupSessions = new HashMap<>();
+    private final LinkedHashMap<String, SecretKey> received = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+            return size() > MAX_RECEIVED_KEYS;
+        }
+    };
+
+    // One outgoing session
+    private static class Session {
+        final byte[] id;
+        final SecretKey key;
+        final long startedAt = System.currentTimeMillis();
+        long sent;
+
+        Session(byte[] id, SecretKey key) {
+            this.id = id;
+            this.key = key;
+        }
+
+        boolean expired() {
+            return sent >= MAX_MESSAGES || System.currentTimeMillis() - startedAt >= MAX_AGE_MILLIS;
+        }
+    }
+
+    private static class PrivateSession extends Session {
+        final PublicKey recipientKey;
+        final byte[] wrappedKey;
+        // Send the wrapped key again with the next message
+        boolean resend;
+
+        PrivateSession(byte[] id, SecretKey key, PublicKey recipientKey, byte[] wrappedKey) {
+            super(id, key);
+            this.recipientKey = recipientKey;
+            this.wrappedKey = wrappedKey;
+        }
+    }
+
+    private static class GroupSession extends Session {
+        final long epoch;
+        // Members the key was sent to, with the public key it was wrapped for
+        final Map<String, PublicKey> holders = new HashMap<>();
+
+        GroupSession(byte[] id, SecretKey key, long epoch) {
+            super(id, key);
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * Encrypts a private message, starting a new session with the recipient if needed.
+     */
+    public synchronized CipherPayload sealPrivate(String recipient, PublicKey recipientKey, String message)
+            throws Exception {
+        PrivateSession session = sessions.get(recipient);
+        if (session == null || !session.recipientKey.equals(recipientKey) || session.expired()) {
+            SecretKey key = CryptoKeyGenerator.generateAESKey();
+            session = new PrivateSession(newId(), key, recipientKey,
+                    CryptoSuite.forKey(recipientKey).wrapKey(key, recipientKey));
+            sessions.put(recipient, session);
+        }
+        List<CipherPayload.WrappedKey> keys = session.sent == 0 || session.resend
+                ? List.of(new CipherPayload.WrappedKey("", session.wrappedKey))
+                : List.of();
+        session.resend = false;
+        return seal(session, keys, message);
+    }
+
+    /**
+     * Encrypts a group message under our sender key for the group, wrapping it for
+     * the members that don't have it yet.
+     *
+     * @param epoch      the group's membership epoch, see {@link se.mau.chifferchat.common.Group#getEpoch()}
+     * @param memberKeys public keys of the members to send to, not including ourselves
+     */
+    public synchronized CipherPayload sealGroup(String groupId, long epoch, Map<String, PublicKey> memberKeys,
+                                                String message) throws Exception {
+        GroupSession session = groupSessions.get(groupId);
+        // Someone who holds the key but is no longer sent to has left, even if we
+        // haven't heard of the new epoch yet
+        if (session == null || session.epoch != epoch || session.expired()
+                || !memberKeys.keySet().containsAll(session.holders.keySet())) {
+            session = new GroupSession(newId(), CryptoKeyGenerator.generateAESKey(), epoch);
+            groupSessions.put(groupId, session);
+        }
+        List<CipherPayload.WrappedKey> keys = new ArrayList<>();
+        for (Map.Entry<String, PublicKey> member : memberKeys.entrySet()) {
+            if (!member.getValue().equals(session.holders.get(member.getKey()))) {
+                keys.add(new CipherPayload.WrappedKey(member.getKey(),
+                        CryptoSuite.forKey(member.getValue()).wrapKey(session.key, member.getValue())));
+                session.holders.put(member.getKey(), member.getValue());
+            }
+        }
+        return seal(session, keys, message);
+    }
+
+    /**
+     * Makes our next private and group messages to {@code user} carry the session
+     * key again, for when they restarted and lost the keys they had received. No new
+     * public-key operation is needed for a private session; a group key is wrapped again.
+     */
+    public synchronized void rejoined(String user) {
+        PrivateSession session = sessions.get(user);
+        if (session != null) {
+            session.resend = true;
+        }
+        for (GroupSession groupSession : groupSessions.values()) {
+            groupSession.holders.remove(user);
+        }
+    }
+
+    private CipherPayload seal(Session session, List<CipherPayload.WrappedKey> keys, String message)
+            throws Exception {
+        GCMParameterSpec iv = nonce(session.sent++);
+        byte[] ciphertext = Encryption.sealAES(message.getBytes(StandardCharsets.UTF_8), session.key, iv, session.id);
+        return CipherPayload.session(session.id, keys, iv.getIV(), ciphertext);
+    }
+
+    private byte[] newId() {
+        byte[] id = new byte[KEY_ID_LENGTH];
+        random.nextBytes(id);
+        return id;
+    }
+
+    /**
+     * Decrypts a {@link CipherPayload.Format#SESSION} payload.
+     *
+     * @return the plaintext, or null if we don't have its session key and it carries
+     * none for us
+     */
+    public String open(CipherPayload payload, String conversation, String sender, String me, PrivateKey privateKey)
+            throws Exception {
+        String id = conversation + '\n' + sender + '\n' + HexFormat.of().formatHex(payload.getKeyId());
+        SecretKey key;
+        synchronized (this) {
+            key = received.get(id);
+        }
+        if (key == null) {
+            byte[] wrapped = payload.keyFor(me);
+            if (wrapped == null) {
+                return null;
+            }
+            key = CryptoSuite.forKey(privateKey).unwrapKey(wrapped, privateKey);
+            synchronized (this) {
+                received.put(id, key);
+            }
+        }
+        byte[] plain = Decryption.openAES(payload.getCiphertext(), key, new GCMParameterSpec(128, payload.getIv()),
+                payload.getKeyId());
+        return new String(plain, StandardCharsets.UTF_8);
+    }
+
+    // 12-byte GCM nonce: four zero bytes, then the counter
+    private static GCMParameterSpec nonce(long counter) {
+        return new GCMParameterSpec(128, ByteBuffer.allocate(12).putInt(0).putLong(counter).array());
+    }
+}
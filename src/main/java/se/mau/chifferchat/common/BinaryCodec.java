@@ -0,0 +1,295 @@
+package se.mau.chifferchat.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Length-prefixed binary frames, negotiated as {@value #PROTOCOL} in the login
+ * handshake.
+ * <pre>
+ * int32  length of the rest of the frame (at most {@link #MAX_FRAME_SIZE})
+ * byte   version ({@value #VERSION})
+ * byte   opcode, see {@link Opcode}
+ * ...    fields in {@link Opcode#fields()} order:
+ *        STRING      int32 length + UTF-8
+ *        BYTES       int32 length + raw bytes
+ *        STRING_LIST int32 count + STRING*
+ *        GROUP_LIST  int32 count + (STRING id, STRING name, int32 members, int64 epoch)*
+ *        PAYLOAD     byte format, then
+ *                    OPAQUE:      STRING
+ *                    RSA_AES_GCM: int32 count + (STRING recipient, BYTES key)*, BYTES iv, BYTES ciphertext
+ *                    SESSION:     BYTES key id, then as RSA_AES_GCM
+ *        LONG        int64
+ *        KEY_LIST    int32 count + (STRING username, BYTES key)*
+ * </pre>
+ */
+public final class BinaryCodec {
+
+    public static final String PROTOCOL = "bin1";
+    public static final int VERSION = 1;
+    public static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+    /**
+     * Most a chat payload and the names sent with it may take up. The server relays it
+     * with the sender and a sequence number added, which must still fit in a frame.
+     */
+    public static final int MAX_CHAT_PAYLOAD = MAX_FRAME_SIZE - 64 * 1024;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encodes a complete frame, including its length prefix.
+     */
+    public static byte[] encode(Packet packet) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0); // patched below
+            out.writeByte(VERSION);
+            out.writeByte(packet.opcode().code());
+            Opcode.FieldType[] types = packet.opcode().fields();
+            for (int i = 0; i < types.length; i++) {
+                switch (types[i]) {
+                    case STRING -> writeString(out, packet.string(i));
+                    case BYTES -> writeBytes(out, packet.bytes(i));
+                    case STRING_LIST -> {
+                        List<String> strings = packet.strings(i);
+                        out.writeInt(strings.size());
+                        for (String s : strings) {
+                            writeString(out, s);
+                        }
+                    }
+                    case GROUP_LIST -> {
+                        List<GroupSummary> groups = packet.groups(i);
+                        out.writeInt(groups.size());
+                        for (GroupSummary g : groups) {
+                            writeString(out, g.groupId());
+                            writeString(out, g.groupName());
+                            out.writeInt(g.memberCount());
+                            out.writeLong(g.epoch());
+                        }
+                    }
+                    case PAYLOAD -> writePayload(out, packet.payload(i));
+                    case LONG -> out.writeLong(packet.longValue(i));
+                    case KEY_LIST -> {
+                        List<UserKey> keys = packet.keys(i);
+                        out.writeInt(keys.size());
+                        for (UserKey key : keys) {
+                            writeString(out, key.username());
+                            writeBytes(out, key.key());
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new UncheckedIOException(e);
+        }
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - 4;
+        if (length > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Frame too large: " + length + " bytes");
+        }
+        ByteBuffer.wrap(frame).putInt(0, length);
+        return frame;
+    }
+
+    /**
+     * The number of bytes {@code payload} takes up in a frame, without encoding it.
+     */
+    public static long payloadLength(CipherPayload payload) {
+        if (payload.getFormat() == CipherPayload.Format.OPAQUE) {
+            return 1 + 4 + utf8Length(payload.getText());
+        }
+        long length = 1 + 4;
+        if (payload.getFormat() == CipherPayload.Format.SESSION) {
+            length += 4 + payload.getKeyId().length;
+        }
+        for (CipherPayload.WrappedKey key : payload.getKeys()) {
+            length += 4 + utf8Length(key.recipient()) + 4 + key.key().length;
+        }
+        return length + 4 + payload.getIv().length + 4 + payload.getCiphertext().length;
+    }
+
+    /**
+     * The number of bytes {@code s} takes up in UTF-8, without encoding it.
+     */
+    public static long utf8Length(String s) {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Decodes one frame body, i.e. everything after the length prefix.
+     */
+    public static Packet decode(ByteBuffer body) throws ProtocolException {
+        try {
+            int version = body.get() & 0xFF;
+            if (version != VERSION) {
+                throw new ProtocolException("Unsupported frame version " + version);
+            }
+            Opcode opcode = Opcode.fromCode(body.get() & 0xFF);
+            if (opcode == null) {
+                throw new ProtocolException("Unknown opcode");
+            }
+            Opcode.FieldType[] types = opcode.fields();
+            Object[] fields = new Object[types.length];
+            for (int i = 0; i < types.length; i++) {
+                fields[i] = switch (types[i]) {
+                    case STRING -> readString(body);
+                    case BYTES -> readBytes(body);
+                    case STRING_LIST -> {
+                        int count = readCount(body);
+                        List<String> strings = new ArrayList<>(count);
+                        for (int n = 0; n < count; n++) {
+                            strings.add(readString(body));
+                        }
+                        yield strings;
+                    }
+                    case GROUP_LIST -> {
+                        int count = readCount(body);
+                        List<GroupSummary> groups = new ArrayList<>(count);
+                        for (int n = 0; n < count; n++) {
+                            groups.add(new GroupSummary(readString(body), readString(body), body.getInt(),
+                                    body.getLong()));
+                        }
+                        yield groups;
+                    }
+                    case PAYLOAD -> readPayload(body);
+                    case LONG -> body.getLong();
+                    case KEY_LIST -> {
+                        int count = readCount(body);
+                        List<UserKey> keys = new ArrayList<>(count);
+                        for (int n = 0; n < count; n++) {
+                            keys.add(new UserKey(readString(body), readBytes(body)));
+                        }
+                        yield keys;
+                    }
+                };
+            }
+            if (body.hasRemaining()) {
+                throw new ProtocolException("Trailing bytes in " + opcode + " frame");
+            }
+            return Packet.of(opcode, fields);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated frame");
+        }
+    }
+
+    /**
+     * Reads frames from a blocking stream.
+     */
+    public static PacketReader reader(InputStream in) {
+        DataInputStream data = new DataInputStream(in);
+        return () -> {
+            int length;
+            try {
+                length = data.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (length < 2 || length > MAX_FRAME_SIZE) {
+                throw new ProtocolException("Invalid frame length " + length);
+            }
+            byte[] body = new byte[length];
+            data.readFully(body);
+            return decode(ByteBuffer.wrap(body));
+        };
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writePayload(DataOutputStream out, CipherPayload payload) throws IOException {
+        out.writeByte(payload.getFormat().code());
+        if (payload.getFormat() == CipherPayload.Format.OPAQUE) {
+            writeString(out, payload.getText());
+            return;
+        }
+        if (payload.getFormat() == CipherPayload.Format.SESSION) {
+            writeBytes(out, payload.getKeyId());
+        }
+        out.writeInt(payload.getKeys().size());
+        for (CipherPayload.WrappedKey key : payload.getKeys()) {
+            writeString(out, key.recipient());
+            writeBytes(out, key.key());
+        }
+        writeBytes(out, payload.getIv());
+        writeBytes(out, payload.getCiphertext());
+    }
+
+    // Lengths are checked against what is left so a bad prefix can't trigger a huge allocation
+    private static int readCount(ByteBuffer in) throws ProtocolException {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new ProtocolException("Invalid length " + count);
+        }
+        return count;
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws ProtocolException {
+        byte[] bytes = new byte[readCount(in)];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer in) throws ProtocolException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static CipherPayload readPayload(ByteBuffer in) throws ProtocolException {
+        CipherPayload.Format format = CipherPayload.Format.fromCode(in.get() & 0xFF);
+        if (format == null) {
+            throw new ProtocolException("Unknown payload format");
+        }
+        if (format == CipherPayload.Format.OPAQUE) {
+            return CipherPayload.opaque(readString(in));
+        }
+        byte[] keyId = format == CipherPayload.Format.SESSION ? readBytes(in) : null;
+        int count = readCount(in);
+        List<CipherPayload.WrappedKey> keys = new ArrayList<>(count);
+        for (int n = 0; n < count; n++) {
+            keys.add(new CipherPayload.WrappedKey(readString(in), readBytes(in)));
+        }
+        byte[] iv = readBytes(in);
+        byte[] ciphertext = readBytes(in);
+        if (keyId != null) {
+            return CipherPayload.session(keyId, keys, iv, ciphertext);
+        }
+        if (keys.size() == 1 && keys.get(0).recipient().isEmpty()) {
+            return CipherPayload.privateMessage(keys.get(0).key(), iv, ciphertext);
+        }
+        return CipherPayload.groupMessage(keys, iv, ciphertext);
+    }
+}
@@ -0,0 +1,222 @@
+package se.mau.chifferchat.common;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * The encrypted body of a private or group message. The server relays it without
+ * looking inside; it only exists as a type so binary frames can carry the raw key,
+ * IV and ciphertext bytes instead of the Base64 text form.
+ * <p>
+ * Text forms: private {@code key:iv:ciphertext}, group
+ * {@code user1:key1|user2:key2|...|iv:ciphertext}, session
+ * {@code ~keyId~[recipient:key|...]iv:ciphertext}, all Base64. Anything else is
+ * carried verbatim as {@link Format#OPAQUE}.
+ */
+public final class CipherPayload {
+
+    public enum Format {
+        OPAQUE(0),
+        RSA_AES_GCM(1),
+        /**
+         * AES-GCM under a cached session key named by a key id. The key itself travels
+         * RSA-wrapped only in the messages that start a session.
+         */
+        SESSION(2);
+
+        private final int code;
+
+        Format(int code) {
+            this.code = code;
+        }
+
+        public int code() {
+            return code;
+        }
+
+        public static Format fromCode(int code) {
+            for (Format format : values()) {
+                if (format.code == code) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * An AES key wrapped for one recipient. Private messages use a single entry with
+     * an empty recipient.
+     */
+    public record WrappedKey(String recipient, byte[] key) {
+    }
+
+    private static final String SESSION_MARK = "~";
+
+    private final Format format;
+    private final String text;
+    private final byte[] keyId;
+    private final List<WrappedKey> keys;
+    private final byte[] iv;
+    private final byte[] ciphertext;
+
+    private CipherPayload(Format format, String text, byte[] keyId, List<WrappedKey> keys, byte[] iv,
+                          byte[] ciphertext) {
+        this.format = format;
+        this.text = text;
+        this.keyId = keyId;
+        this.keys = keys;
+        this.iv = iv;
+        this.ciphertext = ciphertext;
+    }
+
+    public static CipherPayload opaque(String text) {
+        return new CipherPayload(Format.OPAQUE, text, null, List.of(), null, null);
+    }
+
+    public static CipherPayload privateMessage(byte[] wrappedKey, byte[] iv, byte[] ciphertext) {
+        return new CipherPayload(Format.RSA_AES_GCM, null, null, List.of(new WrappedKey("", wrappedKey)), iv,
+                ciphertext);
+    }
+
+    public static CipherPayload groupMessage(List<WrappedKey> keys, byte[] iv, byte[] ciphertext) {
+        return new CipherPayload(Format.RSA_AES_GCM, null, null, List.copyOf(keys), iv, ciphertext);
+    }
+
+    /**
+     * A message under session key {@code keyId}; {@code keys} holds the session key
+     * wrapped for its recipients when the message starts a session, and is empty
+     * otherwise.
+     */
+    public static CipherPayload session(byte[] keyId, List<WrappedKey> keys, byte[] iv, byte[] ciphertext) {
+        return new CipherPayload(Format.SESSION, null, keyId, List.copyOf(keys), iv, ciphertext);
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Verbatim text of an {@link Format#OPAQUE} payload.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Id of the session key of a {@link Format#SESSION} payload.
+     */
+    public byte[] getKeyId() {
+        return keyId;
+    }
+
+    public List<WrappedKey> getKeys() {
+        return keys;
+    }
+
+    public byte[] getIv() {
+        return iv;
+    }
+
+    public byte[] getCiphertext() {
+        return ciphertext;
+    }
+
+    /**
+     * Finds the wrapped key meant for this user: the only key of a private message,
+     * or the user's own entry in a group message.
+     *
+     * @return the wrapped key, or null if there is none for this user
+     */
+    public byte[] keyFor(String username) {
+        if (keys.size() == 1 && keys.get(0).recipient().isEmpty()) {
+            return keys.get(0).key();
+        }
+        for (WrappedKey key : keys) {
+            if (key.recipient().equals(username)) {
+                return key.key();
+            }
+        }
+        return null;
+    }
+
+    public static CipherPayload parseText(String text) {
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            if (text.startsWith(SESSION_MARK)) {
+                int end = text.indexOf(SESSION_MARK, 1);
+                if (end > 1) {
+                    byte[] keyId = decoder.decode(text.substring(1, end));
+                    String[] segments = text.substring(end + 1).split("\\|");
+                    List<WrappedKey> keys = new ArrayList<>();
+                    for (int i = 0; i < segments.length - 1; i++) {
+                        int c = segments[i].indexOf(':');
+                        keys.add(new WrappedKey(segments[i].substring(0, c),
+                                decoder.decode(segments[i].substring(c + 1))));
+                    }
+                    String last = segments[segments.length - 1];
+                    int idx = last.indexOf(':');
+                    if (idx > 0) {
+                        return session(keyId, keys, decoder.decode(last.substring(0, idx)),
+                                decoder.decode(last.substring(idx + 1)));
+                    }
+                }
+            } else if (text.contains("|")) {
+                String[] segments = text.split("\\|");
+                String last = segments[segments.length - 1];
+                int idx = last.indexOf(':');
+                if (segments.length >= 2 && idx > 0) {
+                    List<WrappedKey> keys = new ArrayList<>();
+                    for (int i = 0; i < segments.length - 1; i++) {
+                        int c = segments[i].indexOf(':');
+                        if (c > 0) {
+                            keys.add(new WrappedKey(segments[i].substring(0, c),
+                                    decoder.decode(segments[i].substring(c + 1))));
+                        }
+                    }
+                    return groupMessage(keys, decoder.decode(last.substring(0, idx)),
+                            decoder.decode(last.substring(idx + 1)));
+                }
+            } else if (text.contains(":")) {
+                String[] parts = text.split(":", 3);
+                if (parts.length == 3) {
+                    return privateMessage(decoder.decode(parts[0]), decoder.decode(parts[1]),
+                            decoder.decode(parts[2]));
+                }
+            }
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+            // Not Base64; fall through and relay as-is
+        }
+        return opaque(text);
+    }
+
+    public String toText() {
+        if (format == Format.OPAQUE) {
+            return text;
+        }
+        Base64.Encoder encoder = Base64.getEncoder();
+        String body = encoder.encodeToString(iv) + ":" + encoder.encodeToString(ciphertext);
+        if (format == Format.SESSION) {
+            StringBuilder sb = new StringBuilder(SESSION_MARK)
+                    .append(encoder.encodeToString(keyId)).append(SESSION_MARK);
+            for (WrappedKey key : keys) {
+                sb.append(key.recipient()).append(':').append(encoder.encodeToString(key.key())).append('|');
+            }
+            return sb.append(body).toString();
+        }
+        if (keys.size() == 1 && keys.get(0).recipient().isEmpty()) {
+            return encoder.encodeToString(keys.get(0).key()) + ":" + body;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (WrappedKey key : keys) {
+            sb.append(key.recipient()).append(':').append(encoder.encodeToString(key.key())).append('|');
+        }
+        return sb.append(body).toString();
+    }
+
+    @Override
+    public String toString() {
+        return format == Format.OPAQUE ? text : format + "(" + keys.size() + " keys, " + ciphertext.length + " bytes)";
+    }
+}
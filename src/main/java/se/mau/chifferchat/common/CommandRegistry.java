@@ -0,0 +1,114 @@
+package se.mau.chifferchat.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Maps each {@link Opcode} to its handler. Dispatch is an array lookup by opcode, so
+ * the cost is the same however many commands are registered. Counts calls and time
+ * spent per command. Used by both the server and the client.
+ *
+ * @param <C> what the handlers act on, e.g. the connection a packet came from
+ */
+public class CommandRegistry<C> {
+
+    @FunctionalInterface
+    public interface PacketHandler<C> {
+        void handle(C context, Packet packet);
+    }
+
+    /**
+     * Snapshot of one command's counters.
+     */
+    public record CommandStats(Opcode opcode, long count, long totalNanos, long maxNanos) {
+
+        public long averageNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-18s %8d calls  avg %8d ns  max %10d ns", opcode, count, averageNanos(),
+                    maxNanos);
+        }
+    }
+
+    private static final Opcode[] OPCODES = Opcode.values();
+
+    private final String name;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final PacketHandler<C>[] handlers = new PacketHandler[OPCODES.length];
+    private final LongAdder[] counts = new LongAdder[OPCODES.length];
+    private final LongAdder[] nanos = new LongAdder[OPCODES.length];
+    private final AtomicLong[] maxNanos = new AtomicLong[OPCODES.length];
+    private PacketHandler<C> fallback;
+
+    public CommandRegistry(String name) {
+        this.name = name;
+        for (int i = 0; i < OPCODES.length; i++) {
+            counts[i] = new LongAdder();
+            nanos[i] = new LongAdder();
+            maxNanos[i] = new AtomicLong();
+        }
+    }
+
+    public CommandRegistry<C> register(Opcode opcode, PacketHandler<C> handler) {
+        if (handlers[opcode.ordinal()] != null) {
+            throw new IllegalStateException(name + ": " + opcode + " is already registered");
+        }
+        handlers[opcode.ordinal()] = handler;
+        return this;
+    }
+
+    /**
+     * Handler for opcodes nobody registered, e.g. a server-only opcode sent by a client.
+     */
+    public CommandRegistry<C> otherwise(PacketHandler<C> handler) {
+        this.fallback = handler;
+        return this;
+    }
+
+    public void dispatch(C context, Packet packet) {
+        int index = packet.opcode().ordinal();
+        PacketHandler<C> handler = handlers[index];
+        if (handler == null) {
+            if (fallback != null) {
+                fallback.handle(context, packet);
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            handler.handle(context, packet);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            counts[index].increment();
+            nanos[index].add(elapsed);
+            maxNanos[index].accumulateAndGet(elapsed, Math::max);
+        }
+    }
+
+    /**
+     * Counters for every registered command that has been called at least once.
+     */
+    public List<CommandStats> stats() {
+        List<CommandStats> stats = new ArrayList<>();
+        for (int i = 0; i < OPCODES.length; i++) {
+            long count = counts[i].sum();
+            if (count > 0) {
+                stats.add(new CommandStats(OPCODES[i], count, nanos[i].sum(), maxNanos[i].get()));
+            }
+        }
+        return stats;
+    }
+
+    public String formatStats() {
+        StringBuilder sb = new StringBuilder(name).append(" commands:");
+        for (CommandStats stats : stats()) {
+            sb.append("\n  ").append(stats);
+        }
+        return sb.toString();
+    }
+}
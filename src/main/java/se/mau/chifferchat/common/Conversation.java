@@ -0,0 +1,88 @@
+package se.mau.chifferchat.common;
+
+/**
+ * Names for the conversations the server keeps history for. A group is keyed by its
+ * id; a private conversation by the two usernames in a fixed order, so both
+ * participants resolve to the same key.
+ * <p>
+ * On the wire a client names a private conversation by the other participant
+ * ({@code u:<peer>}); {@link #resolve} maps that to the shared key.
+ */
+public final class Conversation {
+
+    public static final String BROADCAST = "all";
+
+    private static final String GROUP_PREFIX = "g:";
+    private static final String DIRECT_PREFIX = "d:";
+    private static final String PEER_PREFIX = "u:";
+    // Can't appear in a username, which always arrives on a single line
+    private static final char SEPARATOR = '\n';
+
+    private Conversation() {
+    }
+
+    public static String group(String groupId) {
+        return GROUP_PREFIX + groupId;
+    }
+
+    public static String direct(String user, String otherUser) {
+        return user.compareTo(otherUser) <= 0
+                ? DIRECT_PREFIX + user + SEPARATOR + otherUser
+                : DIRECT_PREFIX + otherUser + SEPARATOR + user;
+    }
+
+    /**
+     * The client-side name of a private conversation with {@code peer}.
+     */
+    public static String withUser(String peer) {
+        return PEER_PREFIX + peer;
+    }
+
+    /**
+     * Maps a name sent by a client to the conversation it refers to.
+     *
+     * @return the conversation, or null if the name is not valid
+     */
+    public static String resolve(String name, String me) {
+        if (name.equals(BROADCAST) || name.startsWith(GROUP_PREFIX) && name.length() > GROUP_PREFIX.length()) {
+            return name;
+        }
+        if (name.startsWith(PEER_PREFIX) && name.length() > PEER_PREFIX.length()) {
+            return direct(me, name.substring(PEER_PREFIX.length()));
+        }
+        return null;
+    }
+
+    public static boolean isGroup(String conversation) {
+        return conversation.startsWith(GROUP_PREFIX);
+    }
+
+    public static boolean isDirect(String conversation) {
+        return conversation.startsWith(DIRECT_PREFIX);
+    }
+
+    /**
+     * @return the group id of a group conversation
+     */
+    public static String groupId(String conversation) {
+        return conversation.substring(GROUP_PREFIX.length());
+    }
+
+    /**
+     * @return the participant that isn't {@code me} in a private conversation
+     */
+    public static String peer(String conversation, String me) {
+        int split = conversation.indexOf(SEPARATOR);
+        String first = conversation.substring(DIRECT_PREFIX.length(), split);
+        return first.equals(me) ? conversation.substring(split + 1) : first;
+    }
+
+    public static boolean includes(String conversation, String username) {
+        if (!isDirect(conversation)) {
+            return false;
+        }
+        int split = conversation.indexOf(SEPARATOR);
+        return conversation.substring(DIRECT_PREFIX.length(), split).equals(username)
+                || conversation.substring(split + 1).equals(username);
+    }
+}
@@ -11,6 +11,8 @@ public class Group implements Serializable {
     private final String creator;
     private final List<String> members;
     private final long createdAt;
+    // Bumped whenever the member list changes, see getEpoch()
+    private long epoch;
 
     public Group(String groupName, String creator) {
         this.groupId = UUID.randomUUID().toString();
@@ -30,6 +32,12 @@ public class Group implements Serializable {
         this.createdAt = createdAt;
     }
 
+    public Group(String groupId, String groupName, String creator, List<String> members, long createdAt,
+                 long epoch) {
+        this(groupId, groupName, creator, members, createdAt);
+        this.epoch = epoch;
+    }
+
     public String getGroupId() {
         return groupId;
     }
@@ -42,6 +50,22 @@ public class Group implements Serializable {
         return creator;
     }
 
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * The membership epoch: starts at 0 and advances each time a member is added or
+     * removed. Group message keys are only ever shared with the members of one epoch.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
     public List<String> getMembers() {
         return new ArrayList<>(members);
     }
@@ -62,11 +86,14 @@ public class Group implements Serializable {
     public void addMember(String username) {
         if (!members.contains(username)) {
             members.add(username);
+            epoch++;
         }
     }
 
     public void removeMember(String username) {
-        members.remove(username);
+        if (members.remove(username)) {
+            epoch++;
+        }
     }
 
     public boolean hasMember(String username) {
@@ -0,0 +1,12 @@
+package se.mau.chifferchat.common;
+
+/**
+ * One entry of a {@code /groups} listing.
+ */
+public record GroupSummary(String groupId, String groupName, int memberCount, long epoch) {
+
+    public static GroupSummary of(Group group) {
+        return new GroupSummary(group.getGroupId(), group.getGroupName(), group.getMemberCount(),
+                group.getEpoch());
+    }
+}
@@ -0,0 +1,95 @@
+package se.mau.chifferchat.common;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The first line a client sends. Old clients send just their username and stay on
+ * the text protocol; new clients send {@code /hello bin1 <username> [suites]} and switch
+ * to binary frames once the server has answered {@code /hello bin1 [suite]}.
+ * <p>
+ * The optional last word lists the crypto suites the client supports, comma-separated
+ * in order of preference. The server answers with the one the client should use for
+ * its identity key this session ({@code -} if none), and then with the id of its
+ * sequence numbering; clients that get no suite back use RSA.
+ */
+public record Handshake(String username, WireFormat format, boolean negotiated, List<String> suites) {
+
+    public static final String HELLO = "/hello";
+    private static final String NO_SUITE = "-";
+
+    public static Handshake parse(String firstLine) {
+        if (!firstLine.startsWith(HELLO + " ")) {
+            return new Handshake(firstLine, WireFormat.TEXT, false, List.of());
+        }
+        String[] parts = firstLine.split(" ", 4);
+        String username = parts.length >= 3 ? parts[2] : "";
+        WireFormat format = BinaryCodec.PROTOCOL.equals(parts[1]) ? WireFormat.BINARY : WireFormat.TEXT;
+        List<String> suites = parts.length == 4 ? List.of(parts[3].split(",")) : List.of();
+        return new Handshake(username, format, true, suites);
+    }
+
+    public static String request(String username, List<String> suites) {
+        return HELLO + " " + BinaryCodec.PROTOCOL + " " + username + (suites.isEmpty() ? "" : " "
+                + String.join(",", suites));
+    }
+
+    /**
+     * @return the client's most preferred suite among {@code accepted}, or null if
+     * they have none in common
+     */
+    public String chooseSuite(Collection<String> accepted) {
+        for (String suite : suites) {
+            if (accepted.contains(suite)) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The server's answer, sent as a text line before switching formats.
+     *
+     * @param suite     the agreed crypto suite, or null
+     * @param numbering identifies the server's sequence numbering, see
+     *                  {@link #parseNumbering}
+     */
+    public String reply(String suite, String numbering) {
+        return HELLO + " " + (format == WireFormat.BINARY ? BinaryCodec.PROTOCOL : "text") + " "
+                + (suite != null ? suite : NO_SUITE) + " " + numbering;
+    }
+
+    /**
+     * @return the format the server agreed to, or null if the line is not a reply
+     */
+    public static WireFormat parseReply(String line) {
+        if (line == null || !line.startsWith(HELLO + " ")) {
+            return null;
+        }
+        return BinaryCodec.PROTOCOL.equals(line.split(" ")[1]) ? WireFormat.BINARY : WireFormat.TEXT;
+    }
+
+    /**
+     * @return the crypto suite in the server's reply, or null if it named none
+     */
+    public static String parseSuite(String line) {
+        if (parseReply(line) == null) {
+            return null;
+        }
+        String[] parts = line.split(" ");
+        return parts.length > 2 && !parts[2].equals(NO_SUITE) ? parts[2] : null;
+    }
+
+    /**
+     * @return the id of the server's sequence numbering, or null if it sent none.
+     * Sequence numbers saved under another id refer to a history the server no longer
+     * has, e.g. because it restarted without a message log.
+     */
+    public static String parseNumbering(String line) {
+        if (parseReply(line) == null) {
+            return null;
+        }
+        String[] parts = line.split(" ");
+        return parts.length > 3 ? parts[3] : null;
+    }
+}
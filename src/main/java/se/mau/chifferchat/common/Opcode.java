@@ -0,0 +1,115 @@
+package se.mau.chifferchat.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Every message of the chat protocol, with its binary opcode, its legacy text
+ * command (if it has one) and the types of its fields.
+ */
+public enum Opcode {
+
+    // Client -> server
+    PUBKEY(1, "/pubkey", FieldType.BYTES),
+    GET_KEY(2, "/getkey", FieldType.STRING),
+    CREATE_GROUP(3, "/creategroup", FieldType.STRING),
+    LIST_GROUPS(4, "/listgroups"),
+    ADD_TO_GROUP(5, "/addtogroup", FieldType.STRING, FieldType.STRING),
+    GROUP_MEMBERS(6, "/groupmembers", FieldType.STRING),
+    GET_USERS(7, "/getusers"),
+    GROUP_MSG(8, "/groupmsg", FieldType.STRING, FieldType.PAYLOAD),
+    QUIT(9, "/quit"),
+    STATS(11, "/stats"),
+    // Addressed to one user, so the server can keep it out of everyone else's stream
+    PRIVATE_MSG(12, "/msg", FieldType.STRING, FieldType.PAYLOAD),
+    // Catch-up: "conversation@sequence" entries, see Conversation for the names
+    HISTORY(13, "/history", FieldType.STRING_LIST),
+    GET_KEYS(14, "/getkeys", FieldType.STRING_LIST),
+    // A line that is not a command: an encrypted private or broadcast message
+    MESSAGE(10, null, FieldType.PAYLOAD),
+
+    // Server -> client
+    SYSTEM(32, null, FieldType.STRING),
+    USERS(33, "/users", FieldType.STRING_LIST),
+    GROUPS(34, "/groups", FieldType.GROUP_LIST),
+    KEY(35, "/key", FieldType.STRING, FieldType.BYTES),
+    ERROR(36, "/error", FieldType.STRING),
+    GROUP_CREATED(37, "/groupcreated", FieldType.STRING, FieldType.STRING),
+    GROUP_UPDATED(38, "/groupupdated", FieldType.STRING),
+    GROUP_MEMBER_ADDED(39, "/groupmemberadded", FieldType.STRING, FieldType.STRING),
+    MEMBERS(40, "/members", FieldType.STRING, FieldType.STRING_LIST, FieldType.LONG),
+    // Relayed chat ends with its sequence number within the conversation
+    GROUP_CHAT(41, "/g", FieldType.STRING, FieldType.STRING, FieldType.PAYLOAD, FieldType.LONG),
+    CHAT(42, null, FieldType.STRING, FieldType.PAYLOAD, FieldType.LONG),
+    DIRECT_CHAT(43, null, FieldType.STRING, FieldType.STRING, FieldType.PAYLOAD, FieldType.LONG),
+    // Ends a catch-up batch for one conversation with its latest sequence number
+    HISTORY_END(44, "/historyend", FieldType.STRING, FieldType.LONG),
+    // Keys found, then the users that have none
+    KEYS(45, "/keys", FieldType.KEY_LIST, FieldType.STRING_LIST);
+
+    public enum FieldType {
+        STRING,
+        BYTES,
+        STRING_LIST,
+        GROUP_LIST,
+        PAYLOAD,
+        LONG,
+        KEY_LIST
+    }
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+    private static final Map<String, Opcode> BY_COMMAND = new HashMap<>();
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+            if (opcode.command != null) {
+                BY_COMMAND.put(opcode.command, opcode);
+            }
+        }
+    }
+
+    private final int code;
+    private final String command;
+    private final FieldType[] fields;
+
+    Opcode(int code, String command, FieldType... fields) {
+        this.code = code;
+        this.command = command;
+        this.fields = fields;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    public String command() {
+        return command;
+    }
+
+    public FieldType[] fields() {
+        return fields.clone();
+    }
+
+    FieldType field(int index) {
+        return fields[index];
+    }
+
+    int fieldCount() {
+        return fields.length;
+    }
+
+    /**
+     * @return the opcode, or null if the byte is not a known opcode
+     */
+    public static Opcode fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+
+    /**
+     * @return the opcode for a text command token such as {@code /getkey}, or null
+     */
+    public static Opcode fromCommand(String command) {
+        return BY_COMMAND.get(command);
+    }
+}
@@ -0,0 +1,82 @@
+package se.mau.chifferchat.common;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One decoded protocol message, independent of whether it travelled as a text line
+ * or a binary frame. Field types follow {@link Opcode#fields()}.
+ */
+public final class Packet {
+
+    private final Opcode opcode;
+    private final Object[] fields;
+
+    private Packet(Opcode opcode, Object[] fields) {
+        this.opcode = opcode;
+        this.fields = fields;
+    }
+
+    public static Packet of(Opcode opcode, Object... fields) {
+        if (fields.length != opcode.fieldCount()) {
+            throw new IllegalArgumentException(opcode + " takes " + opcode.fieldCount() + " fields, got "
+                    + fields.length);
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (!matches(opcode.field(i), fields[i])) {
+                throw new IllegalArgumentException("Field " + i + " of " + opcode + " must be " + opcode.field(i));
+            }
+        }
+        return new Packet(opcode, fields.clone());
+    }
+
+    private static boolean matches(Opcode.FieldType type, Object value) {
+        return switch (type) {
+            case STRING -> value instanceof String;
+            case BYTES -> value instanceof byte[];
+            case STRING_LIST, GROUP_LIST, KEY_LIST -> value instanceof List<?>;
+            case PAYLOAD -> value instanceof CipherPayload;
+            case LONG -> value instanceof Long;
+        };
+    }
+
+    public Opcode opcode() {
+        return opcode;
+    }
+
+    public String string(int index) {
+        return (String) fields[index];
+    }
+
+    public byte[] bytes(int index) {
+        return (byte[]) fields[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<String> strings(int index) {
+        return (List<String>) fields[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<GroupSummary> groups(int index) {
+        return (List<GroupSummary>) fields[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<UserKey> keys(int index) {
+        return (List<UserKey>) fields[index];
+    }
+
+    public CipherPayload payload(int index) {
+        return (CipherPayload) fields[index];
+    }
+
+    public long longValue(int index) {
+        return (Long) fields[index];
+    }
+
+    @Override
+    public String toString() {
+        return opcode + Arrays.toString(fields);
+    }
+}
@@ -0,0 +1,15 @@
+package se.mau.chifferchat.common;
+
+import java.io.IOException;
+
+/**
+ * Blocking source of packets from one peer, in whichever {@link WireFormat} was
+ * negotiated.
+ */
+public interface PacketReader {
+
+    /**
+     * @return the next packet, or null at end of stream
+     */
+    Packet read() throws IOException;
+}
@@ -0,0 +1,232 @@
+package se.mau.chifferchat.common;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * The original newline-delimited protocol, kept for clients that do not negotiate
+ * {@link BinaryCodec}. Maps text lines to and from {@link Packet}s so the rest of
+ * the code only deals with packets.
+ */
+public final class TextCodec {
+
+    public static final Charset CHARSET = Charset.defaultCharset();
+    public static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    private TextCodec() {
+    }
+
+    /**
+     * Decodes a line sent by a client. Lines that are not commands are chat messages.
+     *
+     * @return the packet, or null if the line is a malformed command
+     */
+    public static Packet decodeClientLine(String line) {
+        int space = line.indexOf(' ');
+        String command = space < 0 ? line : line.substring(0, space);
+        String args = space < 0 ? "" : line.substring(space + 1);
+        Opcode opcode = line.startsWith("/") ? Opcode.fromCommand(command) : null;
+        if (opcode == null) {
+            return Packet.of(Opcode.MESSAGE, CipherPayload.parseText(line));
+        }
+        try {
+            return switch (opcode) {
+                case PUBKEY -> Packet.of(opcode, Base64.getDecoder().decode(args.trim()));
+                case GET_KEY, CREATE_GROUP, GROUP_MEMBERS -> args.isBlank() ? null : Packet.of(opcode, args.trim());
+                case LIST_GROUPS, GET_USERS, QUIT, STATS -> Packet.of(opcode);
+                case HISTORY, GET_KEYS -> Packet.of(opcode, split(args.trim()));
+                case ADD_TO_GROUP -> {
+                    String[] parts = args.split(" ", 2);
+                    yield parts.length == 2 ? Packet.of(opcode, parts[0], parts[1]) : null;
+                }
+                case GROUP_MSG, PRIVATE_MSG -> {
+                    int split = args.indexOf(' ');
+                    yield split > 0 ? Packet.of(opcode, args.substring(0, split),
+                            CipherPayload.parseText(args.substring(split + 1))) : null;
+                }
+                // A server-only command from a client is just text
+                default -> Packet.of(Opcode.MESSAGE, CipherPayload.parseText(line));
+            };
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a line sent by the server.
+     *
+     * @return the packet, or null if the line is a malformed command
+     */
+    public static Packet decodeServerLine(String line) {
+        int space = line.indexOf(' ');
+        Opcode opcode = line.startsWith("/") && space > 0 ? Opcode.fromCommand(line.substring(0, space)) : null;
+        String args = space < 0 ? "" : line.substring(space + 1);
+        if (opcode != null) {
+            try {
+                return switch (opcode) {
+                    case USERS -> Packet.of(opcode, split(args));
+                    case GROUPS -> {
+                        List<GroupSummary> groups = new ArrayList<>();
+                        for (String entry : split(args)) {
+                            // id:name:members[:epoch]
+                            String[] parts = entry.split(":", 4);
+                            if (parts.length >= 3) {
+                                groups.add(new GroupSummary(parts[0], parts[1], Integer.parseInt(parts[2]),
+                                        parts.length > 3 ? Long.parseLong(parts[3]) : 0));
+                            }
+                        }
+                        yield Packet.of(opcode, groups);
+                    }
+                    case KEYS -> {
+                        // /keys user:base64|... missing|...
+                        String[] parts = args.split(" ", 2);
+                        List<UserKey> keys = new ArrayList<>();
+                        for (String entry : split(parts[0])) {
+                            int colon = entry.lastIndexOf(':');
+                            keys.add(new UserKey(entry.substring(0, colon),
+                                    Base64.getDecoder().decode(entry.substring(colon + 1))));
+                        }
+                        yield Packet.of(opcode, keys, split(parts.length > 1 ? parts[1] : ""));
+                    }
+                    case HISTORY_END -> {
+                        String[] parts = args.split(" ", 2);
+                        yield Packet.of(opcode, parts[0], Long.parseLong(parts[1]));
+                    }
+                    case KEY -> {
+                        String[] parts = args.split(" ", 2);
+                        yield Packet.of(opcode, parts[0], Base64.getDecoder().decode(parts[1]));
+                    }
+                    case ERROR, GROUP_UPDATED -> Packet.of(opcode, args);
+                    case GROUP_CREATED, GROUP_MEMBER_ADDED -> {
+                        String[] parts = args.split(" ", 2);
+                        yield Packet.of(opcode, parts[0], parts.length > 1 ? parts[1] : "");
+                    }
+                    case MEMBERS -> {
+                        // /members <groupId> a|b|c [epoch]
+                        String[] parts = args.split(" ", 3);
+                        yield Packet.of(opcode, parts[0], split(parts.length > 1 ? parts[1] : ""),
+                                parts.length > 2 ? Long.parseLong(parts[2]) : 0L);
+                    }
+                    case GROUP_CHAT -> {
+                        // /g <groupId> [sender]: <payload>
+                        int split = args.indexOf(' ');
+                        int close = args.indexOf("]: ", split);
+                        yield split > 0 && close > split ? Packet.of(opcode, args.substring(0, split),
+                                args.substring(split + 2, close), CipherPayload.parseText(args.substring(close + 3)),
+                                0L) : null;
+                    }
+                    default -> null;
+                };
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+        if (line.startsWith("Welcome ") || line.endsWith(" joined the chat!") || line.endsWith(" left the chat!")) {
+            return Packet.of(Opcode.SYSTEM, line);
+        }
+        // Legacy group form "[sender]: payload"
+        if (line.startsWith("[") && line.contains("]: ")) {
+            int close = line.indexOf("]: ");
+            return Packet.of(Opcode.CHAT, line.substring(1, close), CipherPayload.parseText(line.substring(close + 3)),
+                    0L);
+        }
+        int idx = line.indexOf(": ");
+        if (idx > 0) {
+            return Packet.of(Opcode.CHAT, line.substring(0, idx), CipherPayload.parseText(line.substring(idx + 2)), 0L);
+        }
+        return Packet.of(Opcode.SYSTEM, line);
+    }
+
+    private static List<String> split(String joined) {
+        return joined.isEmpty() ? List.of() : Arrays.asList(joined.split("\\|"));
+    }
+
+    /**
+     * Encodes a packet in its legacy text form, without the newline. Chat keeps the
+     * exact legacy layout, so sequence numbers are only carried by binary frames.
+     */
+    public static String encode(Packet packet) {
+        Opcode opcode = packet.opcode();
+        String command = opcode.command();
+        return switch (opcode) {
+            case PUBKEY -> command + " " + Base64.getEncoder().encodeToString(packet.bytes(0));
+            case KEY -> command + " " + packet.string(0) + " " + Base64.getEncoder().encodeToString(packet.bytes(1));
+            case LIST_GROUPS, GET_USERS, QUIT, STATS -> command;
+            case GET_KEY, CREATE_GROUP, GROUP_MEMBERS, ERROR, GROUP_UPDATED -> command + " " + packet.string(0);
+            case ADD_TO_GROUP, GROUP_CREATED, GROUP_MEMBER_ADDED ->
+                    command + " " + packet.string(0) + " " + packet.string(1);
+            case GROUP_MSG, PRIVATE_MSG -> command + " " + packet.string(0) + " " + packet.payload(1).toText();
+            case MESSAGE -> packet.payload(0).toText();
+            case SYSTEM -> packet.string(0);
+            case USERS, HISTORY, GET_KEYS -> command + " " + String.join("|", packet.strings(0));
+            case KEYS -> command + " " + packet.keys(0).stream()
+                    .map(k -> k.username() + ":" + Base64.getEncoder().encodeToString(k.key()))
+                    .collect(Collectors.joining("|")) + " " + String.join("|", packet.strings(1));
+            case HISTORY_END -> command + " " + packet.string(0) + " " + packet.longValue(1);
+            case GROUPS -> command + " " + packet.groups(0).stream()
+                    .map(g -> g.groupId() + ":" + g.groupName() + ":" + g.memberCount() + ":" + g.epoch())
+                    .collect(Collectors.joining("|"));
+            case MEMBERS -> command + " " + packet.string(0) + " " + String.join("|", packet.strings(1)) + " "
+                    + packet.longValue(2);
+            case GROUP_CHAT -> command + " " + packet.string(0) + " [" + packet.string(1) + "]: "
+                    + packet.payload(2).toText();
+            case CHAT -> packet.string(0) + ": " + packet.payload(1).toText();
+            case DIRECT_CHAT -> packet.string(0) + ": " + packet.payload(2).toText();
+        };
+    }
+
+    public static byte[] encodeLine(Packet packet) {
+        return (encode(packet) + "\n").getBytes(CHARSET);
+    }
+
+    /**
+     * Reads lines and decodes them, skipping lines the decoder rejects.
+     */
+    public static PacketReader reader(BufferedReader in, Function<String, Packet> decoder) {
+        return () -> {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Packet packet = decoder.apply(line);
+                if (packet != null) {
+                    return packet;
+                }
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Reads one line a byte at a time, so nothing after it is consumed. Used for the
+     * handshake, where the rest of the stream may be binary.
+     *
+     * @return the line without its terminator, or null at end of stream
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return line.size() > 0 ? line.toString(CHARSET) : null;
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Line too long");
+            }
+            line.write(b);
+        }
+        return stripCarriageReturn(line.toString(CHARSET));
+    }
+
+    public static String stripCarriageReturn(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+}
@@ -0,0 +1,7 @@
+package se.mau.chifferchat.common;
+
+/**
+ * One entry of a {@code /keys} reply: a user and their encoded public key.
+ */
+public record UserKey(String username, byte[] key) {
+}
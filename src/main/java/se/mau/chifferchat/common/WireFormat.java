@@ -0,0 +1,23 @@
+package se.mau.chifferchat.common;
+
+/**
+ * Encoding used on a connection after the login handshake.
+ */
+public enum WireFormat {
+    /**
+     * The original newline-delimited protocol, see {@link TextCodec}.
+     */
+    TEXT,
+    /**
+     * Length-prefixed binary frames, see {@link BinaryCodec}.
+     */
+    BINARY;
+
+    /**
+     * Encodes one packet as it goes on the wire, including the newline or length
+     * prefix.
+     */
+    public byte[] encode(Packet packet) {
+        return this == BINARY ? BinaryCodec.encode(packet) : TextCodec.encodeLine(packet);
+    }
+}
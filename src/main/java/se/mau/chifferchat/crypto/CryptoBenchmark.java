@@ -0,0 +1,125 @@
+package se.mau.chifferchat.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Development benchmark for {@link CryptoEngine}: throughput and bytes allocated per
+ * operation of an AES-GCM seal plus open, done the way {@code Encryption} and
+ * {@code Decryption} used to (a new {@link Cipher} and {@link SecureRandom} per call,
+ * strings and Base64 throughout), on byte arrays through the engine, between two
+ * reused buffers and in place in one. Also times an RSA key wrap with and without a cached cipher.
+ * <p>
+ * Usage: {@code CryptoBenchmark [--ops=N] [--length=BYTES]}
+ */
+public class CryptoBenchmark {
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int ops = 200_000;
+        int length = 256;
+        for (String arg : args) {
+            if (arg.startsWith("--ops=")) {
+                ops = Integer.parseInt(arg.substring("--ops=".length()));
+            } else if (arg.startsWith("--length=")) {
+                length = Integer.parseInt(arg.substring("--length=".length()));
+            }
+        }
+        CryptoEngine engine = CryptoEngine.getInstance();
+        SecretKey key = CryptoKeyGenerator.generateAESKey();
+        KeyPair rsa = CryptoKeyGenerator.generateRSAKeyPair();
+        String message = "x".repeat(length);
+        byte[] plain = new byte[length];
+        ByteBuffer plainBuffer = ByteBuffer.allocate(length);
+        ByteBuffer sealedBuffer = ByteBuffer.allocate(length + CryptoEngine.TAG_LENGTH);
+        byte[] nonce = new byte[CryptoEngine.NONCE_LENGTH];
+
+        Op legacy = () -> {
+            byte[] ivBytes = new byte[12];
+            new SecureRandom().nextBytes(ivBytes);
+            GCMParameterSpec iv = new GCMParameterSpec(128, ivBytes);
+            Cipher encrypt = Cipher.getInstance("AES/GCM/NoPadding");
+            encrypt.init(Cipher.ENCRYPT_MODE, key, iv);
+            String sealed = Base64.getEncoder().encodeToString(encrypt.doFinal(message.getBytes()));
+            Cipher decrypt = Cipher.getInstance("AES/GCM/NoPadding");
+            decrypt.init(Cipher.DECRYPT_MODE, key, iv);
+            new String(decrypt.doFinal(Base64.getDecoder().decode(sealed)));
+        };
+        Op bytes = () -> {
+            GCMParameterSpec iv = engine.newIv();
+            engine.open(engine.seal(plain, key, iv, null), key, iv, null);
+        };
+        Op buffers = () -> {
+            engine.nextNonce(nonce);
+            GCMParameterSpec iv = new GCMParameterSpec(CryptoEngine.TAG_BITS, nonce);
+            engine.seal(plainBuffer.clear(), sealedBuffer.clear(), key, iv, null);
+            engine.open(sealedBuffer.flip(), plainBuffer.clear(), key, iv, null);
+        };
+        Op inPlace = () -> {
+            engine.nextNonce(nonce);
+            GCMParameterSpec iv = new GCMParameterSpec(CryptoEngine.TAG_BITS, nonce);
+            sealedBuffer.clear().limit(plain.length);
+            engine.seal(sealedBuffer.duplicate(), sealedBuffer.duplicate().clear(), key, iv, null);
+            engine.open(sealedBuffer.clear(), sealedBuffer.duplicate().clear(), key, iv, null);
+        };
+        Op legacyWrap = () -> {
+            Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, rsa.getPublic());
+            cipher.doFinal(key.getEncoded());
+        };
+        Op wrap = () -> engine.wrapKey(key, rsa.getPublic());
+
+        System.out.printf("AES-GCM seal + open of %d bytes, %d ops%n", length, ops);
+        measure("per-call Cipher", legacy, ops);
+        measure("engine byte[]", bytes, ops);
+        measure("engine buffers", buffers, ops);
+        measure("engine in place", inPlace, ops);
+        int wraps = Math.max(100, ops / 100);
+        System.out.printf("RSA-4096 key wrap, %d ops%n", wraps);
+        measure("per-call Cipher", legacyWrap, wraps);
+        measure("engine", wrap, wraps);
+    }
+
+    private static void measure(String name, Op op, int ops) throws Exception {
+        // Warm up, then measure
+        for (int i = 0; i < ops / 5; i++) {
+            op.run();
+        }
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            op.run();
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        System.out.printf("%-16s %10.0f ops/s  %8.2f us/op  %8d B/op%n", name, ops * 1e9 / nanos,
+                nanos / 1000.0 / ops, allocated / ops);
+    }
+
+    // Bytes allocated by this thread, or -1 if the JVM can't tell; reflective, as in
+    // LoadSimulator, so the app module needn't require jdk.management
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            Class<?> hotspot = Class.forName("com.sun.management.ThreadMXBean");
+            if (!hotspot.isInstance(threads)) {
+                return -1;
+            }
+            Method method = hotspot.getMethod("getThreadAllocatedBytes", long.class);
+            return (long) method.invoke(threads, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package se.mau.chifferchat.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * The AES-GCM and RSA-OAEP operations behind {@link Encryption} and
+ * {@link Decryption}, working on bytes. Looking up a {@link Cipher} or
+ * {@link KeyFactory} is far slower than using one, so each thread keeps its own
+ * instances and reinitializes them per call; nonces come from one shared
+ * {@link SecureRandom}. Strings and Base64 are left to the callers at the edges.
+ * <p>
+ * The {@link ByteBuffer} variants encrypt or decrypt from one buffer into another,
+ * which may be the same buffer, without allocating the result.
+ */
+public final class CryptoEngine {
+
+    public static final String AES_GCM = "AES/GCM/NoPadding";
+    public static final String RSA_OAEP = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_BITS = 128;
+    public static final int TAG_LENGTH = TAG_BITS / 8;
+
+    private static final CryptoEngine INSTANCE = new CryptoEngine();
+
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> aes = ThreadLocal.withInitial(() -> cipher(AES_GCM));
+    private final ThreadLocal<Cipher> rsa = ThreadLocal.withInitial(() -> cipher(RSA_OAEP));
+    private final ThreadLocal<KeyFactory> rsaKeys = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private CryptoEngine() {
+    }
+
+    public static CryptoEngine getInstance() {
+        return INSTANCE;
+    }
+
+    private static Cipher cipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Fills {@code nonce} with random bytes from the shared source.
+     */
+    public void nextNonce(byte[] nonce) {
+        random.nextBytes(nonce);
+    }
+
+    public GCMParameterSpec newIv() {
+        byte[] iv = new byte[NONCE_LENGTH];
+        random.nextBytes(iv);
+        return new GCMParameterSpec(TAG_BITS, iv);
+    }
+
+    /**
+     * Encrypts and authenticates {@code plaintext}, plus {@code aad} if not null.
+     * Because the cipher is reused, sealing twice in a row on one thread with the same
+     * key and nonce fails instead of quietly repeating the nonce.
+     *
+     * @return ciphertext followed by the {@value #TAG_LENGTH}-byte tag
+     */
+    public byte[] seal(byte[] plaintext, SecretKey key, GCMParameterSpec iv, byte[] aad)
+            throws GeneralSecurityException {
+        return init(Cipher.ENCRYPT_MODE, key, iv, aad).doFinal(plaintext);
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code input} into {@code output}, which needs
+     * {@value #TAG_LENGTH} bytes more room. Both buffers advance.
+     *
+     * @return the number of bytes written
+     */
+    public int seal(ByteBuffer input, ByteBuffer output, SecretKey key, GCMParameterSpec iv, byte[] aad)
+            throws GeneralSecurityException {
+        return init(Cipher.ENCRYPT_MODE, key, iv, aad).doFinal(input, output);
+    }
+
+    /**
+     * Checks and decrypts what {@link #seal(byte[], SecretKey, GCMParameterSpec, byte[])}
+     * produced.
+     *
+     * @throws javax.crypto.AEADBadTagException if the ciphertext or aad were altered
+     */
+    public byte[] open(byte[] ciphertext, SecretKey key, GCMParameterSpec iv, byte[] aad)
+            throws GeneralSecurityException {
+        return init(Cipher.DECRYPT_MODE, key, iv, aad).doFinal(ciphertext);
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code input} into {@code output}. Both buffers
+     * advance; nothing is written unless the tag checks out.
+     *
+     * @return the number of plaintext bytes written
+     */
+    public int open(ByteBuffer input, ByteBuffer output, SecretKey key, GCMParameterSpec iv, byte[] aad)
+            throws GeneralSecurityException {
+        return init(Cipher.DECRYPT_MODE, key, iv, aad).doFinal(input, output);
+    }
+
+    private Cipher init(int mode, SecretKey key, GCMParameterSpec iv, byte[] aad) throws GeneralSecurityException {
+        Cipher cipher = aes.get();
+        cipher.init(mode, key, iv);
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher;
+    }
+
+    public byte[] encryptRSA(byte[] data, PublicKey publicKey) throws GeneralSecurityException {
+        Cipher cipher = rsa.get();
+        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+        return cipher.doFinal(data);
+    }
+
+    public byte[] decryptRSA(byte[] data, PrivateKey privateKey) throws GeneralSecurityException {
+        Cipher cipher = rsa.get();
+        cipher.init(Cipher.DECRYPT_MODE, privateKey);
+        return cipher.doFinal(data);
+    }
+
+    public byte[] wrapKey(SecretKey key, PublicKey publicKey) throws GeneralSecurityException {
+        return encryptRSA(key.getEncoded(), publicKey);
+    }
+
+    public SecretKey unwrapKey(byte[] wrappedKey, PrivateKey privateKey) throws GeneralSecurityException {
+        return new SecretKeySpec(decryptRSA(wrappedKey, privateKey), "AES");
+    }
+
+    /**
+     * Decodes an X.509-encoded RSA public key, as sent in {@code /pubkey} and {@code /keys}.
+     */
+    public PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+        return rsaKeys.get().generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    /**
+     * Decodes a PKCS#8-encoded RSA private key, as {@link PrivateKey#getEncoded()} returns it.
+     */
+    public PrivateKey decodePrivateKey(byte[] encoded) throws GeneralSecurityException {
+        return rsaKeys.get().generatePrivate(new PKCS8EncodedKeySpec(encoded));
+    }
+}
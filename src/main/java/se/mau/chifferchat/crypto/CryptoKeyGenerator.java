@@ -7,7 +7,6 @@ import javax.crypto.spec.GCMParameterSpec;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 public class CryptoKeyGenerator {
 
@@ -24,8 +23,6 @@ public class CryptoKeyGenerator {
     }
 
     public static GCMParameterSpec generateIv() {
-        byte[] iv = new byte[12];
-        new SecureRandom().nextBytes(iv);
-        return new GCMParameterSpec(128, iv);
+        return CryptoEngine.getInstance().newIv();
     }
 }
@@ -0,0 +1,244 @@
+package se.mau.chifferchat.crypto;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * How identity keys are made and how a message key is sent to their owner. Each
+ * client offers the suites it supports in the login handshake, in the order listed
+ * here, and the server picks the one its identity key uses for that session. A
+ * user's public key says which suite it belongs to, so peers on different suites
+ * can still write to each other.
+ */
+public enum CryptoSuite {
+    /**
+     * X25519 key agreement with a fresh ephemeral key per wrap, HKDF-SHA256 and
+     * AES-GCM. Key pairs take well under a millisecond to generate and public keys
+     * are 44 bytes encoded.
+     */
+    X25519("x25519") {
+        // X.509 encoding of an X25519 public key: this header, then the 32-byte key
+        private static final byte[] PUBLIC_KEY_HEADER = {
+                0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00};
+        private static final int KEY_LENGTH = 32;
+        private static final byte[] INFO = "ChifferChat x25519 key wrap".getBytes(StandardCharsets.UTF_8);
+
+        private final ThreadLocal<KeyAgreement> agreement = threadLocal(() -> KeyAgreement.getInstance("X25519"));
+        private final ThreadLocal<KeyPairGenerator> generator =
+                threadLocal(() -> KeyPairGenerator.getInstance("X25519"));
+        private final ThreadLocal<KeyFactory> keys = threadLocal(() -> KeyFactory.getInstance("X25519"));
+        private final ThreadLocal<Mac> hmac = threadLocal(() -> Mac.getInstance("HmacSHA256"));
+
+        @Override
+        public KeyPair generateKeyPair() {
+            return generator.get().generateKeyPair();
+        }
+
+        @Override
+        public PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+            return keys.get().generatePublic(new X509EncodedKeySpec(encoded));
+        }
+
+        @Override
+        public PrivateKey decodePrivateKey(byte[] encoded) throws GeneralSecurityException {
+            return keys.get().generatePrivate(new PKCS8EncodedKeySpec(encoded));
+        }
+
+        @Override
+        boolean owns(byte[] encodedPublicKey) {
+            return encodedPublicKey.length == PUBLIC_KEY_HEADER.length + KEY_LENGTH && Arrays.equals(
+                    encodedPublicKey, 0, PUBLIC_KEY_HEADER.length, PUBLIC_KEY_HEADER, 0, PUBLIC_KEY_HEADER.length);
+        }
+
+        // Wrapped: ephemeral public key (32), then the message key sealed under a key
+        // derived from the shared secret. That key is used once, so the nonce is fixed.
+        @Override
+        public byte[] wrapKey(SecretKey key, PublicKey publicKey) throws GeneralSecurityException {
+            KeyPair ephemeral = generateKeyPair();
+            byte[] ephemeralKey = rawKey(ephemeral.getPublic());
+            SecretKey wrappingKey = wrappingKey(ephemeral.getPrivate(), publicKey, ephemeralKey);
+            byte[] sealed = CryptoEngine.getInstance().seal(key.getEncoded(), wrappingKey, fixedNonce(), null);
+            byte[] wrapped = Arrays.copyOf(ephemeralKey, KEY_LENGTH + sealed.length);
+            System.arraycopy(sealed, 0, wrapped, KEY_LENGTH, sealed.length);
+            return wrapped;
+        }
+
+        @Override
+        public SecretKey unwrapKey(byte[] wrappedKey, PrivateKey privateKey) throws GeneralSecurityException {
+            byte[] ephemeralKey = Arrays.copyOf(wrappedKey, KEY_LENGTH);
+            byte[] encoded = Arrays.copyOf(PUBLIC_KEY_HEADER, PUBLIC_KEY_HEADER.length + KEY_LENGTH);
+            System.arraycopy(ephemeralKey, 0, encoded, PUBLIC_KEY_HEADER.length, KEY_LENGTH);
+            SecretKey wrappingKey = wrappingKey(privateKey, decodePublicKey(encoded), ephemeralKey);
+            byte[] key = CryptoEngine.getInstance().open(Arrays.copyOfRange(wrappedKey, KEY_LENGTH,
+                    wrappedKey.length), wrappingKey, fixedNonce(), null);
+            return new SecretKeySpec(key, "AES");
+        }
+
+        // HKDF-SHA256 (RFC 5869) of the shared secret, salted with the ephemeral key;
+        // one block of output is all an AES-256 key needs
+        private SecretKey wrappingKey(PrivateKey privateKey, PublicKey publicKey, byte[] salt)
+                throws GeneralSecurityException {
+            KeyAgreement keyAgreement = agreement.get();
+            keyAgreement.init(privateKey);
+            keyAgreement.doPhase(publicKey, true);
+            byte[] shared = keyAgreement.generateSecret();
+            Mac mac = hmac.get();
+            mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+            byte[] pseudoRandomKey = mac.doFinal(shared);
+            mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+            mac.update(INFO);
+            mac.update((byte) 1);
+            return new SecretKeySpec(mac.doFinal(), "AES");
+        }
+
+        private byte[] rawKey(PublicKey publicKey) {
+            byte[] encoded = publicKey.getEncoded();
+            return Arrays.copyOfRange(encoded, encoded.length - KEY_LENGTH, encoded.length);
+        }
+
+        private GCMParameterSpec fixedNonce() {
+            return new GCMParameterSpec(CryptoEngine.TAG_BITS, new byte[CryptoEngine.NONCE_LENGTH]);
+        }
+    },
+    /**
+     * RSA-4096 with OAEP, the original scheme. Slow to generate and 550-byte public
+     * keys, but every client understands it.
+     */
+    RSA("rsa4096") {
+        @Override
+        public KeyPair generateKeyPair() throws GeneralSecurityException {
+            return CryptoKeyGenerator.generateRSAKeyPair();
+        }
+
+        @Override
+        public PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+            return CryptoEngine.getInstance().decodePublicKey(encoded);
+        }
+
+        @Override
+        public PrivateKey decodePrivateKey(byte[] encoded) throws GeneralSecurityException {
+            return CryptoEngine.getInstance().decodePrivateKey(encoded);
+        }
+
+        @Override
+        boolean owns(byte[] encodedPublicKey) {
+            return true;
+        }
+
+        @Override
+        public byte[] wrapKey(SecretKey key, PublicKey publicKey) throws GeneralSecurityException {
+            return CryptoEngine.getInstance().wrapKey(key, publicKey);
+        }
+
+        @Override
+        public SecretKey unwrapKey(byte[] wrappedKey, PrivateKey privateKey) throws GeneralSecurityException {
+            return CryptoEngine.getInstance().unwrapKey(wrappedKey, privateKey);
+        }
+    };
+
+    private final String id;
+
+    CryptoSuite(String id) {
+        this.id = id;
+    }
+
+    /**
+     * The name used in the handshake.
+     */
+    public String id() {
+        return id;
+    }
+
+    public abstract KeyPair generateKeyPair() throws GeneralSecurityException;
+
+    /**
+     * Decodes an X.509-encoded public key of this suite.
+     */
+    public abstract PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException;
+
+    /**
+     * Decodes a PKCS#8-encoded private key of this suite.
+     */
+    public abstract PrivateKey decodePrivateKey(byte[] encoded) throws GeneralSecurityException;
+
+    // Whether an X.509-encoded public key is one of ours; checked in declaration order
+    abstract boolean owns(byte[] encodedPublicKey);
+
+    /**
+     * Encrypts a message key so only the owner of {@code publicKey} can recover it.
+     */
+    public abstract byte[] wrapKey(SecretKey key, PublicKey publicKey) throws GeneralSecurityException;
+
+    public abstract SecretKey unwrapKey(byte[] wrappedKey, PrivateKey privateKey) throws GeneralSecurityException;
+
+    /**
+     * Suite ids in order of preference, as offered in the handshake.
+     */
+    public static List<String> ids() {
+        return Arrays.stream(values()).map(CryptoSuite::id).toList();
+    }
+
+    /**
+     * @return the suite with this handshake id, or null if there is none
+     */
+    public static CryptoSuite forId(String id) {
+        for (CryptoSuite suite : values()) {
+            if (suite.id.equals(id)) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The suite a public or private key belongs to.
+     */
+    public static CryptoSuite forKey(Key key) {
+        return switch (key.getAlgorithm()) {
+            case "XDH", "X25519" -> X25519;
+            case "RSA" -> RSA;
+            default -> throw new IllegalArgumentException("No crypto suite for " + key.getAlgorithm() + " keys");
+        };
+    }
+
+    /**
+     * Decodes a public key of any suite, e.g. one received in {@code /key}.
+     */
+    public static PublicKey decodeAnyPublicKey(byte[] encoded) throws GeneralSecurityException {
+        for (CryptoSuite suite : values()) {
+            if (suite.owns(encoded)) {
+                return suite.decodePublicKey(encoded);
+            }
+        }
+        throw new GeneralSecurityException("Unknown public key type");
+    }
+
+    private interface Factory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    private static <T> ThreadLocal<T> threadLocal(Factory<T> factory) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return factory.create();
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+}
@@ -1,34 +1,40 @@
 package se.mau.chifferchat.crypto;
 
-import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
 import java.util.Base64;
 
 public class Decryption {
 
+    private static final CryptoEngine engine = CryptoEngine.getInstance();
+
     public static String decryptRSA(String encryptedMessage, PrivateKey privateKey) throws Exception {
-        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
-        cipher.init(Cipher.DECRYPT_MODE, privateKey);
         byte[] data = Base64.getDecoder().decode(encryptedMessage);
-        return new String(cipher.doFinal(data));
+        return new String(engine.decryptRSA(data, privateKey), StandardCharsets.UTF_8);
     }
 
     public static SecretKey decryptAESKeyRSA(String encryptedKey, PrivateKey privateKey) throws Exception {
-        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
-        cipher.init(Cipher.DECRYPT_MODE, privateKey);
-        byte[] encryptedKeyBytes = Base64.getDecoder().decode(encryptedKey);
-        byte[] decryptedKeyBytes = cipher.doFinal(encryptedKeyBytes);
-        return new SecretKeySpec(decryptedKeyBytes, "AES");
+        return unwrapAESKeyRSA(Base64.getDecoder().decode(encryptedKey), privateKey);
+    }
+
+    // Raw-bytes variant for binary frames, which carry the wrapped key without Base64
+    public static SecretKey unwrapAESKeyRSA(byte[] encryptedKey, PrivateKey privateKey) throws Exception {
+        return engine.unwrapKey(encryptedKey, privateKey);
     }
 
     public static String decryptAES(String encryptedMessage, SecretKey key, GCMParameterSpec iv) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.DECRYPT_MODE, key, iv);
-        byte[] data = Base64.getDecoder().decode(encryptedMessage);
-        return new String(cipher.doFinal(data));
+        return openAES(Base64.getDecoder().decode(encryptedMessage), key, iv);
+    }
+
+    public static String openAES(byte[] encryptedMessage, SecretKey key, GCMParameterSpec iv) throws Exception {
+        return new String(engine.open(encryptedMessage, key, iv, null), StandardCharsets.UTF_8);
+    }
+
+    public static byte[] openAES(byte[] encryptedMessage, SecretKey key, GCMParameterSpec iv, byte[] aad)
+            throws Exception {
+        return engine.open(encryptedMessage, key, iv, aad);
     }
 
 }
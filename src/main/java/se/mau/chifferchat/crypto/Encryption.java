@@ -1,31 +1,39 @@
 package se.mau.chifferchat.crypto;
 
-import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
+import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
 import java.util.Base64;
 
 public class Encryption {
 
+    private static final CryptoEngine engine = CryptoEngine.getInstance();
+
     public static String encryptRSA(String message, PublicKey publicKey) throws Exception {
-        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
-        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-        byte[] cipherText = cipher.doFinal(message.getBytes());
+        byte[] cipherText = engine.encryptRSA(message.getBytes(StandardCharsets.UTF_8), publicKey);
         return Base64.getEncoder().encodeToString(cipherText);
     }
 
     public static String encryptAESKeyRSA(SecretKey secretKey, PublicKey publicKey) throws Exception {
-        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
-        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-        byte[] cipherText = cipher.doFinal(secretKey.getEncoded());
-        return Base64.getEncoder().encodeToString(cipherText);
+        return Base64.getEncoder().encodeToString(wrapAESKeyRSA(secretKey, publicKey));
+    }
+
+    // Raw-bytes variant for binary frames, which carry the wrapped key without Base64
+    public static byte[] wrapAESKeyRSA(SecretKey secretKey, PublicKey publicKey) throws Exception {
+        return engine.wrapKey(secretKey, publicKey);
     }
 
     public static String encryptAES(String message, SecretKey key, GCMParameterSpec iv) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-        byte[] cipherText = cipher.doFinal(message.getBytes());
-        return Base64.getEncoder().encodeToString(cipherText);
+        return Base64.getEncoder().encodeToString(sealAES(message, key, iv));
+    }
+
+    public static byte[] sealAES(String message, SecretKey key, GCMParameterSpec iv) throws Exception {
+        return engine.seal(message.getBytes(StandardCharsets.UTF_8), key, iv, null);
+    }
+
+    // With associated data that is authenticated but not encrypted, e.g. a key id
+    public static byte[] sealAES(byte[] message, SecretKey key, GCMParameterSpec iv, byte[] aad) throws Exception {
+        return engine.seal(message, key, iv, aad);
     }
 }
@@ -0,0 +1,54 @@
+package se.mau.chifferchat.crypto;
+
+import javax.crypto.SecretKey;
+import java.security.KeyPair;
+
+/**
+ * Development benchmark comparing the {@link CryptoSuite}s: time to generate an
+ * identity key pair, to wrap a message key for a recipient and to unwrap it, and the
+ * encoded sizes of a public key and of a wrapped key.
+ * <p>
+ * Usage: {@code SuiteBenchmark [--ops=N]}
+ */
+public class SuiteBenchmark {
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int ops = 2000;
+        for (String arg : args) {
+            if (arg.startsWith("--ops=")) {
+                ops = Integer.parseInt(arg.substring("--ops=".length()));
+            }
+        }
+        SecretKey messageKey = CryptoKeyGenerator.generateAESKey();
+        System.out.printf("%-8s %12s %12s %12s %10s %10s%n", "suite", "keygen us", "wrap us", "unwrap us",
+                "pubkey B", "wrapped B");
+        for (CryptoSuite suite : CryptoSuite.values()) {
+            // RSA-4096 key generation takes seconds, so it gets far fewer rounds
+            int keyPairs = suite == CryptoSuite.RSA ? Math.max(3, ops / 500) : ops;
+            KeyPair keyPair = suite.generateKeyPair();
+            byte[] wrapped = suite.wrapKey(messageKey, keyPair.getPublic());
+            double keygen = measure(suite::generateKeyPair, keyPairs);
+            double wrap = measure(() -> suite.wrapKey(messageKey, keyPair.getPublic()), ops);
+            double unwrap = measure(() -> suite.unwrapKey(wrapped, keyPair.getPrivate()),
+                    suite == CryptoSuite.RSA ? Math.max(10, ops / 20) : ops);
+            System.out.printf("%-8s %12.1f %12.1f %12.1f %10d %10d%n", suite.id(), keygen, wrap, unwrap,
+                    keyPair.getPublic().getEncoded().length, wrapped.length);
+        }
+    }
+
+    // Microseconds per run, after a warm-up of a fifth as many runs
+    private static double measure(Op op, int runs) throws Exception {
+        for (int i = 0; i < Math.max(1, runs / 5); i++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            op.run();
+        }
+        return (System.nanoTime() - start) / 1000.0 / runs;
+    }
+}
@@ -0,0 +1,41 @@
+package se.mau.chifferchat.server;
+
+import se.mau.chifferchat.common.Packet;
+import se.mau.chifferchat.common.WireFormat;
+
+/**
+ * A logged-in (or logging-in) client as seen by the {@link Server}, independent of
+ * whether it is served by a blocking {@link ConnectionHandler} or a {@link NioConnection}.
+ */
+public interface ClientConnection {
+
+    /**
+     * Encodes a packet in this client's wire format and queues it for the client's
+     * writer. Never blocks on the socket.
+     */
+    default void send(Packet packet) {
+        sendFrame(Frame.encode(packet, getWireFormat()));
+    }
+
+    /**
+     * Queues an already encoded frame. Fan-out encodes once and passes the same
+     * frame to every recipient.
+     */
+    void sendFrame(Frame frame);
+
+    String getClientUsername();
+
+    /**
+     * The format negotiated at login; {@link WireFormat#TEXT} until then.
+     */
+    WireFormat getWireFormat();
+
+    /**
+     * Number of frames queued for this client but not yet written.
+     */
+    int getOutboundBacklog();
+
+    boolean isOpen();
+
+    void shutdown();
+}
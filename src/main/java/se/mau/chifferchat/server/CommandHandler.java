@@ -0,0 +1,263 @@
+package se.mau.chifferchat.server;
+
+import se.mau.chifferchat.common.BinaryCodec;
+import se.mau.chifferchat.common.CipherPayload;
+import se.mau.chifferchat.common.CommandRegistry;
+import se.mau.chifferchat.common.Conversation;
+import se.mau.chifferchat.common.Group;
+import se.mau.chifferchat.common.Opcode;
+import se.mau.chifferchat.common.Packet;
+import se.mau.chifferchat.common.UserKey;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Handles the chat protocol for a single connection. Shared by every transport and
+ * wire format, so blocking and non-blocking, text and binary connections behave
+ * identically.
+ */
+public class CommandHandler {
+
+    // Most records one /history request returns, across all its conversations
+    private static final int HISTORY_BATCH = 500;
+    // Most keys one /getkeys request may ask for
+    private static final int MAX_KEYS_PER_REQUEST = 1000;
+
+    private final Server server;
+    private final CommandRegistry<ClientConnection> commands = new CommandRegistry<>("Server");
+
+    public CommandHandler(Server server) {
+        this.server = server;
+        commands.register(Opcode.PUBKEY, this::onPublicKey)
+                .register(Opcode.GET_KEY, this::onGetKey)
+                .register(Opcode.GET_KEYS, this::onGetKeys)
+                .register(Opcode.CREATE_GROUP, this::onCreateGroup)
+                .register(Opcode.LIST_GROUPS, this::onListGroups)
+                .register(Opcode.ADD_TO_GROUP, this::onAddToGroup)
+                .register(Opcode.GROUP_MEMBERS, this::onGroupMembers)
+                .register(Opcode.GET_USERS, this::onGetUsers)
+                .register(Opcode.GROUP_MSG, this::onGroupMessage)
+                .register(Opcode.PRIVATE_MSG, this::onPrivateMessage)
+                .register(Opcode.QUIT, this::onQuit)
+                .register(Opcode.MESSAGE, this::onMessage)
+                .register(Opcode.STATS, this::onStats)
+                .register(Opcode.HISTORY, this::onHistory)
+                .otherwise((connection, packet) ->
+                        System.err.println("Ignoring " + packet.opcode() + " from " + connection.getClientUsername()));
+    }
+
+    /**
+     * Called once the username has been read and the wire format settled. Registers
+     * the connection and sends the welcome and the initial users/groups bootstrap.
+     */
+    public void onLogin(ClientConnection connection) {
+        String clientUsername = connection.getClientUsername();
+        server.addConnection(connection);
+
+        reply(connection, Packet.of(Opcode.SYSTEM, "Welcome " + clientUsername + "!"));
+        System.out.println(clientUsername + " connected (" + connection.getWireFormat() + ")");
+        server.broadcast(Packet.of(Opcode.SYSTEM, clientUsername + " joined the chat!"), connection);
+
+        // Automatically send the online users and groups lists to the new client
+        ResponseCache responses = server.getResponseCache();
+        reply(connection, Opcode.USERS, responses.users(connection.getWireFormat()));
+        reply(connection, Opcode.GROUPS, responses.groups(clientUsername, connection.getWireFormat()));
+
+        // Then whatever arrived while they were away
+        server.getMailboxes().drain(connection);
+    }
+
+    /**
+     * Handles one incoming packet.
+     *
+     * @return false if the connection has quit and should stop reading
+     */
+    public boolean handle(ClientConnection connection, Packet packet) {
+        commands.dispatch(connection, packet);
+        return packet.opcode() != Opcode.QUIT;
+    }
+
+    public CommandRegistry<ClientConnection> getCommands() {
+        return commands;
+    }
+
+    private void onPublicKey(ClientConnection connection, Packet packet) {
+        server.addPublicKey(connection.getClientUsername(), packet.bytes(0));
+    }
+
+    private void onGetKey(ClientConnection connection, Packet packet) {
+        String target = packet.string(0);
+        server.getKeyDirectory().watch(connection.getClientUsername(), target);
+        byte[] key = server.getPublicKey(target);
+        if (key != null) reply(connection, Packet.of(Opcode.KEY, target, key));
+        else reply(connection, Packet.of(Opcode.ERROR, "No key for " + target));
+    }
+
+    private void onGetKeys(ClientConnection connection, Packet packet) {
+        List<String> targets = packet.strings(0);
+        if (targets.size() > MAX_KEYS_PER_REQUEST) {
+            reply(connection, Packet.of(Opcode.ERROR, "At most " + MAX_KEYS_PER_REQUEST + " keys per /getkeys"));
+            return;
+        }
+        KeyDirectory keys = server.getKeyDirectory();
+        List<UserKey> found = new ArrayList<>(targets.size());
+        List<String> missing = new ArrayList<>();
+        for (String target : targets) {
+            keys.watch(connection.getClientUsername(), target);
+            KeyDirectory.Entry entry = keys.get(target);
+            if (entry != null) found.add(new UserKey(target, entry.key()));
+            else missing.add(target);
+        }
+        reply(connection, Packet.of(Opcode.KEYS, found, missing));
+    }
+
+    // Group commands
+    private void onCreateGroup(ClientConnection connection, Packet packet) {
+        Group group = server.createGroup(packet.string(0), connection.getClientUsername());
+        reply(connection, Packet.of(Opcode.GROUP_CREATED, group.getGroupId(), group.getGroupName()));
+    }
+
+    private void onListGroups(ClientConnection connection, Packet packet) {
+        reply(connection, Opcode.GROUPS,
+                server.getResponseCache().groups(connection.getClientUsername(), connection.getWireFormat()));
+    }
+
+    private void onAddToGroup(ClientConnection connection, Packet packet) {
+        String groupId = packet.string(0);
+        String username = packet.string(1);
+        if (server.addMemberToGroup(groupId, username)) {
+            reply(connection, Packet.of(Opcode.GROUP_UPDATED, groupId));
+            server.broadcastToGroup(groupId, Packet.of(Opcode.GROUP_MEMBER_ADDED, groupId, username), connection);
+        }
+    }
+
+    private void onGroupMembers(ClientConnection connection, Packet packet) {
+        String groupId = packet.string(0);
+        Group group = server.getGroup(groupId);
+        if (group != null) {
+            reply(connection, Packet.of(Opcode.MEMBERS, groupId, List.copyOf(group.getMembers()), group.getEpoch()));
+        }
+    }
+
+    private void onGetUsers(ClientConnection connection, Packet packet) {
+        reply(connection, Opcode.USERS, server.getResponseCache().users(connection.getWireFormat()));
+    }
+
+    private void onGroupMessage(ClientConnection connection, Packet packet) {
+        String groupId = packet.string(0);
+        if (!fits(connection, packet.payload(1), groupId)) {
+            return;
+        }
+        // Tagged with the group id so clients can route to the correct open chat
+        server.getSequencer().relay(Conversation.group(groupId),
+                sequence -> Packet.of(Opcode.GROUP_CHAT, groupId, connection.getClientUsername(), packet.payload(1),
+                        sequence),
+                chat -> server.relayToGroup(groupId, chat, connection));
+    }
+
+    private void onPrivateMessage(ClientConnection connection, Packet packet) {
+        String sender = connection.getClientUsername();
+        String recipient = packet.string(0);
+        if (!server.isKnownUser(recipient)) {
+            reply(connection, Packet.of(Opcode.ERROR, "Unknown user " + recipient));
+            return;
+        }
+        if (!fits(connection, packet.payload(1), sender, recipient)) {
+            return;
+        }
+        server.getSequencer().relay(Conversation.direct(sender, recipient),
+                sequence -> Packet.of(Opcode.DIRECT_CHAT, sender, recipient, packet.payload(1), sequence),
+                chat -> server.relayTo(recipient, chat));
+    }
+
+    private void onQuit(ClientConnection connection, Packet packet) {
+        String clientUsername = connection.getClientUsername();
+        server.broadcast(Packet.of(Opcode.SYSTEM, clientUsername + " left the chat!"), connection);
+        System.out.println(clientUsername + " left the chat!");
+        connection.shutdown();
+    }
+
+    private void onMessage(ClientConnection connection, Packet packet) {
+        if (!fits(connection, packet.payload(0), connection.getClientUsername())) {
+            return;
+        }
+        server.getSequencer().relay(Conversation.BROADCAST,
+                sequence -> Packet.of(Opcode.CHAT, connection.getClientUsername(), packet.payload(0), sequence),
+                chat -> server.broadcast(chat, connection));
+    }
+
+    /**
+     * Replays each requested conversation after the given sequence number, oldest
+     * first, each followed by HISTORY_END with the conversation's latest number. A
+     * conversation with more left than fits the batch is picked up by asking again.
+     */
+    private void onHistory(ClientConnection connection, Packet packet) {
+        String me = connection.getClientUsername();
+        MessageLog messageLog = server.getMessageLog();
+        int budget = Math.max(1, Math.min(HISTORY_BATCH, server.getOutboundCapacity() / 2));
+        for (String entry : packet.strings(0)) {
+            int at = entry.lastIndexOf('@');
+            String name = at > 0 ? entry.substring(0, at) : entry;
+            String conversation = Conversation.resolve(name, me);
+            if (conversation == null || Conversation.isGroup(conversation)
+                    && !server.isGroupMember(Conversation.groupId(conversation), me)) {
+                reply(connection, Packet.of(Opcode.ERROR, "No history for " + name));
+                continue;
+            }
+            long after;
+            try {
+                after = at > 0 ? Long.parseLong(entry.substring(at + 1)) : 0;
+            } catch (NumberFormatException e) {
+                reply(connection, Packet.of(Opcode.ERROR, "Bad history request " + entry));
+                continue;
+            }
+            if (messageLog != null && budget > 0) {
+                for (MessageLog.LogRecord record : messageLog.read(conversation, after, budget)) {
+                    reply(connection, record.packet());
+                    budget--;
+                }
+            }
+            reply(connection, Packet.of(Opcode.HISTORY_END, name, server.getSequencer().lastSequence(conversation)));
+        }
+    }
+
+    private void onStats(ClientConnection connection, Packet packet) {
+        if (!server.isAdmin(connection.getClientUsername())) {
+            reply(connection, Packet.of(Opcode.ERROR, "/stats is only available to admins"));
+            return;
+        }
+        for (String line : server.getMetrics().format()) {
+            reply(connection, Packet.of(Opcode.SYSTEM, line));
+        }
+        for (CommandRegistry.CommandStats stats : server.getCommandStats()) {
+            reply(connection, Packet.of(Opcode.SYSTEM, stats.toString()));
+        }
+    }
+
+    // Checked before the message is numbered: once it is, encoding it for the log or a
+    // recipient must not fail
+    private boolean fits(ClientConnection connection, CipherPayload payload, String... names) {
+        long length = BinaryCodec.payloadLength(payload);
+        for (String name : names) {
+            length += BinaryCodec.utf8Length(name);
+        }
+        if (length <= BinaryCodec.MAX_CHAT_PAYLOAD) {
+            return true;
+        }
+        reply(connection, Packet.of(Opcode.ERROR, "Message too large, at most " + BinaryCodec.MAX_CHAT_PAYLOAD
+                + " bytes"));
+        return false;
+    }
+
+    private void reply(ClientConnection connection, Packet packet) {
+        server.getMetrics().packetsOut(packet.opcode(), 1);
+        connection.send(packet);
+    }
+
+    // For responses encoded ahead of time, see ResponseCache
+    private void reply(ClientConnection connection, Opcode opcode, Frame frame) {
+        server.getMetrics().packetsOut(opcode, 1);
+        connection.sendFrame(frame);
+    }
+}
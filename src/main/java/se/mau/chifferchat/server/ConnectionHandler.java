@@ -1,152 +1,159 @@
 package se.mau.chifferchat.server;
 
-import se.mau.chifferchat.common.Group;
-
+import se.mau.chifferchat.common.BinaryCodec;
+import se.mau.chifferchat.common.Handshake;
+import se.mau.chifferchat.common.Packet;
+import se.mau.chifferchat.common.PacketReader;
+import se.mau.chifferchat.common.TextCodec;
+import se.mau.chifferchat.common.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
-public class ConnectionHandler implements Runnable {
+/**
+ * Blocking thread-per-connection transport. Reads packets from the socket in the
+ * negotiated {@link WireFormat} and hands them to the shared {@link CommandHandler};
+ * a second task on the same executor drains the connection's {@link OutboundQueue}
+ * to the socket.
+ */
+public class ConnectionHandler implements Runnable, ClientConnection {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BATCH_FRAMES = 256;
 
     private final Server server;
     private final Socket client;
-    private String clientUsername;
-    private BufferedReader in;
-    private PrintWriter out;
+    private final CommandHandler commandHandler;
+    private final OutboundQueue outbound;
+    private volatile String clientUsername;
+    private volatile WireFormat wireFormat = WireFormat.TEXT;
+    private InputStream in;
+    private OutputStream out;
 
     public ConnectionHandler(Server server, Socket client) {
         this.server = server;
         this.client = client;
+        this.commandHandler = server.getCommandHandler();
+        this.outbound = server.newOutboundQueue();
     }
 
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-            out = new PrintWriter(client.getOutputStream(), true);
-
-            clientUsername = in.readLine();
-
-            out.println("Welcome " + clientUsername + "!");
-            System.out.println(clientUsername + " connected");
-            server.broadcastMessage(clientUsername + " joined the chat!", this);
-
-            // Automatically send the online users list to the new client
-            List<String> users = server.getOnlineUsers();
-            String usersList = String.join("|", users);
-            System.out.println("Sending initial online users to " + clientUsername + ": " + usersList);
-            out.println("/users " + usersList);
-
-            // Automatically send the groups list
-            List<Group> groups = server.getGroupsForUser(clientUsername);
-            String groupsData = groups.stream()
-                    .map(g -> g.getGroupId() + ":" + g.getGroupName() + ":" + g.getMemberCount())
-                    .collect(Collectors.joining("|"));
-            System.out.println("Sending initial groups to " + clientUsername + ": " + groupsData);
-            out.println("/groups " + groupsData);
-
-            String message;
+            in = new BufferedInputStream(client.getInputStream());
+            out = client.getOutputStream();
+            server.executeConnectionTask(this::writeLoop);
+
+            // Read byte-wise so a binary stream after the handshake is left untouched
+            String firstLine = TextCodec.readLine(in);
+            if (firstLine == null) {
+                shutdown();
+                return;
+            }
+            Handshake handshake = Handshake.parse(firstLine);
+            clientUsername = handshake.username();
+            if (handshake.negotiated()) {
+                sendFrame(Frame.ofLine(handshake.reply(handshake.chooseSuite(server.getCryptoSuites()),
+                        server.getSequencer().numbering())));
+            }
+            wireFormat = handshake.format();
+            PacketReader reader = wireFormat == WireFormat.BINARY
+                    ? BinaryCodec.reader(in)
+                    : TextCodec.reader(new BufferedReader(new InputStreamReader(in, TextCodec.CHARSET)),
+                            TextCodec::decodeClientLine);
 
-            while ((message = in.readLine()) != null) {
+            commandHandler.onLogin(this);
 
-                if (message.startsWith("/pubkey ")) {
-                    String keyB64 = message.substring(8).trim();
-                    server.addPublicKey(clientUsername, keyB64);
-                    continue;
-                }
-                if (message.startsWith("/getkey ")) {
-                    String target = message.substring(8).trim();
-                    String key = server.getPublicKey(target);
-                    if (key != null) out.println("/key " + target + " " + key);
-                    else out.println("/error No key for " + target);
-                    continue;
-                }
+            Packet packet;
 
-                // Group commands
-                if (message.startsWith("/creategroup ")) {
-                    String groupName = message.substring(13).trim();
-                    Group group = server.createGroup(groupName, clientUsername);
-                    out.println("/groupcreated " + group.getGroupId() + " " + group.getGroupName());
-                    continue;
-                }
-                if (message.startsWith("/listgroups")) {
-                    List<Group> groupsList = server.getGroupsForUser(clientUsername);
-                    String groupsInfo = groupsList.stream()
-                            .map(g -> g.getGroupId() + ":" + g.getGroupName() + ":" + g.getMemberCount())
-                            .collect(Collectors.joining("|"));
-                    out.println("/groups " + groupsInfo);
-                    continue;
-                }
-                if (message.startsWith("/addtogroup ")) {
-                    String[] parts = message.substring(12).split(" ", 2);
-                    if (parts.length == 2) {
-                        String groupId = parts[0];
-                        String username = parts[1];
-                        boolean added = server.addMemberToGroup(groupId, username);
-                        if (added) {
-                            out.println("/groupupdated " + groupId);
-                            server.broadcastToGroup(groupId, "/groupmemberadded " + groupId + " " + username, this);
-                        }
-                    }
-                    continue;
-                }
-                if (message.startsWith("/groupmembers ")) {
-                    String groupId = message.substring(14).trim();
-                    Group group = server.getGroup(groupId);
-                    if (group != null) {
-                        String members = String.join("|", group.getMembers());
-                        out.println("/members " + groupId + " " + members);
-                    }
-                    continue;
-                }
-                if (message.startsWith("/getusers")) {
-                    List<String> onlineUsersList = server.getOnlineUsers();
-                    String onlineUsersStr = String.join("|", onlineUsersList);
-                    System.out.println("Sending online users to " + clientUsername + ": " + onlineUsersStr);
-                    out.println("/users " + onlineUsersStr);
-                    continue;
-                }
-                if (message.startsWith("/groupmsg ")) {
-                    int firstSpace = message.indexOf(' ', 10);
-                    if (firstSpace > 0) {
-                        String groupId = message.substring(10, firstSpace);
-                        String groupMessage = message.substring(firstSpace + 1);
-                        // Prefix with group identifier so clients can route to the correct open chat
-                        server.broadcastToGroup(groupId, "/g " + groupId + " [" + clientUsername + "]: " + groupMessage, this);
-                    }
-                    continue;
-                }
-                if (message.startsWith("/quit")) {
-                    server.broadcastMessage(clientUsername + " left the chat!", this);
-                    System.out.println(clientUsername + " left the chat!");
-                    shutdown();
+            while ((packet = reader.read()) != null) {
+                if (!commandHandler.handle(this, packet)) {
                     break;
                 }
+            }
+            // Client hung up without /quit
+            if (!client.isClosed()) {
+                shutdown();
+            }
+        } catch (IOException e) {
+            shutdown();
+        }
+    }
 
-                server.broadcastMessage(clientUsername + ": " + message, this);
+    // Only this task touches the output stream, so writes need no locking. Frames
+    // queued together go out in one socket write; with a flush delay the writer also
+    // waits up to that long for more before flushing.
+    private void writeLoop() {
+        try {
+            OutputStream batch = new BufferedOutputStream(new CountingOutputStream(out), WRITE_BUFFER_SIZE);
+            long flushDelay = server.getFlushDelayNanos();
+            List<Frame> frames = new ArrayList<>();
+            Frame frame;
+            while ((frame = outbound.take()) != null) {
+                long deadline = System.nanoTime() + flushDelay;
+                do {
+                    frame.writeTo(batch);
+                    outbound.drainTo(frames, MAX_BATCH_FRAMES);
+                    for (Frame queued : frames) {
+                        queued.writeTo(batch);
+                    }
+                    frames.clear();
+                    long remaining = deadline - System.nanoTime();
+                    frame = remaining > 0 ? outbound.poll(remaining) : null;
+                } while (frame != null);
+                batch.flush();
             }
         } catch (IOException e) {
             shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void sendFrame(Frame frame) {
+        if (!outbound.offer(frame)) {
+            System.out.println("Disconnecting slow consumer " + clientUsername);
+            shutdown();
         }
     }
 
-    public void sendMessage(String message) {
-        out.println(message);
+    @Override
+    public int getOutboundBacklog() {
+        return outbound.size();
     }
 
+    @Override
     public String getClientUsername() {
         return clientUsername;
     }
 
+    @Override
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !client.isClosed();
+    }
+
     public Socket getClient() {
         return client;
     }
 
+    @Override
     public void shutdown() {
+        outbound.close();
         try {
             if (!client.isClosed()) client.close();
             if (in != null) in.close();
@@ -157,5 +164,18 @@ public class ConnectionHandler implements Runnable {
             server.removeConnection(this);
         }
     }
-}
 
+    // Reports every write that reaches the socket
+    private class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            server.recordWrite(len);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package se.mau.chifferchat.server;
+
+import se.mau.chifferchat.common.Packet;
+import se.mau.chifferchat.common.TextCodec;
+import se.mau.chifferchat.common.WireFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * One protocol message, a text line or a binary frame, encoded once and shared
+ * read-only by every recipient of a fan-out. Recipients write from the same backing
+ * array; nothing is copied or re-encoded per connection.
+ */
+public final class Frame {
+
+    private final byte[] bytes;
+
+    private Frame(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Encodes a protocol line, adding the terminating newline.
+     */
+    public static Frame ofLine(String line) {
+        return new Frame((line + "\n").getBytes(TextCodec.CHARSET));
+    }
+
+    public static Frame encode(Packet packet, WireFormat format) {
+        return new Frame(format.encode(packet));
+    }
+
+    // Only for bytes that were produced by a Frame, e.g. read back from a spill file
+    static Frame wrap(byte[] bytes) {
+        return new Frame(bytes);
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * A fresh read-only view positioned at the start of the frame, for one write.
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+}
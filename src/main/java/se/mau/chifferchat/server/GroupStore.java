@@ -0,0 +1,340 @@
+package se.mau.chifferchat.server;
+
+import se.mau.chifferchat.common.Group;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Durable group registry: a binary snapshot of every group plus a write-ahead log of
+ * the changes made since. Startup reads the snapshot, replays the log and, if the
+ * log was not empty, folds it into a fresh snapshot.
+ * <p>
+ * Callers serialize access (the {@link Server} calls in while holding its monitor).
+ * Each change is written and forced before the call returns; group changes are rare
+ * enough that an fsync each is cheaper than the bookkeeping to batch them.
+ * <p>
+ * Budget: loading 100,000 groups must stay under {@value #LOAD_BUDGET_MILLIS} ms.
+ * Loads that take longer are reported at startup.
+ */
+public class GroupStore implements Closeable {
+
+    public static final long LOAD_BUDGET_MILLIS = 1000;
+
+    // Compact once the log holds this many changes
+    private static final int COMPACT_THRESHOLD = 50_000;
+    private static final int SNAPSHOT_MAGIC = 0x43434753; // "CCGS"
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final String SNAPSHOT_FILE = "groups.snap";
+    private static final String LOG_FILE = "groups.wal";
+
+    private static final byte CREATED = 1;
+    private static final byte MEMBER_ADDED = 2;
+    private static final byte MEMBER_REMOVED = 3;
+
+    private final Path directory;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private FileChannel log;
+    private int logRecords;
+
+    private GroupStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the store and loads every group in it.
+     *
+     * @param groups filled with the stored groups, by id
+     */
+    public static GroupStore open(Path directory, Map<String, Group> groups) throws IOException {
+        Files.createDirectories(directory);
+        GroupStore store = new GroupStore(directory);
+        long start = System.nanoTime();
+        int snapshotGroups = store.readSnapshot(groups);
+        int replayed = store.replayLog(groups);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Group store: loaded " + snapshotGroups + " groups and replayed " + replayed
+                + " changes in " + millis + " ms");
+        if (millis > LOAD_BUDGET_MILLIS * Math.max(1, groups.size() / 100_000)) {
+            System.err.println("Group store: load exceeded its budget of " + LOAD_BUDGET_MILLIS
+                    + " ms per 100k groups");
+        }
+
+        store.log = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (replayed > 0) {
+            store.compact(groups.values());
+        }
+        return store;
+    }
+
+    public void groupCreated(Group group) {
+        try {
+            record.writeByte(CREATED);
+            record.writeUTF(group.getGroupId());
+            record.writeUTF(group.getGroupName());
+            record.writeUTF(group.getCreator());
+            record.writeLong(group.getCreatedAt());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        append();
+    }
+
+    public void memberAdded(String groupId, String username) {
+        memberChanged(MEMBER_ADDED, groupId, username);
+    }
+
+    public void memberRemoved(String groupId, String username) {
+        memberChanged(MEMBER_REMOVED, groupId, username);
+    }
+
+    /**
+     * Replaces the snapshot with the given groups and empties the log, if enough
+     * changes have piled up since the last one.
+     */
+    public void compactIfNeeded(Collection<Group> groups) {
+        if (logRecords >= COMPACT_THRESHOLD) {
+            compact(groups);
+        }
+    }
+
+    public void compact(Collection<Group> groups) {
+        try {
+            writeSnapshot(groups);
+            log.truncate(0);
+            log.force(true);
+            logRecords = 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private void memberChanged(byte type, String groupId, String username) {
+        try {
+            record.writeByte(type);
+            record.writeUTF(groupId);
+            record.writeUTF(username);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        append();
+    }
+
+    // Frames the pending record as: int length, int crc32, body
+    private void append() {
+        byte[] body = recordBytes.toByteArray();
+        recordBytes.reset();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + body.length);
+        buffer.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+        try {
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            log.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        logRecords++;
+    }
+
+    // Snapshot layout: magic, version, then a table of every username, then each group
+    // as id, name, creator index, creation time, epoch and member indices. Members repeat
+    // across groups, so indexing them keeps the file small and the load to one string
+    // decode per distinct user.
+    private int readSnapshot(Map<String, Group> groups) throws IOException {
+        Path path = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (in.getInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a group snapshot: " + path);
+        }
+        // Version 1 had no membership epochs; its groups start over at 0
+        int version = in.getInt();
+        if (version != 1 && version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported group snapshot version " + version + ": " + path);
+        }
+        String[] users = new String[in.getInt()];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = readString(in);
+        }
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            String groupId = readString(in);
+            String groupName = readString(in);
+            String creator = users[in.getInt()];
+            long createdAt = in.getLong();
+            long epoch = version > 1 ? in.getLong() : 0;
+            String[] members = new String[in.getInt()];
+            for (int m = 0; m < members.length; m++) {
+                members[m] = users[in.getInt()];
+            }
+            groups.put(groupId, new Group(groupId, groupName, creator, Arrays.asList(members), createdAt, epoch));
+        }
+        return count;
+    }
+
+    // Written beside the old snapshot and moved over it, so a crash leaves one or the other
+    private void writeSnapshot(Collection<Group> groups) throws IOException {
+        Map<String, Integer> userIndex = new HashMap<>();
+        List<String> users = new ArrayList<>();
+        for (Group group : groups) {
+            userIndex.computeIfAbsent(group.getCreator(), u -> addUser(users, u));
+            for (String member : group.getMembers()) {
+                userIndex.computeIfAbsent(member, u -> addUser(users, u));
+            }
+        }
+
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                    1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(users.size());
+            for (String user : users) {
+                writeString(out, user);
+            }
+            out.writeInt(groups.size());
+            for (Group group : groups) {
+                writeString(out, group.getGroupId());
+                writeString(out, group.getGroupName());
+                out.writeInt(userIndex.get(group.getCreator()));
+                out.writeLong(group.getCreatedAt());
+                out.writeLong(group.getEpoch());
+                List<String> members = group.getMembers();
+                out.writeInt(members.size());
+                for (String member : members) {
+                    out.writeInt(userIndex.get(member));
+                }
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int addUser(List<String> users, String user) {
+        users.add(user);
+        return users.size() - 1;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    // Applies the log on top of the snapshot, stopping at the first torn or corrupt record
+    private int replayLog(Map<String, Group> groups) throws IOException {
+        Path path = directory.resolve(LOG_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        int replayed = 0;
+        long validLength = 0;
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+            DataInputStream in = new DataInputStream(file);
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] body;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > 1 << 20) {
+                        break;
+                    }
+                    body = in.readNBytes(length);
+                    if (body.length < length) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(groups, new DataInputStream(new ByteArrayInputStream(body)));
+                validLength += 8 + body.length;
+                replayed++;
+            }
+        }
+        if (validLength < Files.size(path)) {
+            System.err.println("Group store: discarding torn log tail at byte " + validLength);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+        return replayed;
+    }
+
+    private static void apply(Map<String, Group> groups, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String groupId = in.readUTF();
+        switch (type) {
+            case CREATED -> {
+                String groupName = in.readUTF();
+                String creator = in.readUTF();
+                long createdAt = in.readLong();
+                groups.put(groupId, new Group(groupId, groupName, creator, List.of(creator), createdAt));
+            }
+            case MEMBER_ADDED, MEMBER_REMOVED -> {
+                String username = in.readUTF();
+                Group group = groups.get(groupId);
+                if (group == null) {
+                    return;
+                }
+                if (type == MEMBER_ADDED) group.addMember(username);
+                else group.removeMember(username);
+            }
+            default -> throw new IOException("Unknown group log record " + type);
+        }
+    }
+}
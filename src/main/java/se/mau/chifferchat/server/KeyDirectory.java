@@ -0,0 +1,260 @@
+package se.mau.chifferchat.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Public keys by username and by SHA-256 fingerprint. Lookups are lock-free; updates
+ * are serialized so the two indexes and the file agree.
+ * <p>
+ * With a directory, every change is appended to {@code keys.log} and forced before
+ * {@link #put} returns. The log is rewritten with only the current keys when it is
+ * opened, so it never grows past one record per user plus one session's rotations.
+ * <p>
+ * Also remembers who has looked up whose key, so that a rotated key can be pushed to
+ * the users who are likely to encrypt to it.
+ */
+public class KeyDirectory implements Closeable {
+
+    private static final String LOG_FILE = "keys.log";
+
+    /**
+     * A stored key.
+     */
+    public record Entry(String username, byte[] key, String fingerprint, long updatedAt) {
+    }
+
+    private final ConcurrentHashMap<String, Entry> byUser = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry> byFingerprint = new ConcurrentHashMap<>();
+    // target -> users who looked it up, and the reverse for cleanup
+    private final ConcurrentHashMap<String, Set<String>> watchers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> watching = new ConcurrentHashMap<>();
+    private final Path directory;
+    private FileChannel log;
+
+    /**
+     * An in-memory directory.
+     */
+    public KeyDirectory() {
+        this.directory = null;
+    }
+
+    private KeyDirectory(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens a persistent directory, loading the keys stored in it.
+     */
+    public static KeyDirectory open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        KeyDirectory keys = new KeyDirectory(directory);
+        long start = System.nanoTime();
+        int records = keys.load();
+        keys.compact();
+        System.out.println("Key directory: loaded " + keys.byUser.size() + " keys from " + records + " records in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return keys;
+    }
+
+    public Entry get(String username) {
+        return byUser.get(username);
+    }
+
+    public Entry getByFingerprint(String fingerprint) {
+        return byFingerprint.get(fingerprint);
+    }
+
+    public int size() {
+        return byUser.size();
+    }
+
+    /**
+     * Stores a user's key.
+     *
+     * @return true if it differs from the key stored before
+     */
+    public synchronized boolean put(String username, byte[] key) {
+        Entry previous = byUser.get(username);
+        String fingerprint = fingerprint(key);
+        if (previous != null && previous.fingerprint().equals(fingerprint)) {
+            return false;
+        }
+        Entry entry = new Entry(username, key.clone(), fingerprint, System.currentTimeMillis());
+        if (log != null) {
+            append(entry);
+            force();
+        }
+        index(entry);
+        return true;
+    }
+
+    /**
+     * Notes that {@code watcher} looked up {@code target}'s key.
+     */
+    public void watch(String watcher, String target) {
+        if (watcher.equals(target)) {
+            return;
+        }
+        watchers.computeIfAbsent(target, k -> ConcurrentHashMap.newKeySet()).add(watcher);
+        watching.computeIfAbsent(watcher, k -> ConcurrentHashMap.newKeySet()).add(target);
+    }
+
+    /**
+     * @return the users to tell when {@code target}'s key changes
+     */
+    public Collection<String> watchersOf(String target) {
+        Set<String> users = watchers.get(target);
+        return users != null ? users : Set.of();
+    }
+
+    /**
+     * Forgets everything {@code watcher} looked up, e.g. when they log out.
+     */
+    public void unwatchAll(String watcher) {
+        Set<String> targets = watching.remove(watcher);
+        if (targets == null) {
+            return;
+        }
+        for (String target : targets) {
+            Set<String> users = watchers.get(target);
+            if (users != null) {
+                users.remove(watcher);
+                if (users.isEmpty()) {
+                    watchers.remove(target, users);
+                }
+            }
+        }
+    }
+
+    public static String fingerprint(byte[] key) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(key));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private void index(Entry entry) {
+        Entry previous = byUser.put(entry.username(), entry);
+        if (previous != null) {
+            byFingerprint.remove(previous.fingerprint(), previous);
+        }
+        byFingerprint.put(entry.fingerprint(), entry);
+    }
+
+    // Record: int length, int crc32, then UTF username, int key length, key, long updatedAt
+    private void append(Entry entry) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entry.key().length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(entry.username());
+            out.writeInt(entry.key().length);
+            out.write(entry.key());
+            out.writeLong(entry.updatedAt());
+            byte[] body = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            ByteBuffer buffer = ByteBuffer.allocate(8 + body.length);
+            buffer.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void force() {
+        try {
+            log.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Reads every intact record; a torn tail is dropped by the compaction that follows
+    private int load() throws IOException {
+        Path path = directory.resolve(LOG_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] body;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > 1 << 20) {
+                        break;
+                    }
+                    body = in.readNBytes(length);
+                    if (body.length < length) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    System.err.println("Key directory: discarding corrupt record " + records);
+                    break;
+                }
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(body));
+                String username = fields.readUTF();
+                byte[] key = fields.readNBytes(fields.readInt());
+                long updatedAt = fields.readLong();
+                index(new Entry(username, key, fingerprint(key), updatedAt));
+                records++;
+            }
+        }
+        return records;
+    }
+
+    // Rewrites the log with the current keys only, then keeps it open for appends
+    private void compact() throws IOException {
+        Path temp = directory.resolve(LOG_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            log = channel;
+            for (Entry entry : byUser.values()) {
+                append(entry);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(LOG_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        log = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
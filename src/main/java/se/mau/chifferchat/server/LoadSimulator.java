@@ -0,0 +1,294 @@
+package se.mau.chifferchat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Development load generator for comparing transports. Starts a {@link Server}
+ * in-process, logs in N simulated clients over a single selector and reports heap
+ * and live threads per connection plus fan-out latency, throughput and allocation.
+ * <p>
+ * Usage: {@code LoadSimulator [--transport=blocking|virtual|nio] [--connections=N] [--messages=M]
+ * [--group-size=N] [--payload=BYTES] [--flush-delay-us=N]}
+ * <p>
+ * Without {@code --group-size} every message is a global broadcast; with it, the
+ * first client creates a group of that many members and sends group messages.
+ * <p>
+ * Heap figures include the simulator's own client-side channels, which are the same
+ * for every transport. Platform thread stacks live outside the heap, so compare the
+ * thread counts as well.
+ */
+public class LoadSimulator {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final List<SimClient> clients = new ArrayList<>();
+    private final Selector selector;
+    private long[] latencies = new long[1024];
+    private int latencyCount;
+    private String groupId;
+    private int groupUpdates;
+
+    private LoadSimulator() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    public static void main(String[] args) throws Exception {
+        TransportMode mode = TransportMode.BLOCKING;
+        int connections = 1000;
+        int messages = 20;
+        int loops = Runtime.getRuntime().availableProcessors();
+        int groupSize = 0;
+        int payload = 64;
+        long flushDelayMicros = 0;
+        for (String arg : args) {
+            if (arg.startsWith("--transport=")) {
+                mode = TransportMode.parse(arg.substring("--transport=".length()));
+            } else if (arg.startsWith("--connections=")) {
+                connections = Integer.parseInt(arg.substring("--connections=".length()));
+            } else if (arg.startsWith("--messages=")) {
+                messages = Integer.parseInt(arg.substring("--messages=".length()));
+            } else if (arg.startsWith("--event-loops=")) {
+                loops = Integer.parseInt(arg.substring("--event-loops=".length()));
+            } else if (arg.startsWith("--group-size=")) {
+                groupSize = Integer.parseInt(arg.substring("--group-size=".length()));
+            } else if (arg.startsWith("--payload=")) {
+                payload = Integer.parseInt(arg.substring("--payload=".length()));
+            } else if (arg.startsWith("--flush-delay-us=")) {
+                flushDelayMicros = Long.parseLong(arg.substring("--flush-delay-us=".length()));
+            }
+        }
+
+        // The server logs every join; keep that out of the report
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Server server = new Server(mode, loops);
+        server.setFlushDelay(flushDelayMicros, TimeUnit.MICROSECONDS);
+        Thread serverThread = new Thread(server, "Server-Thread");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        LoadSimulator simulator = new LoadSimulator();
+        long heapBefore = usedHeap();
+        int threadsBefore = Thread.activeCount();
+
+        long connectStart = System.nanoTime();
+        simulator.connect(connections);
+        long connectMs = (System.nanoTime() - connectStart) / 1_000_000;
+
+        long heapAfter = usedHeap();
+        int threadsAfter = Thread.activeCount();
+
+        String target = "";
+        int fanOut = connections - 1;
+        if (groupSize > 0) {
+            fanOut = Math.min(groupSize, connections) - 1;
+            target = "/groupmsg " + simulator.createGroup(fanOut + 1) + " ";
+        }
+
+        String padding = "x".repeat(Math.max(0, payload));
+        long writesBefore = server.getSocketWrites();
+        long allocatedBefore = allocatedBytes();
+        long sendStart = System.nanoTime();
+        simulator.send(target, padding, messages, fanOut);
+        long sendNanos = System.nanoTime() - sendStart;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long writes = server.getSocketWrites() - writesBefore;
+
+        report.println("Transport:            " + mode);
+        report.println("Connections:          " + connections + " (logged in after " + connectMs + " ms)");
+        report.println("Heap per connection:  " + (heapAfter - heapBefore) / connections + " bytes");
+        report.println("Threads:              " + threadsBefore + " -> " + threadsAfter);
+        report.println("Fan-out:              " + fanOut + " recipients, " + payload + " byte payload");
+        report.println("Throughput:           " + simulator.latencyCount * 1_000_000_000L / Math.max(1, sendNanos)
+                + " deliveries/s");
+        report.println("Socket writes:        " + writes + " (" + String.format("%.2f",
+                writes / (double) Math.max(1, simulator.latencyCount)) + " per delivery, flush delay "
+                + flushDelayMicros + " us)");
+        if (allocated >= 0) {
+            report.println("Allocated per send:   " + allocated / Math.max(1, messages) + " bytes (all threads)");
+        }
+        simulator.printLatencies(report, messages, fanOut);
+        System.exit(0);
+    }
+
+    private void connect(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", Server.DEFAULT_PORT));
+            channel.write(ByteBuffer.wrap(("sim-" + i + "\n").getBytes(CHARSET)));
+            channel.configureBlocking(false);
+            SimClient client = new SimClient(channel);
+            channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+            if (i % 100 == 0) {
+                poll(0);
+            }
+        }
+
+        // Wait for every bootstrap, then let the join notifications settle
+        while (clients.stream().anyMatch(c -> !c.bootstrapped)) {
+            poll(100);
+        }
+        while (poll(500) > 0) {
+            // drain
+        }
+    }
+
+    // Returns the group id once every member has been added
+    private String createGroup(int size) throws IOException {
+        SimClient owner = clients.get(0);
+        write(owner, "/creategroup load-test");
+        while (groupId == null) {
+            poll(100);
+        }
+        for (int i = 1; i < size; i++) {
+            write(owner, "/addtogroup " + groupId + " sim-" + i);
+        }
+        while (groupUpdates < size - 1) {
+            poll(100);
+        }
+        while (poll(500) > 0) {
+            // drain membership notifications
+        }
+        return groupId;
+    }
+
+    private void send(String target, String padding, int messages, int fanOut) throws IOException {
+        SimClient sender = clients.get(0);
+        for (int m = 0; m < messages; m++) {
+            write(sender, target + "ping " + System.nanoTime() + " " + padding);
+            poll(0);
+        }
+        long expected = (long) messages * fanOut;
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (latencyCount < expected && System.currentTimeMillis() < deadline) {
+            poll(100);
+        }
+    }
+
+    private static void write(SimClient client, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(CHARSET));
+        while (buffer.hasRemaining()) {
+            client.channel.write(buffer);
+        }
+    }
+
+    private int poll(long timeoutMs) throws IOException {
+        int ready = timeoutMs == 0 ? selector.selectNow() : selector.select(timeoutMs);
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            ((SimClient) key.attachment()).read(this);
+        }
+        return ready;
+    }
+
+    private void recordLatency(long nanos) {
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+        latencies[latencyCount++] = nanos;
+    }
+
+    private void printLatencies(PrintStream report, int messages, int fanOut) {
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        report.println("Deliveries:           " + latencyCount + " of " + (long) messages * fanOut);
+        if (sorted.length == 0) {
+            return;
+        }
+        report.println("Latency p50:          " + sorted[sorted.length / 2] / 1000 + " us");
+        report.println("Latency p99:          " + sorted[(int) (sorted.length * 0.99)] / 1000 + " us");
+        report.println("Latency max:          " + sorted[sorted.length - 1] / 1000 + " us");
+    }
+
+    // Bytes allocated by all live threads, or -1 if the JVM can't tell. The HotSpot
+    // counter is looked up reflectively so the app module needn't require jdk.management.
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] allocated;
+        try {
+            Class<?> hotspot = Class.forName("com.sun.management.ThreadMXBean");
+            if (!hotspot.isInstance(threads)) {
+                return -1;
+            }
+            Method method = hotspot.getMethod("getThreadAllocatedBytes", long[].class);
+            allocated = (long[]) method.invoke(threads, (Object) threads.getAllThreadIds());
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : allocated) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class SimClient {
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+        private final StringBuilder partial = new StringBuilder();
+        private boolean bootstrapped;
+
+        SimClient(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read(LoadSimulator simulator) throws IOException {
+            buffer.clear();
+            if (channel.read(buffer) <= 0) {
+                return;
+            }
+            buffer.flip();
+            partial.append(CHARSET.decode(buffer));
+            int newline;
+            while ((newline = partial.indexOf("\n")) >= 0) {
+                String line = partial.substring(0, newline).trim();
+                partial.delete(0, newline + 1);
+                if (line.startsWith("/groups")) {
+                    bootstrapped = true;
+                } else if (line.startsWith("/groupcreated ")) {
+                    simulator.groupId = line.split(" ")[1];
+                } else if (line.startsWith("/groupupdated ")) {
+                    simulator.groupUpdates++;
+                } else {
+                    int ping = line.indexOf(": ping ");
+                    if (ping > 0) {
+                        int end = line.indexOf(' ', ping + 7);
+                        String sentAt = end > 0 ? line.substring(ping + 7, end) : line.substring(ping + 7);
+                        simulator.recordLatency(System.nanoTime() - Long.parseLong(sentAt));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package se.mau.chifferchat.server;
+
+import se.mau.chifferchat.common.BinaryCodec;
+import se.mau.chifferchat.common.Packet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Store-and-forward mailboxes for chat packets addressed to users who are offline.
+ * <p>
+ * The first {@link #MEMORY_THRESHOLD} packets of a mailbox, up to
+ * {@link #MEMORY_BYTES_THRESHOLD} bytes, are kept in memory (a group message shares one
+ * {@link Packet} between every offline member); beyond that they are encoded and
+ * appended to a temporary spill file, read back in order once the memory part has
+ * been delivered. Mailboxes are bounded per user and in total, both in packets and in
+ * encoded bytes; packets over any limit are dropped and counted. They live only as
+ * long as the process, and the server only opens them for users it knows.
+ * <p>
+ * A mailbox is drained after the login bootstrap on a separate thread, in batches
+ * paced by the connection's outbound queue so that a large mailbox does not overflow
+ * it.
+ */
+public class Mailboxes {
+
+    public static final int DEFAULT_PER_USER_LIMIT = 10_000;
+    public static final int DEFAULT_TOTAL_LIMIT = 1_000_000;
+    public static final long DEFAULT_PER_USER_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_TOTAL_BYTES = 1024L * 1024 * 1024;
+
+    static final int MEMORY_THRESHOLD = 256;
+    static final int MEMORY_BYTES_THRESHOLD = 256 * 1024;
+    private static final int BATCH_SIZE = 128;
+    private static final long BACKLOG_WAIT_MILLIS = 2;
+
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final Server server;
+    private volatile int perUserLimit = DEFAULT_PER_USER_LIMIT;
+    private volatile int totalLimit = DEFAULT_TOTAL_LIMIT;
+    private volatile long perUserBytes = DEFAULT_PER_USER_BYTES;
+    private volatile long totalBytes = DEFAULT_TOTAL_BYTES;
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final Histogram drainNanos = new Histogram();
+    private final Histogram drainSize = new Histogram();
+    private final ExecutorService drainers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "Mailbox-Drain");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Mailboxes(Server server) {
+        this.server = server;
+    }
+
+    public void setLimits(int perUserLimit, int totalLimit) {
+        this.perUserLimit = perUserLimit;
+        this.totalLimit = totalLimit;
+    }
+
+    public void setByteLimits(long perUserBytes, long totalBytes) {
+        this.perUserBytes = perUserBytes;
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * Stores a packet for an offline user.
+     *
+     * @param size the packet's encoded size, counted against the byte limits
+     * @return false if it was dropped because a limit was reached
+     */
+    public boolean deposit(String username, Packet packet, int size) {
+        while (true) {
+            Mailbox mailbox = mailboxes.computeIfAbsent(username, Mailbox::new);
+            mailbox.lock.lock();
+            try {
+                // Raced with a drain that just retired this mailbox
+                if (mailbox.retired) {
+                    continue;
+                }
+                if (mailbox.size() >= perUserLimit || depth.get() >= totalLimit
+                        || mailbox.bytes + size > perUserBytes || bytes.get() + size > totalBytes) {
+                    dropped.increment();
+                    if (mailbox.size() == 0) {
+                        mailbox.retired = true;
+                        mailboxes.remove(username, mailbox);
+                    }
+                    return false;
+                }
+                mailbox.add(packet, size);
+                depth.incrementAndGet();
+                bytes.addAndGet(size);
+                return true;
+            } finally {
+                mailbox.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Delivers a user's mailbox to their connection in the background. Does nothing if
+     * the mailbox is empty or already being drained.
+     */
+    public void drain(ClientConnection connection) {
+        Mailbox mailbox = mailboxes.get(connection.getClientUsername());
+        if (mailbox == null) {
+            return;
+        }
+        mailbox.lock.lock();
+        try {
+            if (mailbox.draining || mailbox.size() == 0) {
+                return;
+            }
+            mailbox.draining = true;
+        } finally {
+            mailbox.lock.unlock();
+        }
+        drainers.execute(() -> drainTo(mailbox, connection));
+    }
+
+    private void drainTo(Mailbox mailbox, ClientConnection connection) {
+        long start = System.nanoTime();
+        // Batches never fill more than half of the outbound queue, and each waits until
+        // there is room for it
+        int capacity = server.getOutboundCapacity();
+        int batchSize = Math.max(1, Math.min(BATCH_SIZE, capacity / 2));
+        int delivered = 0;
+        try {
+            while (connection.isOpen()) {
+                while (connection.isOpen() && connection.getOutboundBacklog() > capacity - batchSize) {
+                    Thread.sleep(BACKLOG_WAIT_MILLIS);
+                }
+                List<Packet> batch;
+                mailbox.lock.lock();
+                try {
+                    long before = mailbox.bytes;
+                    batch = mailbox.take(batchSize);
+                    depth.addAndGet(-batch.size());
+                    bytes.addAndGet(mailbox.bytes - before);
+                    if (batch.isEmpty()) {
+                        mailbox.retired = true;
+                        mailboxes.remove(mailbox.username, mailbox);
+                        break;
+                    }
+                } finally {
+                    mailbox.lock.unlock();
+                }
+                for (Packet packet : batch) {
+                    connection.send(packet);
+                }
+                delivered += batch.size();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mailbox.lock.lock();
+            try {
+                mailbox.draining = false;
+            } finally {
+                mailbox.lock.unlock();
+            }
+        }
+        if (delivered > 0) {
+            drainNanos.record(System.nanoTime() - start);
+            drainSize.record(delivered);
+            System.out.println("Delivered " + delivered + " stored messages to " + connection.getClientUsername());
+        }
+    }
+
+    /**
+     * Packets waiting across all mailboxes.
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Encoded bytes waiting across all mailboxes.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public int getMaxDepth() {
+        int max = 0;
+        for (Mailbox mailbox : mailboxes.values()) {
+            max = Math.max(max, mailbox.size());
+        }
+        return max;
+    }
+
+    public int getMailboxCount() {
+        return mailboxes.size();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getSpilledCount() {
+        return spilled.sum();
+    }
+
+    public Histogram getDrainNanos() {
+        return drainNanos;
+    }
+
+    public Histogram getDrainSize() {
+        return drainSize;
+    }
+
+    public void shutdown() {
+        drainers.shutdownNow();
+        for (Mailbox mailbox : mailboxes.values()) {
+            mailbox.lock.lock();
+            try {
+                mailbox.deleteSpill();
+            } finally {
+                mailbox.lock.unlock();
+            }
+        }
+    }
+
+    private class Mailbox {
+        final String username;
+        final ReentrantLock lock = new ReentrantLock();
+        final ArrayDeque<Packet> packets = new ArrayDeque<>();
+        // Encoded size of each packet in memory, in the same order
+        final ArrayDeque<Integer> sizes = new ArrayDeque<>();
+        long bytes;
+        long memoryBytes;
+        boolean draining;
+        // Removed from the map; deposits must create a new one
+        boolean retired;
+
+        // Spill state; once spilling, new packets go to the file to keep ordering
+        private Path spillFile;
+        private DataOutputStream spillOut;
+        private DataInputStream spillIn;
+        private int spilledPackets;
+
+        Mailbox(String username) {
+            this.username = username;
+        }
+
+        int size() {
+            return packets.size() + spilledPackets;
+        }
+
+        void add(Packet packet, int size) {
+            boolean fits = packets.size() < MEMORY_THRESHOLD && memoryBytes + size <= MEMORY_BYTES_THRESHOLD;
+            if ((spilledPackets == 0 && fits) || !spill(packet)) {
+                // In memory, also when the spill failed rather than lose it
+                packets.addLast(packet);
+                sizes.addLast(size);
+                memoryBytes += size;
+            }
+            bytes += size;
+        }
+
+        List<Packet> take(int max) {
+            List<Packet> batch = new ArrayList<>(Math.min(max, size()));
+            while (batch.size() < max) {
+                Packet packet = packets.pollFirst();
+                if (packet != null) {
+                    int size = sizes.removeFirst();
+                    memoryBytes -= size;
+                    bytes -= size;
+                } else if (spilledPackets > 0) {
+                    packet = unspill();
+                }
+                if (packet == null) {
+                    break;
+                }
+                batch.add(packet);
+            }
+            return batch;
+        }
+
+        private boolean spill(Packet packet) {
+            try {
+                if (spillFile == null) {
+                    spillFile = Files.createTempFile("chifferchat-mailbox-", ".bin");
+                    spillOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile)));
+                    spillIn = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)));
+                }
+                spillOut.write(BinaryCodec.encode(packet));
+                spilledPackets++;
+                spilled.increment();
+                return true;
+            } catch (IOException e) {
+                System.err.println("Failed to spill mailbox of " + username + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        private Packet unspill() {
+            try {
+                spillOut.flush();
+                byte[] body = new byte[spillIn.readInt()];
+                spillIn.readFully(body);
+                spilledPackets--;
+                bytes -= 4 + body.length;
+                if (spilledPackets == 0) {
+                    deleteSpill();
+                }
+                return BinaryCodec.decode(ByteBuffer.wrap(body));
+            } catch (IOException e) {
+                System.err.println("Failed to read mailbox of " + username + ": " + e.getMessage());
+                depth.addAndGet(-spilledPackets);
+                dropped.add(spilledPackets);
+                spilledPackets = 0;
+                bytes = memoryBytes;
+                deleteSpill();
+                return null;
+            }
+        }
+
+        void deleteSpill() {
+            if (spillFile == null) {
+                return;
+            }
+            try {
+                spillOut.close();
+                spillIn.close();
+                Files.deleteIfExists(spillFile);
+            } catch (IOException e) {
+                System.err.println("Failed to delete mailbox spill file: " + e.getMessage());
+            }
+            spillFile = null;
+            spillOut = null;
+            spillIn = null;
+        }
+    }
+}
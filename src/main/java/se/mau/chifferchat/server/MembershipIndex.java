@@ -0,0 +1,73 @@
+package se.mau.chifferchat.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted group membership: which groups each user belongs to, and which members
+ * of each group are currently online. Lets group fan-out touch only online members
+ * and per-user group listing touch only that user's groups.
+ * <p>
+ * Mutators are called by the {@link Server} while it holds its own monitor; the
+ * lookups are lock-free and return live, weakly consistent views.
+ */
+public class MembershipIndex {
+
+    private final ConcurrentHashMap<String, Set<String>> groupsByUser = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<ClientConnection>> onlineByGroup = new ConcurrentHashMap<>();
+
+    /**
+     * @param online the member's connection, or null if they are offline
+     */
+    void addMember(String groupId, String username, ClientConnection online) {
+        groupsByUser.computeIfAbsent(username, k -> ConcurrentHashMap.newKeySet()).add(groupId);
+        if (online != null) {
+            onlineByGroup.computeIfAbsent(groupId, k -> ConcurrentHashMap.newKeySet()).add(online);
+        }
+    }
+
+    void removeMember(String groupId, String username) {
+        removeFrom(groupsByUser, username, groupId);
+        Set<ClientConnection> online = onlineByGroup.get(groupId);
+        if (online != null) {
+            online.removeIf(c -> username.equals(c.getClientUsername()));
+            if (online.isEmpty()) {
+                onlineByGroup.remove(groupId, online);
+            }
+        }
+    }
+
+    void userOnline(ClientConnection connection) {
+        for (String groupId : groupsOf(connection.getClientUsername())) {
+            onlineByGroup.computeIfAbsent(groupId, k -> ConcurrentHashMap.newKeySet()).add(connection);
+        }
+    }
+
+    void userOffline(ClientConnection connection) {
+        for (String groupId : groupsOf(connection.getClientUsername())) {
+            removeFrom(onlineByGroup, groupId, connection);
+        }
+    }
+
+    public Set<String> groupsOf(String username) {
+        Set<String> groupIds = groupsByUser.get(username);
+        return groupIds != null ? Collections.unmodifiableSet(groupIds) : Collections.emptySet();
+    }
+
+    public Collection<ClientConnection> onlineMembers(String groupId) {
+        Set<ClientConnection> online = onlineByGroup.get(groupId);
+        return online != null ? Collections.unmodifiableSet(online) : Collections.emptySet();
+    }
+
+    private static <K, V> void removeFrom(ConcurrentHashMap<K, Set<V>> index, K key, V value) {
+        Set<V> values = index.get(key);
+        if (values != null) {
+            values.remove(value);
+            if (values.isEmpty()) {
+                index.remove(key, values);
+            }
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package se.mau.chifferchat.server;
+
+import se.mau.chifferchat.common.BinaryCodec;
+import se.mau.chifferchat.common.Packet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of relayed chat packets, stored in fixed-size memory-mapped
+ * segment files named after the log offset they start at.
+ * <p>
+ * Appending copies the record into the mapped segment under a short lock and
+ * returns; a background thread forces dirty pages to disk every flush interval, so
+ * every append in that window shares one fsync and the fan-out path never waits on
+ * the disk. A process crash loses nothing the kernel has seen; an OS crash loses at
+ * most one flush interval.
+ * <p>
+ * Record layout: {@code int length, int crc32, long sequence, long timestamp,
+ * short conversation length, conversation (UTF-8), packet (binary frame)}, where
+ * length and crc cover everything after the crc.
+ * <p>
+ * Each conversation keeps a sparse index of every {@value #INDEX_INTERVAL}th record's
+ * offset; reads start from the nearest entry and scan forward. Every append leaves
+ * a zero header after its record, so a segment always ends in one and stale bytes
+ * from before a crash are never read as records. A rolled segment is forced by the
+ * flusher along with the next interval's appends. On startup the last two segments
+ * are checksummed and truncated after their last intact record; older ones were
+ * forced long before and are only scanned to rebuild the index.
+ * <p>
+ * The log has an id, created with it and kept in {@code log.id}, so clients can tell
+ * that sequence numbers they saved still refer to the same history.
+ */
+public class MessageLog implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 20;
+
+    private static final int INDEX_INTERVAL = 32;
+    private static final int HEADER_SIZE = 8;
+    private static final String SUFFIX = ".log";
+    private static final String ID_FILE = "log.id";
+
+    /**
+     * One logged packet.
+     */
+    public record LogRecord(String conversation, long sequence, long timestamp, Packet packet) {
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long flushIntervalMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, ConversationIndex> conversations = new HashMap<>();
+    // Rolled segments the flusher has yet to force; guarded by the lock
+    private final List<Segment> unforced = new ArrayList<>();
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final Histogram syncNanos = new Histogram();
+    private String id;
+    private Segment active;
+    private volatile boolean dirty;
+    private volatile boolean closed;
+    private Thread flusher;
+
+    private MessageLog(Path directory, int segmentSize, long flushIntervalMillis) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    public static MessageLog open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public static MessageLog open(Path directory, int segmentSize, long flushIntervalMillis) throws IOException {
+        if (segmentSize < BinaryCodec.MAX_FRAME_SIZE + 1024) {
+            throw new IllegalArgumentException("Segment size must fit the largest frame");
+        }
+        Files.createDirectories(directory);
+        MessageLog log = new MessageLog(directory, segmentSize, flushIntervalMillis);
+        log.id = loadOrCreateId(directory.resolve(ID_FILE));
+        long start = System.nanoTime();
+        long records = log.recover();
+        System.out.println("Message log: recovered " + records + " records from " + log.segments.size()
+                + " segments in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        log.flusher = new Thread(log::flushLoop, "MessageLog-Flusher");
+        log.flusher.setDaemon(true);
+        log.flusher.start();
+        return log;
+    }
+
+    private static String loadOrCreateId(Path path) throws IOException {
+        if (Files.exists(path)) {
+            return Files.readString(path, StandardCharsets.UTF_8).trim();
+        }
+        String id = UUID.randomUUID().toString();
+        Files.writeString(path, id, StandardCharsets.UTF_8);
+        return id;
+    }
+
+    /**
+     * Identifies this log's history; a new log, e.g. after the data directory was
+     * wiped, has a new id.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Appends a packet to a conversation. Sequence numbers are assigned by the caller
+     * and must increase within each conversation.
+     */
+    public void append(String conversation, long sequence, Packet packet) {
+        byte[] conversationBytes = conversation.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = BinaryCodec.encode(packet);
+        int bodyLength = 8 + 8 + 2 + conversationBytes.length + frame.length;
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Message log is closed");
+            }
+            if (active.limit + HEADER_SIZE + bodyLength > segmentSize) {
+                roll();
+            }
+            ConversationIndex index = conversations.computeIfAbsent(conversation, k -> new ConversationIndex());
+            if (sequence <= index.lastSequence) {
+                throw new IllegalArgumentException("Sequence " + sequence + " is not after " + index.lastSequence);
+            }
+            int position = active.limit;
+            ByteBuffer buffer = active.buffer.duplicate().position(position + HEADER_SIZE);
+            buffer.putLong(sequence)
+                    .putLong(System.currentTimeMillis())
+                    .putShort((short) conversationBytes.length)
+                    .put(conversationBytes)
+                    .put(frame);
+            CRC32 crc = new CRC32();
+            crc.update(active.buffer.duplicate().position(position + HEADER_SIZE).limit(position + HEADER_SIZE
+                    + bodyLength));
+            int end = position + HEADER_SIZE + bodyLength;
+            if (end + HEADER_SIZE <= segmentSize) {
+                active.buffer.putLong(end, 0);
+            }
+            // Length last, so a torn write never looks like a complete record
+            active.buffer.putInt(position + 4, (int) crc.getValue());
+            active.buffer.putInt(position, bodyLength);
+            active.limit = end;
+            index.add(sequence, active.baseOffset + position);
+            dirty = true;
+            appends.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads up to {@code max} records of a conversation with a sequence above
+     * {@code afterSequence}, oldest first. Only the index lookup holds the append
+     * lock; the scan runs over read-only views and stops at the conversation's last
+     * record as of the lookup.
+     */
+    public List<LogRecord> read(String conversation, long afterSequence, int max) {
+        long offset;
+        long end;
+        long lastSequence;
+        List<Segment> snapshot;
+        lock.lock();
+        try {
+            ConversationIndex index = conversations.get(conversation);
+            if (index == null || index.lastSequence <= afterSequence || max <= 0) {
+                return List.of();
+            }
+            offset = index.floorOffset(afterSequence + 1);
+            lastSequence = index.lastSequence;
+            end = index.lastOffset + 1;
+            snapshot = new ArrayList<>(segments.tailMap(segments.floorKey(offset), true).values());
+        } finally {
+            lock.unlock();
+        }
+
+        byte[] conversationBytes = conversation.getBytes(StandardCharsets.UTF_8);
+        List<LogRecord> records = new ArrayList<>();
+        boolean done = false;
+        for (Segment segment : snapshot) {
+            int position = (int) Math.max(0, offset - segment.baseOffset);
+            int limit = (int) Math.min(segment.limit, end - segment.baseOffset);
+            ByteBuffer view = segment.buffer.asReadOnlyBuffer();
+            while (position < limit && !done) {
+                int length = view.getInt(position);
+                int body = position + HEADER_SIZE;
+                long sequence = view.getLong(body);
+                if (sequence > afterSequence && isConversation(view, body + 16, conversationBytes)) {
+                    int frameStart = body + 18 + conversationBytes.length;
+                    ByteBuffer frame = view.duplicate().position(frameStart + 4).limit(body + length);
+                    try {
+                        records.add(new LogRecord(conversation, sequence, view.getLong(body + 8),
+                                BinaryCodec.decode(frame)));
+                    } catch (IOException e) {
+                        System.err.println("Skipping unreadable log record at " + (segment.baseOffset + position));
+                    }
+                    done = sequence >= lastSequence || records.size() >= max;
+                }
+                position = body + length;
+            }
+            if (done) {
+                break;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the sequence of the newest record in the conversation, or 0 if there is none
+     */
+    public long lastSequence(String conversation) {
+        lock.lock();
+        try {
+            ConversationIndex index = conversations.get(conversation);
+            return index == null ? 0 : index.lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk.
+     */
+    public void sync() {
+        Segment segment;
+        List<Segment> sealed;
+        lock.lock();
+        try {
+            segment = active;
+            sealed = unforced.isEmpty() ? List.of() : new ArrayList<>(unforced);
+            unforced.clear();
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+        long start = System.nanoTime();
+        for (Segment rolled : sealed) {
+            rolled.buffer.force();
+        }
+        segment.buffer.force();
+        syncNanos.record(System.nanoTime() - start);
+        syncs.incrementAndGet();
+    }
+
+    public long getAppendCount() {
+        return appends.get();
+    }
+
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    public Histogram getSyncNanos() {
+        return syncNanos;
+    }
+
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        sync();
+        lock.lock();
+        try {
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+        flusher.interrupt();
+    }
+
+    // Group commit: one force per interval covers every append made during it
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (dirty && !closed) {
+                try {
+                    sync();
+                } catch (RuntimeException e) {
+                    System.err.println("Message log sync failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Caller holds the lock, which the fan-out path waits on, so the full segment is
+    // left for the flusher to force. The last append already wrote its end header.
+    private void roll() {
+        unforced.add(active);
+        dirty = true;
+        try {
+            active = openSegment(active.baseOffset + active.limit);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        segments.put(active.baseOffset, active);
+    }
+
+    private Segment openSegment(long baseOffset) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        return new Segment(baseOffset, channel, buffer);
+    }
+
+    private long recover() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(SUFFIX))
+                    .forEach(name -> bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length()))));
+        }
+        bases.sort(null);
+        if (bases.isEmpty()) {
+            bases.add(0L);
+        }
+        long records = 0;
+        for (int i = 0; i < bases.size(); i++) {
+            Segment segment = openSegment(bases.get(i));
+            segments.put(segment.baseOffset, segment);
+            // The segment before the active one may have been rolled too recently to be forced
+            records += scan(segment, i >= bases.size() - 2);
+        }
+        active = segments.lastEntry().getValue();
+        return records;
+    }
+
+    // Rebuilds the index from one segment, verifying and truncating it if it was active
+    private long scan(Segment segment, boolean verify) {
+        ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        long records = 0;
+        CRC32 crc = new CRC32();
+        while (position + HEADER_SIZE <= segmentSize) {
+            int length = buffer.getInt(position);
+            int body = position + HEADER_SIZE;
+            if (length < 18 || body + length > segmentSize) {
+                break;
+            }
+            if (verify) {
+                crc.reset();
+                crc.update(buffer.duplicate().position(body).limit(body + length));
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    System.err.println("Message log: discarding torn record at " + (segment.baseOffset + position));
+                    break;
+                }
+            }
+            long sequence = buffer.getLong(body);
+            String conversation = readConversation(buffer, body + 16);
+            ConversationIndex index = conversations.computeIfAbsent(conversation, k -> new ConversationIndex());
+            if (sequence <= index.lastSequence) {
+                // Left over from before a crash in a segment written without end headers
+                System.err.println("Message log: stale record at " + (segment.baseOffset + position));
+                break;
+            }
+            index.add(sequence, segment.baseOffset + position);
+            position = body + length;
+            records++;
+        }
+        segment.limit = position;
+        if (verify) {
+            // Clear whatever a crash left behind so it can't be mistaken for records later
+            int dirtyEnd = Math.min(segmentSize, position + HEADER_SIZE);
+            for (int i = position; i < dirtyEnd; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            segment.buffer.force();
+        }
+        return records;
+    }
+
+    // Compares the stored name without decoding it
+    private static boolean isConversation(ByteBuffer buffer, int at, byte[] conversation) {
+        return buffer.getShort(at) == conversation.length
+                && buffer.slice(at + 2, conversation.length).equals(ByteBuffer.wrap(conversation));
+    }
+
+    private static String readConversation(ByteBuffer buffer, int at) {
+        int length = buffer.getShort(at);
+        byte[] bytes = new byte[length];
+        buffer.get(at + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Segment {
+        final long baseOffset;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // End of the last complete record; written under the log lock
+        volatile int limit;
+
+        Segment(long baseOffset, FileChannel channel, MappedByteBuffer buffer) {
+            this.baseOffset = baseOffset;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    // Sequence -> offset for every INDEX_INTERVAL-th record of one conversation
+    private static class ConversationIndex {
+        long lastSequence;
+        long lastOffset;
+        long[] sequences = new long[4];
+        long[] offsets = new long[4];
+        int size;
+
+        void add(long sequence, long offset) {
+            lastSequence = sequence;
+            lastOffset = offset;
+            if (size > 0 && (sequence - 1) % INDEX_INTERVAL != 0) {
+                return;
+            }
+            if (size == sequences.length) {
+                sequences = Arrays.copyOf(sequences, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            sequences[size] = sequence;
+            offsets[size] = offset;
+            size++;
+        }
+
+        // Offset of the last indexed record at or before the sequence
+        long floorOffset(long sequence) {
+            int i = Arrays.binarySearch(sequences, 0, size, sequence);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            return offsets[Math.max(0, i)];
+        }
+    }
+}
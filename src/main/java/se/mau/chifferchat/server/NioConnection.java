@@ -0,0 +1,273 @@
+package se.mau.chifferchat.server;
+
+import se.mau.chifferchat.common.BinaryCodec;
+import se.mau.chifferchat.common.Handshake;
+import se.mau.chifferchat.common.Packet;
+import se.mau.chifferchat.common.TextCodec;
+import se.mau.chifferchat.common.WireFormat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking counterpart of {@link ConnectionHandler}. Bytes are read and written
+ * by the owning {@link NioEventLoop}; complete lines or frames are decoded and
+ * passed to the shared {@link CommandHandler} on the loop thread.
+ */
+public class NioConnection implements ClientConnection {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Most frames handed to one gathering write
+    private static final int MAX_GATHER = 64;
+    // Largest message we buffer: a full binary frame plus its length prefix
+    private static final int MAX_BUFFER_SIZE = Math.max(TextCodec.MAX_LINE_LENGTH, BinaryCodec.MAX_FRAME_SIZE + 4);
+
+    private final Server server;
+    private final NioEventLoop eventLoop;
+    private final SocketChannel channel;
+    private final CommandHandler commandHandler;
+    // Unconsumed input, kept in read mode between calls to onReadable
+    private ByteBuffer inbound = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+    // Bytes past inbound's position already known not to contain a newline
+    private int scanned;
+    private final OutboundQueue outbound;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private SelectionKey selectionKey;
+    // Frames taken off the queue but not yet fully written; loop thread only
+    private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private volatile int inFlightCount;
+    // Set while this connection waits in its loop's dirty list
+    boolean flushPending;
+    private volatile String clientUsername;
+    private volatile WireFormat wireFormat = WireFormat.TEXT;
+    private boolean loggedIn;
+    private boolean quit;
+
+    public NioConnection(Server server, NioEventLoop eventLoop, SocketChannel channel) {
+        this.server = server;
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.commandHandler = server.getCommandHandler();
+        this.outbound = server.newOutboundQueue();
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    void onReadable() throws IOException {
+        inbound.compact();
+        if (!inbound.hasRemaining()) {
+            if (inbound.capacity() >= MAX_BUFFER_SIZE) {
+                System.err.println("Message too long from " + clientUsername + ", closing connection");
+                shutdown();
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(inbound.capacity() * 2, MAX_BUFFER_SIZE));
+            inbound.flip();
+            larger.put(inbound);
+            inbound = larger;
+        }
+        int read = channel.read(inbound);
+        inbound.flip();
+        if (read == -1) {
+            shutdown();
+            return;
+        }
+
+        try {
+            while (!quit && !closed.get() && decodeNext()) {
+                // keep going while whole messages are buffered
+            }
+        } catch (ProtocolException e) {
+            System.err.println("Protocol error from " + clientUsername + ": " + e.getMessage());
+            shutdown();
+        }
+    }
+
+    // Handles one complete message from the inbound buffer, if there is one
+    private boolean decodeNext() throws ProtocolException {
+        if (loggedIn && wireFormat == WireFormat.BINARY) {
+            return decodeFrame();
+        }
+        String line = nextLine();
+        if (line == null) {
+            return false;
+        }
+        if (!loggedIn) {
+            onHandshake(line);
+        } else {
+            Packet packet = TextCodec.decodeClientLine(line);
+            if (packet != null) {
+                onPacket(packet);
+            }
+        }
+        return true;
+    }
+
+    private String nextLine() throws ProtocolException {
+        int start = inbound.position();
+        for (int i = start + scanned; i < inbound.limit(); i++) {
+            if (inbound.get(i) == '\n') {
+                byte[] bytes = new byte[i - start];
+                inbound.get(bytes);
+                inbound.get(); // the newline
+                scanned = 0;
+                return TextCodec.stripCarriageReturn(new String(bytes, TextCodec.CHARSET));
+            }
+        }
+        scanned = inbound.remaining();
+        if (scanned > TextCodec.MAX_LINE_LENGTH) {
+            throw new ProtocolException("Line too long");
+        }
+        return null;
+    }
+
+    private boolean decodeFrame() throws ProtocolException {
+        if (inbound.remaining() < 4) {
+            return false;
+        }
+        int length = inbound.getInt(inbound.position());
+        if (length < 2 || length > BinaryCodec.MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        if (inbound.remaining() < 4 + length) {
+            return false;
+        }
+        int bodyStart = inbound.position() + 4;
+        ByteBuffer body = inbound.duplicate().position(bodyStart).limit(bodyStart + length);
+        inbound.position(bodyStart + length);
+        onPacket(BinaryCodec.decode(body));
+        return true;
+    }
+
+    private void onHandshake(String line) {
+        Handshake handshake = Handshake.parse(line);
+        clientUsername = handshake.username();
+        if (handshake.negotiated()) {
+            sendFrame(Frame.ofLine(handshake.reply(handshake.chooseSuite(server.getCryptoSuites()),
+                    server.getSequencer().numbering())));
+        }
+        wireFormat = handshake.format();
+        loggedIn = true;
+        commandHandler.onLogin(this);
+    }
+
+    private void onPacket(Packet packet) {
+        if (!commandHandler.handle(this, packet)) {
+            quit = true;
+        }
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    @Override
+    public void sendFrame(Frame frame) {
+        if (closed.get()) {
+            return;
+        }
+        if (!outbound.offer(frame)) {
+            System.out.println("Disconnecting slow consumer " + clientUsername);
+            shutdown();
+            return;
+        }
+        // The loop writes everything queued during a tick together, see NioEventLoop
+        if (eventLoop.inEventLoop()) {
+            eventLoop.markDirty(this);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(() -> {
+                flushScheduled.set(false);
+                eventLoop.markDirty(this);
+            });
+        }
+    }
+
+    void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            shutdown();
+        }
+    }
+
+    // Must run on the event loop thread. Hands up to MAX_GATHER queued frames to a
+    // single gathering write.
+    private void flush() throws IOException {
+        if (closed.get() || selectionKey == null || !selectionKey.isValid()) {
+            return;
+        }
+        while (true) {
+            Frame frame;
+            while (inFlight.size() < MAX_GATHER && (frame = outbound.poll()) != null) {
+                inFlight.addLast(frame.buffer());
+            }
+            inFlightCount = inFlight.size();
+            if (inFlight.isEmpty()) {
+                break;
+            }
+            int count = 0;
+            for (ByteBuffer buffer : inFlight) {
+                gather[count++] = buffer;
+            }
+            long written = channel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            server.recordWrite(written);
+            while (!inFlight.isEmpty() && !inFlight.peekFirst().hasRemaining()) {
+                inFlight.pollFirst();
+            }
+            inFlightCount = inFlight.size();
+            if (!inFlight.isEmpty()) {
+                // Socket send buffer is full; resume when writable
+                selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    public int getOutboundBacklog() {
+        return outbound.size() + inFlightCount;
+    }
+
+    @Override
+    public String getClientUsername() {
+        return clientUsername;
+    }
+
+    @Override
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    @Override
+    public void shutdown() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (selectionKey != null) selectionKey.cancel();
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close connection: " + e.getMessage());
+        } finally {
+            outbound.close();
+            server.removeConnection(this);
+        }
+    }
+}
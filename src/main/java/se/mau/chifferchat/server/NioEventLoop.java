@@ -0,0 +1,170 @@
+package se.mau.chifferchat.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single selector thread. Owns the read/write readiness of every
+ * {@link NioConnection} registered with it; other threads hand it work through
+ * {@link #execute(Runnable)}.
+ */
+public class NioEventLoop implements Runnable {
+
+    private final Server server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Connections with frames queued this tick; flushed together once the tick's
+    // reads and tasks are done, or after the server's flush delay
+    private final ArrayList<NioConnection> dirty = new ArrayList<>();
+    private long dirtySince;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public NioEventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Registers a freshly accepted channel with this loop. Safe to call from any thread.
+     */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(server, this, channel);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.setSelectionKey(key);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the loop thread, waking the selector if needed.
+     */
+    public void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Loop thread only
+    void markDirty(NioConnection connection) {
+        if (connection.flushPending) {
+            return;
+        }
+        connection.flushPending = true;
+        if (dirty.isEmpty()) {
+            dirtySince = System.nanoTime();
+        }
+        dirty.add(connection);
+    }
+
+    private void flushDirty() {
+        for (NioConnection connection : dirty) {
+            connection.flushPending = false;
+            connection.flushQuietly();
+        }
+        dirty.clear();
+    }
+
+    @Override
+    public void run() {
+        long flushDelay = server.getFlushDelayNanos();
+        while (running) {
+            try {
+                if (dirty.isEmpty()) {
+                    selector.select();
+                } else {
+                    long wait = dirtySince + flushDelay - System.nanoTime();
+                    if (wait <= 0) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                    }
+                }
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.shutdown();
+                    } catch (RuntimeException e) {
+                        // A bug handling one connection must not stop the loop for the others
+                        System.err.println("Error handling connection, closing it: " + e);
+                        e.printStackTrace();
+                        connection.shutdown();
+                    }
+                }
+                if (!dirty.isEmpty() && System.nanoTime() - dirtySince >= flushDelay) {
+                    flushDirty();
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Event loop error: " + e);
+            }
+        }
+
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (key.attachment() instanceof NioConnection connection) {
+                connection.shutdown();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Event loop task failed: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
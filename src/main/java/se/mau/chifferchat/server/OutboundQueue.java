@@ -0,0 +1,422 @@
+package se.mau.chifferchat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one client. Fan-out only
+ * ever calls {@link #offer(Frame)}, so a slow socket never blocks the sender; the
+ * connection's own writer drains it. Uses a {@link ReentrantLock} rather than a
+ * monitor so a writer parked in {@link #take()} does not pin a virtual thread.
+ * <p>
+ * With {@link SlowConsumerPolicy#SPILL}, frames beyond the capacity go to a spill
+ * file. {@link #offer(Frame)} only moves them to an overflow list; a shared spill
+ * thread writes them out and the consumer reads them back, both without the queue
+ * lock, so the senders never wait on the disk. In order, the consumer sees the
+ * frames in memory, those on disk, those being written, then the overflow.
+ */
+public class OutboundQueue {
+
+    // Beyond this the spill file is considered runaway and the client is dropped
+    private static final long MAX_SPILL_BYTES = 64L * 1024 * 1024;
+
+    private static final ExecutorService spiller = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "OutboundQueue-Spill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final ArrayDeque<Frame> frames;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicLong dropped = new AtomicLong();
+    private boolean closed;
+
+    // Spill state, only used with SlowConsumerPolicy.SPILL. The lists and counts are
+    // guarded by the lock, the file by spillLock; code holding both takes spillLock first.
+    private final ReentrantLock spillLock = new ReentrantLock();
+    private final ArrayDeque<Frame> overflow = new ArrayDeque<>();
+    private final ArrayDeque<Frame> writing = new ArrayDeque<>();
+    private boolean spillScheduled;
+    private boolean spillFailed;
+    private int onDisk;
+    // Records at the head of the file that were taken from writing while on their way out
+    private int staleOnDisk;
+    private long spilledBytes;
+    private Path spillFile;
+    private DataOutputStream spillOut;
+    private DataInputStream spillIn;
+
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.frames = new ArrayDeque<>(Math.min(this.capacity, 64));
+    }
+
+    /**
+     * Queues a frame, applying the slow-consumer policy if the queue is full.
+     *
+     * @return false if the consumer should be disconnected
+     */
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            // Once spilling, everything goes through the spill to keep ordering
+            if (!spilling() && frames.size() < capacity) {
+                frames.addLast(frame);
+                notEmpty.signal();
+                return true;
+            }
+            switch (policy) {
+                case DROP_OLDEST -> {
+                    frames.pollFirst();
+                    frames.addLast(frame);
+                    dropped.incrementAndGet();
+                    return true;
+                }
+                case SPILL -> {
+                    if (spillFailed || spilledBytes + frame.length() > MAX_SPILL_BYTES) {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                    overflow.addLast(frame);
+                    spilledBytes += frame.length();
+                    if (!spillScheduled) {
+                        spillScheduled = true;
+                        spiller.execute(this::writeOverflow);
+                    }
+                    notEmpty.signal();
+                    return true;
+                }
+                default -> {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the next frame without blocking, or null if there is none.
+     */
+    public Frame poll() {
+        lock.lock();
+        try {
+            Frame frame = nextInMemory();
+            if (frame != null || onDisk == 0) {
+                return frame;
+            }
+        } finally {
+            lock.unlock();
+        }
+        List<Frame> read = new ArrayList<>(1);
+        readSpilled(read, 1);
+        return read.isEmpty() ? null : read.get(0);
+    }
+
+    /**
+     * Moves up to {@code max} waiting frames into {@code batch} under a single lock
+     * acquisition, without blocking.
+     *
+     * @return the number of frames moved
+     */
+    public int drainTo(Collection<Frame> batch, int max) {
+        lock.lock();
+        try {
+            int count = 0;
+            Frame frame;
+            while (count < max && (frame = nextInMemory()) != null) {
+                batch.add(frame);
+                count++;
+            }
+            if (count > 0 || onDisk == 0) {
+                return count;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return readSpilled(batch, max);
+    }
+
+    /**
+     * Waits up to the given time for a frame.
+     *
+     * @return the next frame, or null if none arrived in time or the queue is closed
+     */
+    public Frame poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            Frame frame;
+            long remaining = timeoutNanos;
+            while ((frame = nextInMemory()) == null && onDisk == 0) {
+                if (closed || remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            if (frame != null) {
+                return frame;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return poll();
+    }
+
+    /**
+     * Blocks until a frame is available.
+     *
+     * @return the next frame, or null once the queue has been closed
+     */
+    public Frame take() throws InterruptedException {
+        while (true) {
+            lock.lock();
+            try {
+                Frame frame;
+                while ((frame = nextInMemory()) == null && onDisk == 0) {
+                    if (closed) {
+                        return null;
+                    }
+                    notEmpty.await();
+                }
+                if (frame != null) {
+                    return frame;
+                }
+            } finally {
+                lock.unlock();
+            }
+            Frame frame = poll();
+            if (frame != null) {
+                return frame;
+            }
+        }
+    }
+
+    // Caller holds the lock. Null when the next frame is on disk or there is none.
+    private Frame nextInMemory() {
+        Frame frame = frames.pollFirst();
+        if (frame != null || onDisk > 0) {
+            return frame;
+        }
+        frame = writing.pollFirst();
+        if (frame != null) {
+            staleOnDisk++;
+        } else {
+            frame = overflow.pollFirst();
+        }
+        if (frame != null) {
+            spilledBytes -= frame.length();
+        }
+        return frame;
+    }
+
+    private boolean spilling() {
+        return onDisk > 0 || !writing.isEmpty() || !overflow.isEmpty();
+    }
+
+    /**
+     * Number of frames waiting, including any spilled to disk.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size() + onDisk + writing.size() + overflow.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Wakes the writer and discards anything still queued.
+     */
+    public void close() {
+        spillLock.lock();
+        try {
+            lock.lock();
+            try {
+                closed = true;
+                frames.clear();
+                overflow.clear();
+                writing.clear();
+                deleteSpill();
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    // Runs on the spill thread until the overflow is empty
+    private void writeOverflow() {
+        while (true) {
+            List<Frame> batch;
+            lock.lock();
+            try {
+                if (closed || overflow.isEmpty()) {
+                    spillScheduled = false;
+                    return;
+                }
+                writing.addAll(overflow);
+                overflow.clear();
+                batch = new ArrayList<>(writing);
+            } finally {
+                lock.unlock();
+            }
+            spillLock.lock();
+            try {
+                IOException failure = null;
+                try {
+                    if (spillFile == null && !isClosed()) {
+                        spillFile = Files.createTempFile("chifferchat-spill-", ".bin");
+                        spillOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile)));
+                        spillIn = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)));
+                    }
+                    if (spillOut != null) {
+                        for (Frame frame : batch) {
+                            spillOut.writeInt(frame.length());
+                            frame.writeTo(spillOut);
+                        }
+                        spillOut.flush();
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+                lock.lock();
+                try {
+                    if (failure != null) {
+                        System.err.println("Failed to spill outbound frames: " + failure.getMessage());
+                        // The next offer disconnects the client
+                        spillFailed = true;
+                        dropped.addAndGet(onDisk + writing.size());
+                        writing.clear();
+                        deleteSpill();
+                    } else {
+                        onDisk += writing.size();
+                        writing.clear();
+                    }
+                    notEmpty.signal();
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                spillLock.unlock();
+            }
+        }
+    }
+
+    // Reads up to max frames back from the spill file without the queue lock
+    private int readSpilled(Collection<Frame> batch, int max) {
+        spillLock.lock();
+        try {
+            int available;
+            int stale;
+            lock.lock();
+            try {
+                available = closed || spillIn == null ? 0 : Math.min(max, onDisk);
+                stale = staleOnDisk;
+            } finally {
+                lock.unlock();
+            }
+            if (available == 0) {
+                return 0;
+            }
+            int read = 0;
+            long bytes = 0;
+            IOException failure = null;
+            try {
+                for (int i = 0; i < stale; i++) {
+                    spillIn.skipNBytes(spillIn.readInt());
+                }
+                while (read < available) {
+                    byte[] frame = new byte[spillIn.readInt()];
+                    spillIn.readFully(frame);
+                    batch.add(Frame.wrap(frame));
+                    read++;
+                    bytes += frame.length;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            lock.lock();
+            try {
+                staleOnDisk -= stale;
+                onDisk -= read;
+                spilledBytes -= bytes;
+                if (failure != null) {
+                    System.err.println("Failed to read spilled frames: " + failure.getMessage());
+                    dropped.addAndGet(onDisk);
+                    deleteSpill();
+                } else if (onDisk == 0) {
+                    // Caught up; start over with an empty file next time
+                    deleteSpill();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return read;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds both locks
+    private void deleteSpill() {
+        if (spillFile != null) {
+            try {
+                spillOut.close();
+                spillIn.close();
+                Files.deleteIfExists(spillFile);
+            } catch (IOException e) {
+                System.err.println("Failed to delete spill file: " + e.getMessage());
+            }
+        }
+        spillFile = null;
+        spillOut = null;
+        spillIn = null;
+        onDisk = 0;
+        staleOnDisk = 0;
+        spilledBytes = 0;
+        for (Frame frame : writing) {
+            spilledBytes += frame.length();
+        }
+        for (Frame frame : overflow) {
+            spilledBytes += frame.length();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package se.mau.chifferchat.server;
+
+import se.mau.chifferchat.common.GroupSummary;
+import se.mau.chifferchat.common.Opcode;
+import se.mau.chifferchat.common.Packet;
+import se.mau.chifferchat.common.WireFormat;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encoded {@code /users} and {@code /groups} responses, kept until what they list
+ * changes. When every client asks for the user list at once, e.g. after a burst of
+ * logins, the list is built and encoded once per wire format and the same
+ * {@link Frame} is queued for everyone.
+ * <p>
+ * Each response is stamped with the version of the data it was built from. Presence
+ * has one version, bumped when anyone logs in or out; group lists have one per user,
+ * bumped when a group they are in is created or changes members. A response built
+ * while its version moved on is simply rebuilt by the next request.
+ */
+public class ResponseCache {
+
+    private final Server server;
+    private final AtomicLong presenceVersion = new AtomicLong();
+    private volatile Response users;
+    private final ConcurrentHashMap<String, Long> groupVersions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Response> groups = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ResponseCache(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * The {@code /users} response for the current online users.
+     */
+    public Frame users(WireFormat format) {
+        Response response = users;
+        if (response == null || response.version != presenceVersion.get()) {
+            response = rebuildUsers();
+        } else {
+            hits.increment();
+        }
+        return response.frame(format);
+    }
+
+    // Requests that miss together wait for one rebuild instead of each doing their own
+    private synchronized Response rebuildUsers() {
+        long version = presenceVersion.get();
+        Response response = users;
+        if (response != null && response.version == version) {
+            hits.increment();
+            return response;
+        }
+        misses.increment();
+        response = new Response(version, Packet.of(Opcode.USERS, server.getOnlineUsers()));
+        users = response;
+        return response;
+    }
+
+    /**
+     * The {@code /groups} response listing a user's groups.
+     */
+    public Frame groups(String username, WireFormat format) {
+        long version = groupVersions.getOrDefault(username, 0L);
+        Response response = groups.get(username);
+        if (response == null || response.version != version) {
+            misses.increment();
+            response = new Response(version, Packet.of(Opcode.GROUPS,
+                    server.getGroupsForUser(username).stream().map(GroupSummary::of).toList()));
+            groups.put(username, response);
+        } else {
+            hits.increment();
+        }
+        return response.frame(format);
+    }
+
+    public void presenceChanged() {
+        presenceVersion.incrementAndGet();
+    }
+
+    /**
+     * Invalidates the group lists of the given users, e.g. every member of a group
+     * whose member count changed.
+     */
+    public void groupsChanged(Collection<String> usernames) {
+        for (String username : usernames) {
+            groupVersions.merge(username, 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Drops a user's cached group list when they log out; it is rebuilt on demand.
+     */
+    public void forget(String username) {
+        groups.remove(username);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    // One response, encoded lazily per wire format. Frames are immutable, so two
+    // threads racing to encode the same format is harmless.
+    private static class Response {
+        final long version;
+        final Packet packet;
+        final Frame[] frames = new Frame[WireFormat.values().length];
+
+        Response(long version, Packet packet) {
+            this.version = version;
+            this.packet = packet;
+        }
+
+        Frame frame(WireFormat format) {
+            Frame frame = frames[format.ordinal()];
+            if (frame == null) {
+                frame = Frame.encode(packet, format);
+                frames[format.ordinal()] = frame;
+            }
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package se.mau.chifferchat.server;
+
+import se.mau.chifferchat.common.Packet;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * Numbers the chat relayed in each conversation 1, 2, 3, ... and makes sure every
+ * recipient sees them in that order. Stamping, logging and fan-out of one packet
+ * happen under a lock for its conversation, striped so unrelated conversations
+ * rarely contend.
+ * <p>
+ * With a {@link MessageLog} the numbering continues from the log after a restart;
+ * without one it starts over. {@link #numbering()} tells clients which of the two
+ * happened, so they know whether the positions they saved still apply.
+ */
+public class Sequencer {
+
+    private static final int STRIPES = 64;
+
+    private final Server server;
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final ConcurrentHashMap<String, AtomicLong> sequences = new ConcurrentHashMap<>();
+    // Numbering that lives only as long as this process
+    private final String processNumbering = UUID.randomUUID().toString();
+
+    public Sequencer(Server server) {
+        this.server = server;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Assigns the next sequence number of a conversation, builds the packet with it,
+     * logs it and hands it to {@code deliver}.
+     *
+     * @return the packet's sequence number
+     */
+    public long relay(String conversation, LongFunction<Packet> stamp, Consumer<Packet> deliver) {
+        ReentrantLock lock = locks[(conversation.hashCode() & 0x7fffffff) % STRIPES];
+        lock.lock();
+        try {
+            long sequence = counter(conversation).incrementAndGet();
+            Packet packet = stamp.apply(sequence);
+            MessageLog messageLog = server.getMessageLog();
+            if (messageLog != null) {
+                messageLog.append(conversation, sequence, packet);
+            }
+            deliver.accept(packet);
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the newest sequence number in a conversation, or 0 if it has none
+     */
+    public long lastSequence(String conversation) {
+        // Looked up without creating a counter, so requests for names that never see a
+        // message don't leave entries behind
+        AtomicLong counter = sequences.get(conversation);
+        if (counter != null) {
+            return counter.get();
+        }
+        MessageLog messageLog = server.getMessageLog();
+        return messageLog != null ? messageLog.lastSequence(conversation) : 0;
+    }
+
+    /**
+     * Identifies the numbering in use: the message log's id, or one that changes on
+     * every restart when there is no log. Sequence numbers from one numbering mean
+     * nothing in another.
+     */
+    public String numbering() {
+        MessageLog messageLog = server.getMessageLog();
+        return messageLog != null ? messageLog.getId() : processNumbering;
+    }
+
+    private AtomicLong counter(String conversation) {
+        return sequences.computeIfAbsent(conversation, k -> {
+            MessageLog messageLog = server.getMessageLog();
+            return new AtomicLong(messageLog != null ? messageLog.lastSequence(k) : 0);
+        });
+    }
+}
@@ -1,33 +1,144 @@
 package se.mau.chifferchat.server;
 
+import se.mau.chifferchat.common.BinaryCodec;
+import se.mau.chifferchat.common.CommandRegistry;
 import se.mau.chifferchat.common.Group;
+import se.mau.chifferchat.common.Opcode;
+import se.mau.chifferchat.common.Packet;
+import se.mau.chifferchat.common.WireFormat;
+import se.mau.chifferchat.crypto.CryptoSuite;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Server implements Runnable {
 
-    private final ArrayList<ConnectionHandler> connections;
+    public static final int DEFAULT_PORT = 5090;
+    public static final int DEFAULT_OUTBOUND_CAPACITY = 1024;
+
+    // username -> connection; lock-free lookups and weakly consistent iteration, so
+    // users can join or leave mid-broadcast
+    private final ConcurrentHashMap<String, ClientConnection> connections = new ConcurrentHashMap<>();
+    private final TransportMode transportMode;
+    private final int eventLoopCount;
+    private final CommandHandler commandHandler;
+    private int outboundCapacity = DEFAULT_OUTBOUND_CAPACITY;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+    // How long a writer may hold frames back to batch them into one socket write
+    private long flushDelayNanos;
+    private final LongAdder socketWrites = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private final Mailboxes mailboxes = new Mailboxes(this);
+    private final Sequencer sequencer = new Sequencer(this);
+    private final ResponseCache responseCache = new ResponseCache(this);
+    // Usernames allowed to run admin commands such as /stats
+    private volatile Set<String> admins = Set.of();
+    // Crypto suites clients may use for their identity keys, see Handshake
+    private volatile List<String> cryptoSuites = CryptoSuite.ids();
+    // Both null unless the server was given a data directory
+    private MessageLog messageLog;
+    private GroupStore groupStore;
     private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
     private ExecutorService threadPool;
+    private NioEventLoop[] eventLoops;
 
-    private final HashMap<String, String> clientPublicKeys = new HashMap<>();
+    private KeyDirectory keyDirectory = new KeyDirectory();
     private final HashMap<String, Group> groups = new HashMap<>(); // groupId -> Group
+    private final MembershipIndex membershipIndex = new MembershipIndex();
 
     private boolean listening = true;
 
     public Server() {
-        connections = new ArrayList<>();
+        this(TransportMode.BLOCKING, Runtime.getRuntime().availableProcessors());
+    }
+
+    public Server(TransportMode transportMode, int eventLoopCount) {
+        this.transportMode = transportMode;
+        this.eventLoopCount = Math.max(1, eventLoopCount);
+        this.commandHandler = new CommandHandler(this);
     }
 
+    /**
+     * Usage: {@code Server [--transport=blocking|virtual|nio] [--event-loops=N]
+     * [--outbound-capacity=N] [--slow-consumer=drop-oldest|disconnect|spill] [--flush-delay-us=N]
+     * [--admins=user1,user2] [--data-dir=PATH] [--mailbox-per-user=N] [--mailbox-total=N]
+     * [--mailbox-per-user-mb=N] [--mailbox-total-mb=N] [--suites=x25519,rsa4096]}
+     */
     public static void main(String[] args) {
-        Server server = new Server();
+        TransportMode mode = TransportMode.BLOCKING;
+        int loops = Runtime.getRuntime().availableProcessors();
+        int capacity = DEFAULT_OUTBOUND_CAPACITY;
+        SlowConsumerPolicy policy = SlowConsumerPolicy.DROP_OLDEST;
+        long flushDelayMicros = 0;
+        Set<String> admins = Set.of();
+        Path dataDir = null;
+        int mailboxPerUser = Mailboxes.DEFAULT_PER_USER_LIMIT;
+        int mailboxTotal = Mailboxes.DEFAULT_TOTAL_LIMIT;
+        long mailboxPerUserBytes = Mailboxes.DEFAULT_PER_USER_BYTES;
+        long mailboxTotalBytes = Mailboxes.DEFAULT_TOTAL_BYTES;
+        List<String> suites = CryptoSuite.ids();
+        for (String arg : args) {
+            if (arg.startsWith("--transport=")) {
+                mode = TransportMode.parse(arg.substring("--transport=".length()));
+            } else if (arg.startsWith("--event-loops=")) {
+                loops = Integer.parseInt(arg.substring("--event-loops=".length()));
+            } else if (arg.startsWith("--outbound-capacity=")) {
+                capacity = Integer.parseInt(arg.substring("--outbound-capacity=".length()));
+            } else if (arg.startsWith("--slow-consumer=")) {
+                policy = SlowConsumerPolicy.parse(arg.substring("--slow-consumer=".length()));
+            } else if (arg.startsWith("--flush-delay-us=")) {
+                flushDelayMicros = Long.parseLong(arg.substring("--flush-delay-us=".length()));
+            } else if (arg.startsWith("--admins=")) {
+                admins = Set.of(arg.substring("--admins=".length()).split(","));
+            } else if (arg.startsWith("--data-dir=")) {
+                dataDir = Path.of(arg.substring("--data-dir=".length()));
+            } else if (arg.startsWith("--mailbox-per-user=")) {
+                mailboxPerUser = Integer.parseInt(arg.substring("--mailbox-per-user=".length()));
+            } else if (arg.startsWith("--mailbox-total=")) {
+                mailboxTotal = Integer.parseInt(arg.substring("--mailbox-total=".length()));
+            } else if (arg.startsWith("--mailbox-per-user-mb=")) {
+                mailboxPerUserBytes = Long.parseLong(arg.substring("--mailbox-per-user-mb=".length())) << 20;
+            } else if (arg.startsWith("--mailbox-total-mb=")) {
+                mailboxTotalBytes = Long.parseLong(arg.substring("--mailbox-total-mb=".length())) << 20;
+            } else if (arg.startsWith("--suites=")) {
+                suites = List.of(arg.substring("--suites=".length()).split(","));
+            }
+        }
+
+        Server server = new Server(mode, loops);
+        server.setOutboundPolicy(capacity, policy);
+        server.setFlushDelay(flushDelayMicros, TimeUnit.MICROSECONDS);
+        server.setAdmins(admins);
+        server.setCryptoSuites(suites);
+        server.getMailboxes().setLimits(mailboxPerUser, mailboxTotal);
+        server.getMailboxes().setByteLimits(mailboxPerUserBytes, mailboxTotalBytes);
+        if (dataDir != null) {
+            try {
+                server.setMessageLog(MessageLog.open(dataDir.resolve("messages")));
+                server.openGroupStore(dataDir.resolve("groups"));
+                server.setKeyDirectory(KeyDirectory.open(dataDir.resolve("keys")));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
         Thread serverThread = new Thread(server);
         serverThread.start();
         serverThread.setName("Server-Thread");
@@ -35,20 +146,56 @@ public class Server implements Runnable {
 
     @Override
     public void run() {
-        try {
-            System.out.println("Server started");
-            System.out.println("Waiting for connections");
+        System.out.println("Server started (" + transportMode + " transport)");
+        System.out.println("Waiting for connections");
+        metrics.registerMBean();
 
-            serverSocket = new ServerSocket(5090);
-            threadPool = Executors.newCachedThreadPool();
+        if (transportMode == TransportMode.NIO) {
+            runNio();
+        } else {
+            runBlocking();
+        }
+    }
+
+    private void runBlocking() {
+        try {
+            serverSocket = new ServerSocket(DEFAULT_PORT);
+            threadPool = newConnectionExecutor();
 
             while (listening) {
                 Socket client = serverSocket.accept();
+                metrics.connectionAccepted();
                 System.out.println("Client " + client.getInetAddress() + " connected");
 
-                ConnectionHandler connectionHandler = new ConnectionHandler(this, client);
-                connections.add(connectionHandler);
-                threadPool.execute(connectionHandler);
+                threadPool.execute(new ConnectionHandler(this, client));
+            }
+
+        } catch (IOException e) {
+            shutDown();
+        }
+    }
+
+    private void runNio() {
+        try {
+            eventLoops = new NioEventLoop[eventLoopCount];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new NioEventLoop(this);
+                eventLoops[i].start("EventLoop-" + i);
+            }
+
+            // The accept thread only hands channels to the loops; all reads and
+            // writes happen on the loop threads
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(DEFAULT_PORT));
+
+            int next = 0;
+            while (listening) {
+                SocketChannel client = serverChannel.accept();
+                metrics.connectionAccepted();
+                System.out.println("Client " + client.getRemoteAddress() + " connected");
+
+                eventLoops[next].register(client);
+                next = (next + 1) % eventLoops.length;
             }
 
         } catch (IOException e) {
@@ -56,24 +203,306 @@ public class Server implements Runnable {
         }
     }
 
-    public synchronized void broadcastMessage(String message, ConnectionHandler sender) {
-        for (ConnectionHandler client : connections) {
-            if (client != sender && client != null) {
-                client.sendMessage(message);
+    private ExecutorService newConnectionExecutor() {
+        if (transportMode == TransportMode.VIRTUAL) {
+            // Looked up reflectively so the project still builds for Java 17
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual thread transport requires JDK 21 or newer", e);
             }
         }
+        return Executors.newCachedThreadPool();
+    }
+
+    public void setOutboundPolicy(int capacity, SlowConsumerPolicy policy) {
+        this.outboundCapacity = capacity;
+        this.slowConsumerPolicy = policy;
+    }
+
+    /**
+     * Upper bound on the latency added by write coalescing. With 0, frames that are
+     * already queued are still written together, but nothing waits for more.
+     */
+    public void setFlushDelay(long delay, TimeUnit unit) {
+        this.flushDelayNanos = unit.toNanos(Math.max(0, delay));
+    }
+
+    public void setAdmins(Set<String> admins) {
+        this.admins = Set.copyOf(admins);
+    }
+
+    public boolean isAdmin(String username) {
+        return username != null && admins.contains(username);
+    }
+
+    /**
+     * The crypto suites offered to clients in the handshake, e.g. only RSA while some
+     * clients can't handle X25519 keys yet.
+     */
+    public void setCryptoSuites(List<String> cryptoSuites) {
+        this.cryptoSuites = List.copyOf(cryptoSuites);
+    }
+
+    public List<String> getCryptoSuites() {
+        return cryptoSuites;
+    }
+
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    /**
+     * Loads the groups kept in a directory and persists every later group change there.
+     */
+    public synchronized void openGroupStore(Path directory) throws IOException {
+        groupStore = GroupStore.open(directory, groups);
+        for (Group group : groups.values()) {
+            for (String member : group.getMembers()) {
+                membershipIndex.addMember(group.getGroupId(), member, connections.get(member));
+            }
+        }
+    }
+
+    /**
+     * @return the message log, or null if messages are not persisted
+     */
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    public void setKeyDirectory(KeyDirectory keyDirectory) {
+        this.keyDirectory = keyDirectory;
+    }
+
+    public KeyDirectory getKeyDirectory() {
+        return keyDirectory;
+    }
+
+    public Sequencer getSequencer() {
+        return sequencer;
+    }
+
+    public Mailboxes getMailboxes() {
+        return mailboxes;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    long getFlushDelayNanos() {
+        return flushDelayNanos;
+    }
+
+    // Called by the transports once per write syscall
+    void recordWrite(long bytes) {
+        socketWrites.increment();
+        bytesWritten.add(bytes);
+    }
+
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundCapacity, slowConsumerPolicy);
+    }
+
+    // Runs a connection's writer on the same kind of thread as its reader
+    void executeConnectionTask(Runnable task) {
+        threadPool.execute(task);
+    }
+
+    CommandHandler getCommandHandler() {
+        return commandHandler;
+    }
+
+    /**
+     * Calls and time spent per command since the server started.
+     */
+    public List<CommandRegistry.CommandStats> getCommandStats() {
+        return commandHandler.getCommands().stats();
+    }
+
+    /**
+     * Registers a logged-in connection under its username. A second login with the
+     * same name replaces the first session.
+     */
+    void addConnection(ClientConnection connection) {
+        String username = connection.getClientUsername();
+        ClientConnection previous;
+        synchronized (this) {
+            previous = connections.put(username, connection);
+            membershipIndex.userOnline(connection);
+        }
+        responseCache.presenceChanged();
+        metrics.connectionOpened();
+        if (previous != null && previous != connection) {
+            System.out.println(username + " logged in again, closing previous session");
+            metrics.connectionClosed();
+            previous.shutdown();
+        }
+        // A connection shut down before it got here has already run removeConnection
+        if (!connection.isOpen()) {
+            removeConnection(connection);
+        }
+    }
+
+    public ClientConnection getConnection(String username) {
+        return connections.get(username);
+    }
+
+    Collection<ClientConnection> getConnections() {
+        return connections.values();
+    }
+
+    /**
+     * Sends a packet to one user if they are online.
+     *
+     * @return false if the user is offline
+     */
+    public boolean sendTo(String username, Packet packet) {
+        ClientConnection connection = connections.get(username);
+        if (connection == null) {
+            return false;
+        }
+        connection.send(packet);
+        metrics.packetsOut(packet.opcode(), 1);
+        return true;
+    }
+
+    /**
+     * Whether a user is online or has published a public key, i.e. could have been
+     * sent an encrypted message at all.
+     */
+    public boolean isKnownUser(String username) {
+        return connections.containsKey(username) || keyDirectory.get(username) != null;
+    }
+
+    /**
+     * Delivers a chat packet to one user, storing it in their mailbox if they are offline.
+     */
+    public void relayTo(String username, Packet packet) {
+        if (!sendTo(username, packet)) {
+            store(username, packet, BinaryCodec.encode(packet).length);
+        }
+    }
+
+    /**
+     * Fans a chat packet out to a group, storing it for members who are offline.
+     */
+    public void relayToGroup(String groupId, Packet packet, ClientConnection sender) {
+        // One snapshot decides both who is sent the packet now and who gets it later,
+        // so a member logging in meanwhile gets it from their mailbox
+        List<ClientConnection> online = new ArrayList<>(membershipIndex.onlineMembers(groupId));
+        fanOut(packet, online, sender);
+        List<String> offline = offlineMembers(groupId, online);
+        if (!offline.isEmpty()) {
+            int size = BinaryCodec.encode(packet).length;
+            for (String member : offline) {
+                store(member, packet, size);
+            }
+        }
+    }
+
+    private synchronized List<String> offlineMembers(String groupId, List<ClientConnection> online) {
+        Group group = groups.get(groupId);
+        // Cheap check first: with every member online there is nobody to store for
+        if (group == null || group.getMemberCount() <= online.size()) {
+            return List.of();
+        }
+        Set<String> onlineNames = new HashSet<>();
+        for (ClientConnection connection : online) {
+            onlineNames.add(connection.getClientUsername());
+        }
+        List<String> offline = new ArrayList<>();
+        for (String member : group.getMembers()) {
+            if (!onlineNames.contains(member)) {
+                offline.add(member);
+            }
+        }
+        return offline;
+    }
+
+    private void store(String username, Packet packet, int size) {
+        // Nobody without a key could have been written to; don't open mailboxes for them
+        if (keyDirectory.get(username) == null) {
+            return;
+        }
+        mailboxes.deposit(username, packet, size);
+        // They may have logged in, and had their mailbox drained, since we looked
+        ClientConnection connection = connections.get(username);
+        if (connection != null) {
+            mailboxes.drain(connection);
+        }
+    }
+
+    public void broadcast(Packet packet, ClientConnection sender) {
+        fanOut(packet, connections.values(), sender);
+    }
+
+    private void fanOut(Packet packet, Collection<ClientConnection> recipients, ClientConnection sender) {
+        long start = System.nanoTime();
+        Frame[] frames = new Frame[WireFormat.values().length];
+        int sent = 0;
+        for (ClientConnection client : recipients) {
+            if (client != sender) {
+                client.sendFrame(frameFor(frames, packet, client.getWireFormat()));
+                sent++;
+            }
+        }
+        metrics.packetsOut(packet.opcode(), sent);
+        metrics.fanOut(sent, System.nanoTime() - start);
+    }
+
+    // Encodes at most once per wire format in use among the recipients
+    private static Frame frameFor(Frame[] frames, Packet packet, WireFormat format) {
+        Frame frame = frames[format.ordinal()];
+        if (frame == null) {
+            frame = Frame.encode(packet, format);
+            frames[format.ordinal()] = frame;
+        }
+        return frame;
     }
 
     private void shutDown() {
+        System.out.println(commandHandler.getCommands().formatStats());
+        metrics.unregisterMBean();
 
         try {
             listening = false;
             if (threadPool != null) threadPool.shutdown();
-            if (!serverSocket.isClosed()) serverSocket.close();
+            if (serverSocket != null && !serverSocket.isClosed()) serverSocket.close();
+            if (serverChannel != null && serverChannel.isOpen()) serverChannel.close();
+            if (eventLoops != null) {
+                for (NioEventLoop eventLoop : eventLoops) {
+                    if (eventLoop != null) eventLoop.shutdown();
+                }
+            }
 
-            for (ConnectionHandler connection : connections) {
-                if (connection != null) {
-                    connection.shutdown();
+            for (ClientConnection connection : connections.values()) {
+                connection.shutdown();
+            }
+            mailboxes.shutdown();
+            if (messageLog != null) messageLog.close();
+            keyDirectory.close();
+            synchronized (this) {
+                if (groupStore != null) {
+                    groupStore.compact(groups.values());
+                    groupStore.close();
                 }
             }
 
@@ -82,17 +511,36 @@ public class Server implements Runnable {
         }
     }
 
-    public void removeConnection(ConnectionHandler connection) {
-        connections.remove(connection);
+    public void removeConnection(ClientConnection connection) {
+        String username = connection.getClientUsername();
+        if (username != null) {
+            synchronized (this) {
+                // Only remove the mapping if it still points at this session
+                if (connections.remove(username, connection)) {
+                    metrics.connectionClosed();
+                    keyDirectory.unwatchAll(username);
+                    responseCache.presenceChanged();
+                    responseCache.forget(username);
+                }
+                membershipIndex.userOffline(connection);
+            }
+        }
     }
 
-    public String getPublicKey(String username) {
-        return clientPublicKeys.get(username);
+    public byte[] getPublicKey(String username) {
+        KeyDirectory.Entry entry = keyDirectory.get(username);
+        return entry != null ? entry.key() : null;
     }
 
     public synchronized Group createGroup(String groupName, String creator) {
         Group group = new Group(groupName, creator);
         groups.put(group.getGroupId(), group);
+        membershipIndex.addMember(group.getGroupId(), creator, connections.get(creator));
+        responseCache.groupsChanged(List.of(creator));
+        if (groupStore != null) {
+            groupStore.groupCreated(group);
+            groupStore.compactIfNeeded(groups.values());
+        }
         System.out.println("Group created: " + groupName + " by " + creator);
         return group;
     }
@@ -101,14 +549,23 @@ public class Server implements Runnable {
         return groups.get(groupId);
     }
 
+    public synchronized int getGroupCount() {
+        return groups.size();
+    }
+
     public synchronized List<Group> getAllGroups() {
         return new ArrayList<>(groups.values());
     }
 
+    public boolean isGroupMember(String groupId, String username) {
+        return membershipIndex.groupsOf(username).contains(groupId);
+    }
+
     public synchronized List<Group> getGroupsForUser(String username) {
         List<Group> userGroups = new ArrayList<>();
-        for (Group group : groups.values()) {
-            if (group.hasMember(username)) {
+        for (String groupId : membershipIndex.groupsOf(username)) {
+            Group group = groups.get(groupId);
+            if (group != null) {
                 userGroups.add(group);
             }
         }
@@ -119,6 +576,13 @@ public class Server implements Runnable {
         Group group = groups.get(groupId);
         if (group != null) {
             group.addMember(username);
+            membershipIndex.addMember(groupId, username, connections.get(username));
+            // Every member's listing shows the new member count
+            responseCache.groupsChanged(group.getMembers());
+            if (groupStore != null) {
+                groupStore.memberAdded(groupId, username);
+                groupStore.compactIfNeeded(groups.values());
+            }
             System.out.println("Added " + username + " to group " + group.getGroupName());
             return true;
         }
@@ -129,37 +593,39 @@ public class Server implements Runnable {
         Group group = groups.get(groupId);
         if (group != null) {
             group.removeMember(username);
+            membershipIndex.removeMember(groupId, username);
+            responseCache.groupsChanged(group.getMembers());
+            responseCache.groupsChanged(List.of(username));
+            if (groupStore != null) {
+                groupStore.memberRemoved(groupId, username);
+                groupStore.compactIfNeeded(groups.values());
+            }
             System.out.println("Removed " + username + " from group " + group.getGroupName());
             return true;
         }
         return false;
     }
 
-    public synchronized void broadcastToGroup(String groupId, String message, ConnectionHandler sender) {
-        Group group = groups.get(groupId);
-        if (group != null) {
-            for (ConnectionHandler client : connections) {
-                if (client != null && client != sender) {
-                    String clientUsername = client.getClientUsername();
-                    if (group.hasMember(clientUsername)) {
-                        client.sendMessage(message);
-                    }
-                }
-            }
-        }
+    // Lock-free; costs O(online members of the group)
+    public void broadcastToGroup(String groupId, Packet packet, ClientConnection sender) {
+        fanOut(packet, membershipIndex.onlineMembers(groupId), sender);
     }
 
     public List<String> getOnlineUsers() {
-        List<String> users = new ArrayList<>();
-        for (ConnectionHandler conn : connections) {
-            if (conn != null && conn.getClientUsername() != null) {
-                users.add(conn.getClientUsername());
-            }
-        }
-        return users;
+        return new ArrayList<>(connections.keySet());
     }
 
-    public void addPublicKey(String username, String publicKey) {
-        clientPublicKeys.put(username, publicKey);
+    /**
+     * Stores a user's key and, if it changed, pushes it to the online users who have
+     * looked it up.
+     */
+    public void addPublicKey(String username, byte[] publicKey) {
+        if (!keyDirectory.put(username, publicKey)) {
+            return;
+        }
+        Packet update = Packet.of(Opcode.KEY, username, publicKey);
+        for (String watcher : keyDirectory.watchersOf(username)) {
+            sendTo(watcher, update);
+        }
     }
 }
@@ -0,0 +1,264 @@
+package se.mau.chifferchat.server;
+
+import se.mau.chifferchat.common.CommandRegistry;
+import se.mau.chifferchat.common.Opcode;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters for one {@link Server}. The hot paths only touch striped
+ * {@link LongAdder}s and {@link Histogram}s; gauges such as outbound backlog and
+ * group counts are computed when a snapshot is read. Exposed over JMX as
+ * {@value #OBJECT_NAME} and to admins through {@code /stats}.
+ */
+public class ServerMetrics {
+
+    public static final String OBJECT_NAME = "se.mau.chifferchat:type=ServerMetrics";
+
+    private static final Opcode[] OPCODES = Opcode.values();
+    // Rates are computed against a sample at least this old
+    private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+    private final Server server;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder[] packetsOut = new LongAdder[OPCODES.length];
+    private final Histogram fanOutSize = new Histogram();
+    private final Histogram fanOutNanos = new Histogram();
+
+    // Previous sample for per-second rates; only touched under the snapshot lock
+    private long sampleNanos = startNanos;
+    private Map<String, Long> sampleTotals = Map.of();
+
+    public ServerMetrics(Server server) {
+        this.server = server;
+        for (int i = 0; i < OPCODES.length; i++) {
+            packetsOut[i] = new LongAdder();
+        }
+    }
+
+    void connectionAccepted() {
+        accepted.increment();
+    }
+
+    void connectionOpened() {
+        opened.increment();
+    }
+
+    void connectionClosed() {
+        closed.increment();
+    }
+
+    void packetsOut(Opcode opcode, long count) {
+        packetsOut[opcode.ordinal()].add(count);
+    }
+
+    void fanOut(int recipients, long nanos) {
+        fanOutSize.record(recipients);
+        fanOutNanos.record(nanos);
+    }
+
+    public Histogram getFanOutSize() {
+        return fanOutSize;
+    }
+
+    public Histogram getFanOutNanos() {
+        return fanOutNanos;
+    }
+
+    /**
+     * Every metric by name. Totals are cumulative; {@code .rate} entries are per second
+     * over the time since the previous sample that is at least a second old.
+     */
+    public synchronized Map<String, Object> snapshot() {
+        long now = System.nanoTime();
+        Map<String, Long> totals = new LinkedHashMap<>();
+        Map<String, Object> values = new LinkedHashMap<>();
+
+        values.put("uptime.seconds", (now - startNanos) / 1_000_000_000L);
+        values.put("connections.open", (long) server.getOnlineUsers().size());
+        totals.put("connections.accepted", accepted.sum());
+        totals.put("connections.opened", opened.sum());
+        totals.put("connections.closed", closed.sum());
+
+        long[] in = new long[OPCODES.length];
+        for (CommandRegistry.CommandStats stats : server.getCommandStats()) {
+            in[stats.opcode().ordinal()] = stats.count();
+        }
+        for (Opcode opcode : OPCODES) {
+            if (opcode.code() < 32) {
+                totals.put("in." + opcode, in[opcode.ordinal()]);
+            } else {
+                totals.put("out." + opcode, packetsOut[opcode.ordinal()].sum());
+            }
+        }
+
+        long elapsed = now - sampleNanos;
+        for (Map.Entry<String, Long> total : totals.entrySet()) {
+            values.put(total.getKey(), total.getValue());
+            if (total.getKey().startsWith("in.") || total.getKey().startsWith("out.")) {
+                long previous = sampleTotals.getOrDefault(total.getKey(), 0L);
+                values.put(total.getKey() + ".rate",
+                        elapsed <= 0 ? 0.0 : (total.getValue() - previous) * 1e9 / elapsed);
+            }
+        }
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            sampleNanos = now;
+            sampleTotals = totals;
+        }
+
+        putHistogram(values, "fanout.size", fanOutSize);
+        putHistogram(values, "fanout.micros", fanOutNanos, 1000);
+
+        long backlogTotal = 0;
+        long backlogMax = 0;
+        for (ClientConnection connection : server.getConnections()) {
+            int backlog = connection.getOutboundBacklog();
+            backlogTotal += backlog;
+            backlogMax = Math.max(backlogMax, backlog);
+        }
+        values.put("backlog.total", backlogTotal);
+        values.put("backlog.max", backlogMax);
+        values.put("groups.count", (long) server.getGroupCount());
+        values.put("keys.count", (long) server.getKeyDirectory().size());
+        values.put("responses.cached.hits", server.getResponseCache().getHitCount());
+        values.put("responses.cached.misses", server.getResponseCache().getMissCount());
+        values.put("socket.writes", server.getSocketWrites());
+        values.put("socket.bytes", server.getBytesWritten());
+
+        Mailboxes mailboxes = server.getMailboxes();
+        values.put("mailbox.depth", (long) mailboxes.getDepth());
+        values.put("mailbox.depth.max", (long) mailboxes.getMaxDepth());
+        values.put("mailbox.bytes", mailboxes.getBytes());
+        values.put("mailbox.users", (long) mailboxes.getMailboxCount());
+        values.put("mailbox.spilled", mailboxes.getSpilledCount());
+        values.put("mailbox.dropped", mailboxes.getDroppedCount());
+        putHistogram(values, "mailbox.drain.size", mailboxes.getDrainSize());
+        putHistogram(values, "mailbox.drain.micros", mailboxes.getDrainNanos(), 1000);
+
+        MessageLog messageLog = server.getMessageLog();
+        if (messageLog != null) {
+            values.put("log.appends", messageLog.getAppendCount());
+            values.put("log.syncs", messageLog.getSyncCount());
+            values.put("log.segments", (long) messageLog.getSegmentCount());
+            putHistogram(values, "log.sync.micros", messageLog.getSyncNanos(), 1000);
+        }
+        return values;
+    }
+
+    private static void putHistogram(Map<String, Object> values, String name, Histogram histogram) {
+        putHistogram(values, name, histogram, 1);
+    }
+
+    private static void putHistogram(Map<String, Object> values, String name, Histogram histogram, long divisor) {
+        values.put(name + ".count", histogram.getCount());
+        values.put(name + ".mean", histogram.getMean() / divisor);
+        values.put(name + ".p50", histogram.getPercentile(50) / divisor);
+        values.put(name + ".p99", histogram.getPercentile(99) / divisor);
+        values.put(name + ".max", histogram.getMax() / divisor);
+    }
+
+    /**
+     * The snapshot as text lines for {@code /stats}, leaving out idle commands.
+     */
+    public List<String> format() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            boolean perCommand = key.startsWith("in.") || key.startsWith("out.");
+            if (perCommand && (value instanceof Long l && l == 0 || value instanceof Double d && d == 0)) {
+                continue;
+            }
+            lines.add(key + " = " + (value instanceof Double d ? String.format("%.1f", d) : value));
+        }
+        return lines;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. Failures are logged, not
+     * thrown: metrics are never a reason not to start.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    public void unregisterMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            // not registered
+        }
+    }
+
+    // Dynamic rather than standard so the attribute set follows the snapshot and the
+    // server package needs no export to java.management
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(ServerMetrics.class.getName(), "ChifferChat server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
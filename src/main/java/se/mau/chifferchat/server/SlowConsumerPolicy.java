@@ -0,0 +1,24 @@
+package se.mau.chifferchat.server;
+
+/**
+ * What an {@link OutboundQueue} does when a client reads slower than the server
+ * produces. Chosen at startup with {@code --slow-consumer=<policy>}.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Discard the oldest queued frame to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Close the connection; the client can reconnect and re-bootstrap.
+     */
+    DISCONNECT,
+    /**
+     * Overflow to a temporary file and replay it in order once the client catches up.
+     */
+    SPILL;
+
+    public static SlowConsumerPolicy parse(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,24 @@
+package se.mau.chifferchat.server;
+
+/**
+ * How the {@link Server} serves client sockets. Chosen at startup with
+ * {@code --transport=<mode>}.
+ */
+public enum TransportMode {
+    /**
+     * One pooled platform thread per connection, blocked in {@code readLine()}.
+     */
+    BLOCKING,
+    /**
+     * One virtual thread per connection (JDK 21+), same blocking code path as {@link #BLOCKING}.
+     */
+    VIRTUAL,
+    /**
+     * Non-blocking channels multiplexed over a small fixed set of {@link NioEventLoop}s.
+     */
+    NIO;
+
+    public static TransportMode parse(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
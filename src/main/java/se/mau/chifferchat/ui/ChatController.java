@@ -12,15 +12,16 @@ import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 import se.mau.chifferchat.client.Client;
+import se.mau.chifferchat.client.MessageStore;
+import se.mau.chifferchat.client.SearchIndex;
+import se.mau.chifferchat.common.Conversation;
 import se.mau.chifferchat.common.Group;
-import se.mau.chifferchat.crypto.CryptoKeyGenerator;
-import se.mau.chifferchat.crypto.Encryption;
 
-import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
 import java.security.PublicKey;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
@@ -32,11 +33,18 @@ import java.util.concurrent.CompletableFuture;
 public class ChatController implements IChatController {
 
     private final DateTimeFormatter clockFormat = DateTimeFormatter.ofPattern("HH:mm");
+    private final DateTimeFormatter searchDateFormat = DateTimeFormatter.ofPattern("d MMM");
     private Client client;
     private static final PseudoClass ACTIVE_PSEUDO_CLASS = PseudoClass.getPseudoClass("active");
-    // Message history storage: key = username or groupId, value = list of message
-    // records
-    private final Map<String, List<MessageRecord>> messageHistory = new HashMap<>();
+    // Messages loaded per page from the local history store
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private MessageStore messageStore;
+    // Record number of the oldest message shown, and the date of the first bubble
+    private long oldestLoaded;
+    private LocalDateTime firstMessageDate = null;
+    // Message search results shown below the matching chats
+    private static final int SEARCH_RESULT_LIMIT = 20;
+    private final List<Node> searchResultItems = new ArrayList<>();
     private boolean isDarkTheme = true;
     private String currentChatUser = null;
     private Group currentChatGroup = null;
@@ -130,6 +138,14 @@ public class ChatController implements IChatController {
         // Load initial chat list
         loadChatList();
 
+        // The client's local history; older pages load when scrolled to the top
+        messageStore = client.getMessageStore();
+        messagesScrollPane.vvalueProperty().addListener((obs, oldVal, newVal) -> {
+            if (newVal.doubleValue() == 0 && oldVal.doubleValue() > 0) {
+                loadOlderMessages();
+            }
+        });
+
         // Setup message field
         messageField.setOnAction(e -> sendMessage());
         Platform.runLater(() -> messageField.requestFocus());
@@ -311,6 +327,59 @@ public class ChatController implements IChatController {
             }
             return false;
         });
+        searchMessages(query.trim());
+    }
+
+    private void searchMessages(String query) {
+        chatListView.getItems().removeAll(searchResultItems);
+        searchResultItems.clear();
+        if (messageStore == null) {
+            return;
+        }
+        messageStore.search(query, SEARCH_RESULT_LIMIT).thenAccept(hits -> Platform.runLater(() -> {
+            // Ignore results for a query the user has since typed past
+            if (!query.equals(searchField.getText().trim())) {
+                return;
+            }
+            chatListView.getItems().removeAll(searchResultItems);
+            searchResultItems.clear();
+            for (SearchIndex.Hit hit : hits) {
+                ChatListItem item = searchResultItem(hit);
+                if (item != null) {
+                    searchResultItems.add(item);
+                }
+            }
+            chatListView.getItems().addAll(searchResultItems);
+        }));
+    }
+
+    private ChatListItem searchResultItem(SearchIndex.Hit hit) {
+        MessageStore.StoredMessage message = hit.message();
+        String preview = (message.sent() ? "You" : message.sender() != null ? message.sender() : "?") + ": "
+                + message.text();
+        String time = timeOf(message).format(searchDateFormat);
+        ChatListItem item;
+        if (Conversation.isGroup(hit.conversation())) {
+            Group group = client.getGroup(Conversation.groupId(hit.conversation()));
+            if (group == null) {
+                return null;
+            }
+            item = new ChatListItem(group.getGroupName(), preview, false, true, 0, time);
+            item.setOnMouseClicked(e -> selectGroup(group));
+        } else if (hit.conversation().equals(Conversation.BROADCAST)) {
+            // Broadcasts have no chat of their own to open
+            item = new ChatListItem("Everyone", preview, false, false, 0, time);
+        } else {
+            String me = client.getUsername();
+            String conversation = Conversation.resolve(hit.conversation(), me);
+            if (conversation == null || !Conversation.isDirect(conversation)) {
+                return null;
+            }
+            String peer = Conversation.peer(conversation, me);
+            item = new ChatListItem(peer, preview, onlineUsers.contains(peer), false, 0, time);
+            item.setOnMouseClicked(e -> selectChat(peer, false));
+        }
+        return item;
     }
 
     // ============ CHAT LIST ============
@@ -356,19 +425,16 @@ public class ChatController implements IChatController {
         lastMessageDate = null;
 
         // Load message history for this user
-        loadMessageHistory(username);
+        loadMessageHistory();
 
         // Close member drawer
         if (isMemberDrawerOpen) {
             toggleMemberDrawer();
         }
 
-        // Request public key
+        // Fetch the public key ahead of the first message
         if (!isGroup) {
-            PublicKey key = client.getPublicKeyForUser(username);
-            if (key == null) {
-                client.sendMessage("/getkey " + username);
-            }
+            client.resolvePublicKey(username);
         }
 
         updateSendControls();
@@ -392,17 +458,16 @@ public class ChatController implements IChatController {
     }
 
     private void sendPrivateMessage(String message) {
-        PublicKey receiverPublicKey = client.getPublicKeyForUser(currentChatUser);
+        String targetUser = currentChatUser;
+        PublicKey receiverPublicKey = client.getPublicKeyForUser(targetUser);
 
         if (receiverPublicKey == null) {
-            client.sendMessage("/getkey " + currentChatUser);
-
-            waitForPublicKey(currentChatUser, 1000)
+            client.resolvePublicKey(targetUser)
                     .thenAcceptAsync(pubKey -> {
                         if (pubKey != null) {
-                            encryptAndSendMessage(message, currentChatUser, pubKey);
+                            encryptAndSendMessage(message, targetUser, pubKey);
                         } else {
-                            appendSystemMessage("Cannot send: No public key for " + currentChatUser);
+                            appendSystemMessage("Cannot send: No public key for " + targetUser);
                         }
                     }, Platform::runLater)
                     .exceptionally(ex -> {
@@ -410,13 +475,12 @@ public class ChatController implements IChatController {
                         return null;
                     });
         } else {
-            encryptAndSendMessage(message, currentChatUser, receiverPublicKey);
+            encryptAndSendMessage(message, targetUser, receiverPublicKey);
         }
 
         // Save and show sent message
-        // Save to history with recipient's username as key
-        messageHistory.computeIfAbsent(currentChatUser, k -> new ArrayList<>())
-                .add(new MessageRecord(message, LocalDateTime.now(), MessageBubble.MessageType.SENT, null));
+        saveMessage(Conversation.withUser(targetUser), message, LocalDateTime.now(),
+                MessageBubble.MessageType.SENT, null);
 
         // Display the message (don't save again since we just did)
         addMessage(message, LocalDateTime.now(), MessageBubble.MessageType.SENT, null, false);
@@ -428,54 +492,53 @@ public class ChatController implements IChatController {
         if (currentChatGroup == null)
             return;
 
-        try {
-            List<String> members = currentChatGroup.getMembers();
-            SecretKey aesKey = CryptoKeyGenerator.generateAESKey();
-            GCMParameterSpec iv = CryptoKeyGenerator.generateIv();
-
-            String encryptedMessage = Encryption.encryptAES(message, aesKey, iv);
-            String ivBase64 = Base64.getEncoder().encodeToString(iv.getIV());
+        Group group = currentChatGroup;
+        List<String> recipients = new ArrayList<>(group.getMembers());
+        recipients.remove(client.getUsername());
+        // Keys we don't have yet are fetched with one request; members whose key
+        // doesn't arrive in time are left out of this message
+        client.resolvePublicKeys(recipients)
+                .thenAcceptAsync(memberKeys -> encryptAndSendGroupMessage(message, group, recipients, memberKeys),
+                        Platform::runLater);
+    }
 
-            StringBuilder keys = new StringBuilder();
+    private void encryptAndSendGroupMessage(String message, Group group, List<String> recipients,
+                                            Map<String, PublicKey> memberKeys) {
+        try {
+            Map<String, PublicKey> keys = new HashMap<>();
             List<String> missingKeys = new ArrayList<>();
-            for (String member : members) {
-                if (member.equals(client.getUsername()))
-                    continue;
-
-                PublicKey memberKey = client.getPublicKeyForUser(member);
+            for (String member : recipients) {
+                PublicKey memberKey = memberKeys.get(member);
                 if (memberKey != null) {
-                    if (!keys.isEmpty())
-                        keys.append("|");
-                    String encKey = Encryption.encryptAESKeyRSA(aesKey, memberKey);
-                    keys.append(member).append(":").append(encKey);
+                    keys.put(member, memberKey);
                 } else {
-                    // request key and mark as missing for this send
-                    client.sendMessage("/getkey " + member);
                     missingKeys.add(member);
                 }
             }
 
             if (keys.isEmpty()) {
-                appendSystemMessage("Cannot send to group yet: waiting for members' public keys ("
+                appendSystemMessage("Cannot send to group: no public keys for ("
                         + String.join(", ", missingKeys) + ")");
                 return;
             }
 
-            String fullMessage = keys + "|" + ivBase64 + ":" + encryptedMessage;
-            client.sendGroupMessage(currentChatGroup.getGroupId(), fullMessage);
+            // Sent under our sender key for the group; only the first message of a
+            // membership epoch carries the key wrapped for each member
+            client.sendGroupMessage(group.getGroupId(), client.sealGroupMessage(group, keys, message));
 
             // Save and show sent message
-            // Save to history with group ID as key
-            messageHistory.computeIfAbsent(currentChatGroup.getGroupId(), k -> new ArrayList<>())
-                    .add(new MessageRecord(message, LocalDateTime.now(), MessageBubble.MessageType.SENT,
-                            client.getUsername()));
+            saveMessage(Conversation.group(group.getGroupId()), message, LocalDateTime.now(),
+                    MessageBubble.MessageType.SENT, client.getUsername());
 
-            // Display the message (don't save again since we just did)
-            addMessage(message, LocalDateTime.now(), MessageBubble.MessageType.SENT, client.getUsername(), false);
+            // Display the message (don't save again since we just did), unless the
+            // user switched chats while keys were being fetched
+            if (currentChatGroup == group) {
+                addMessage(message, LocalDateTime.now(), MessageBubble.MessageType.SENT, client.getUsername(), false);
+            }
 
             if (!missingKeys.isEmpty()) {
                 appendSystemMessage(
-                        "Delivered to available members. Still awaiting keys for: " + String.join(", ", missingKeys));
+                        "Delivered to available members. No public key for: " + String.join(", ", missingKeys));
             }
 
         } catch (Exception e) {
@@ -485,101 +548,35 @@ public class ChatController implements IChatController {
     }
 
     public void receiveMessage(String message) {
-        MessageBubble.MessageType type = MessageBubble.MessageType.RECEIVED;
-        String sender = null;
-        String chatKey = null;
-        boolean shouldDisplay = true;
-
         if (message.startsWith("Welcome ")) {
             return;
         }
-
-        // Check if system message (join/leave notifications)
+        // Join/leave notifications
         if (message.endsWith(" joined the chat!") || message.endsWith(" left the chat!")) {
-            type = MessageBubble.MessageType.SYSTEM;
             updateUserList(message);
-        } else if (!message.contains(": ")) {
-            type = MessageBubble.MessageType.SYSTEM;
-        } else {
-            // Extract sender and message
-            int colonIndex = message.indexOf(": ");
-            if (colonIndex > 0) {
-                sender = message.substring(0, colonIndex);
-                String messageText = message.substring(colonIndex + 2);
-
-                // Determine the chat key (which conversation this belongs to)
-                if (currentChatGroup != null) {
-                    // We're in a group chat, this message belongs to the group
-                    chatKey = currentChatGroup.getGroupId();
-                } else {
-                    // This is a private message - belongs to sender's chat
-                    chatKey = sender;
-                }
-
-                // ALWAYS save the message to history
-                if (type != MessageBubble.MessageType.SYSTEM && chatKey != null) {
-                    messageHistory.computeIfAbsent(chatKey, k -> new ArrayList<>())
-                            .add(new MessageRecord(messageText, LocalDateTime.now(), type, sender));
-                }
-
-                // Only DISPLAY if we're in the correct chat
-                if (currentChatGroup == null && currentChatUser != null && sender != null) {
-                    if (!sender.equals(currentChatUser)) {
-                        shouldDisplay = false; // Don't display, but we already saved it above
-                    }
-                }
-
-                // Update message to just the text for display
-                message = messageText;
-            }
         }
+        addMessage(message, LocalDateTime.now(), MessageBubble.MessageType.SYSTEM, null, false);
+        flashNewMessage();
+    }
 
-        // Only display the message if appropriate
-        if (shouldDisplay) {
-            addMessage(message, LocalDateTime.now(), type, sender, false); // false = don't save again
-            flashNewMessage();
+    // Already stored by the client under its own conversation; only shown here if that
+    // chat is open. Broadcasts have no chat of their own and show in whichever is.
+    public void receiveChat(String conversation, String sender, String text, long time) {
+        if (!conversation.equals(currentConversation()) && !conversation.equals(Conversation.BROADCAST)) {
+            return;
         }
+        LocalDateTime received = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        addMessage(text, received, MessageBubble.MessageType.RECEIVED, sender, false);
+        flashNewMessage();
     }
 
     private void addMessage(String text, LocalDateTime time, MessageBubble.MessageType type, String sender) {
         addMessage(text, time, type, sender, true);
     }
 
-    private CompletableFuture<PublicKey> waitForPublicKey(String username, long maxWaitMs) {
-        return CompletableFuture.supplyAsync(() -> {
-            long startTime = System.currentTimeMillis();
-            int pollInterval = 50;
-
-            while (System.currentTimeMillis() - startTime < maxWaitMs) {
-                PublicKey key = client.getPublicKeyForUser(username);
-                if (key != null) {
-                    return key;
-                }
-
-                try {
-                    Thread.sleep(pollInterval);
-                    pollInterval = Math.min(pollInterval + 25, 200);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return null;
-                }
-            }
-            return null;
-        });
-    }
-
     private void encryptAndSendMessage(String message, String targetUser, PublicKey receiverPublicKey) {
         try {
-            SecretKey aesKey = CryptoKeyGenerator.generateAESKey();
-            GCMParameterSpec iv = CryptoKeyGenerator.generateIv();
-
-            String encryptedMessage = Encryption.encryptAES(message, aesKey, iv);
-            String encryptedAESKey = Encryption.encryptAESKeyRSA(aesKey, receiverPublicKey);
-            String ivBase64 = Base64.getEncoder().encodeToString(iv.getIV());
-
-            String fullMessage = encryptedAESKey + ":" + ivBase64 + ":" + encryptedMessage;
-            client.sendMessage(fullMessage);
-
+            client.sendPrivateMessage(targetUser, client.sealPrivateMessage(targetUser, receiverPublicKey, message));
         } catch (Exception e) {
             System.err.println("Encryption failed: " + e.getMessage());
             Platform.runLater(() -> appendSystemMessage("Failed to encrypt message"));
@@ -592,10 +589,9 @@ public class ChatController implements IChatController {
                             boolean saveToHistory) {
         // Save to history if not a system message and we have an active chat
         if (saveToHistory && type != MessageBubble.MessageType.SYSTEM) {
-            String chatKey = currentChatGroup != null ? currentChatGroup.getGroupId() : currentChatUser;
+            String chatKey = currentConversation();
             if (chatKey != null) {
-                messageHistory.computeIfAbsent(chatKey, k -> new ArrayList<>())
-                        .add(new MessageRecord(text, time, type, sender));
+                saveMessage(chatKey, text, time, type, sender);
             }
         }
 
@@ -607,6 +603,9 @@ public class ChatController implements IChatController {
                 messagesVBox.getChildren().add(divider);
                 lastMessageDate = time;
             }
+            if (firstMessageDate == null) {
+                firstMessageDate = time;
+            }
 
             // Create message bubble
             boolean isGroupChat = currentChatGroup != null;
@@ -622,12 +621,42 @@ public class ChatController implements IChatController {
         addMessage(text, LocalDateTime.now(), MessageBubble.MessageType.SYSTEM, null);
     }
 
-    private void loadMessageHistory(String chatKey) {
-        List<MessageRecord> history = messageHistory.get(chatKey);
-        if (history != null && !history.isEmpty()) {
-            for (MessageRecord record : history) {
+    private String currentConversation() {
+        if (currentChatGroup != null) {
+            return Conversation.group(currentChatGroup.getGroupId());
+        }
+        return currentChatUser != null ? Conversation.withUser(currentChatUser) : null;
+    }
+
+    private void saveMessage(String conversation, String text, LocalDateTime time, MessageBubble.MessageType type,
+                             String sender) {
+        if (messageStore == null) {
+            return;
+        }
+        long millis = time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        messageStore.append(conversation, new MessageStore.StoredMessage(millis, sender, text,
+                type == MessageBubble.MessageType.SENT));
+    }
+
+    private static LocalDateTime timeOf(MessageStore.StoredMessage message) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(message.time()), ZoneId.systemDefault());
+    }
+
+    private static MessageBubble.MessageType typeOf(MessageStore.StoredMessage message) {
+        return message.sent() ? MessageBubble.MessageType.SENT : MessageBubble.MessageType.RECEIVED;
+    }
+
+    // Shows the newest page of the current chat; older pages follow on scroll-up
+    private void loadMessageHistory() {
+        String conversation = currentConversation();
+        firstMessageDate = null;
+        oldestLoaded = 0;
+        long count = messageStore != null && conversation != null ? messageStore.count(conversation) : 0;
+        if (count > 0) {
+            oldestLoaded = Math.max(0, count - HISTORY_PAGE_SIZE);
+            for (MessageStore.StoredMessage record : messageStore.read(conversation, oldestLoaded, HISTORY_PAGE_SIZE)) {
                 // Use saveToHistory=false to avoid re-saving when loading
-                addMessage(record.text, record.time, record.type, record.sender, false);
+                addMessage(record.text(), timeOf(record), typeOf(record), record.sender(), false);
             }
         } else {
             // Show welcome message for new chats
@@ -640,6 +669,48 @@ public class ChatController implements IChatController {
         }
     }
 
+    private void loadOlderMessages() {
+        String conversation = currentConversation();
+        if (messageStore == null || conversation == null || oldestLoaded == 0) {
+            return;
+        }
+        long from = Math.max(0, oldestLoaded - HISTORY_PAGE_SIZE);
+        List<MessageStore.StoredMessage> page = messageStore.read(conversation, from, (int) (oldestLoaded - from));
+        oldestLoaded = from;
+
+        boolean isGroupChat = currentChatGroup != null;
+        List<Node> nodes = new ArrayList<>();
+        LocalDateTime previous = null;
+        for (MessageStore.StoredMessage record : page) {
+            LocalDateTime time = timeOf(record);
+            if (previous == null || !previous.toLocalDate().equals(time.toLocalDate())) {
+                nodes.add(MessageBubble.createTimestampDivider(MessageBubble.formatTimestampDivider(time)));
+            }
+            nodes.add(MessageBubble.createMessageBubble(record.text(), time, typeOf(record), record.sender(),
+                    isGroupChat));
+            previous = time;
+        }
+        // The page ends on the day the shown messages start; keep one divider for it
+        if (previous != null && firstMessageDate != null
+                && previous.toLocalDate().equals(firstMessageDate.toLocalDate())
+                && !messagesVBox.getChildren().isEmpty()) {
+            messagesVBox.getChildren().remove(0);
+        }
+        if (!page.isEmpty()) {
+            firstMessageDate = timeOf(page.get(0));
+        }
+
+        // Keep the message that was at the top in view
+        double oldHeight = messagesVBox.getHeight();
+        messagesVBox.getChildren().addAll(0, nodes);
+        messagesScrollPane.layout();
+        double newHeight = messagesVBox.getHeight();
+        double viewport = messagesScrollPane.getViewportBounds().getHeight();
+        if (newHeight > viewport) {
+            messagesScrollPane.setVvalue((newHeight - oldHeight) / (newHeight - viewport));
+        }
+    }
+
     private void updateUserList(String message) {
         String name = message.replace(" joined the chat!", "").replace(" left the chat!", "");
         // Request updated online users list from server
@@ -815,15 +886,13 @@ public class ChatController implements IChatController {
         lastMessageDate = null;
 
         // Load message history for this group
-        loadMessageHistory(group.getGroupId());
+        loadMessageHistory();
 
         // Request group members and keys
         client.requestGroupMembers(group.getGroupId());
-        for (String member : group.getMembers()) {
-            if (client.getPublicKeyForUser(member) == null) {
-                client.sendMessage("/getkey " + member);
-            }
-        }
+        List<String> others = new ArrayList<>(group.getMembers());
+        others.remove(client.getUsername());
+        client.resolvePublicKeys(others);
 
         updateSendControls();
     }
@@ -839,10 +908,6 @@ public class ChatController implements IChatController {
         return currentChatGroup;
     }
 
-    public void appendGroupMessage(String message) {
-        receiveMessage(message);
-    }
-
     @FXML
     private void onCall() {
         appendSystemMessage("Voice/video call feature coming soon!");
@@ -852,6 +917,8 @@ public class ChatController implements IChatController {
     private void onClearHistory() {
         messagesVBox.getChildren().clear();
         lastMessageDate = null;
+        firstMessageDate = null;
+        oldestLoaded = 0;
         appendSystemMessage("Chat history cleared.");
     }
 
@@ -865,7 +932,7 @@ public class ChatController implements IChatController {
     @FXML
     private void onLogout() {
         if (client != null) {
-            client.sendMessage("/quit");
+            client.quit();
         }
         appendSystemMessage("Logging out...");
         logoutToLogin();
@@ -954,19 +1021,4 @@ public class ChatController implements IChatController {
     }
 
     // ============ INPUT ENABLE/DISABLE ============
-
-    // Inner class to store message data
-    private static class MessageRecord {
-        String text;
-        LocalDateTime time;
-        MessageBubble.MessageType type;
-        String sender;
-
-        MessageRecord(String text, LocalDateTime time, MessageBubble.MessageType type, String sender) {
-            this.text = text;
-            this.time = time;
-            this.type = type;
-            this.sender = sender;
-        }
-    }
 }
@@ -11,10 +11,20 @@ import java.util.List;
 public interface IChatController {
 
     /**
-     * Called when a message is received from the server.
+     * Called when a system message or error is received from the server.
      */
     void receiveMessage(String message);
 
+    /**
+     * Called when a chat message has been received, decrypted and stored. The UI
+     * shows it if its conversation is the one open.
+     *
+     * @param conversation as in {@link se.mau.chifferchat.common.Conversation}, e.g.
+     *                     {@code Conversation.withUser(sender)}
+     * @param time         when it was received, in epoch milliseconds
+     */
+    void receiveChat(String conversation, String sender, String text, long time);
+
     /**
      * Called when connection status changes.
      */
@@ -40,11 +50,6 @@ public interface IChatController {
      */
     Group getCurrentGroup();
 
-    /**
-     * Appends a message to the group chat area.
-     */
-    void appendGroupMessage(String message);
-
     /**
      * Selects the given group in the UI and refreshes related UI elements
      * (header, member count, encryption icon, member list if open).
@@ -10,6 +10,8 @@ import javafx.scene.control.TextField;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import se.mau.chifferchat.client.Client;
+import se.mau.chifferchat.client.IdentityStore;
+import se.mau.chifferchat.crypto.CryptoSuite;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -42,6 +44,11 @@ public class LoginController {
         password.setOnAction(this::onLoginClick);
 
         loadNews();
+        // A first login needs a new identity key pair, RSA-4096 ones take seconds to
+        // generate. The server picks the suite, so have one of each ready.
+        for (CryptoSuite suite : CryptoSuite.values()) {
+            IdentityStore.prepare(suite);
+        }
 
 //        FontIcon githubIcon = new FontIcon("fab-github");
 //        githubIcon.setIconSize(20);
@@ -85,9 +92,12 @@ public class LoginController {
         String user = username.getText();
         String pass = password.getText();
 
+        // Placeholder credentials. The password also seals the identity keys on this
+        // machine (see IdentityStore), which protects nothing while it is the same for all.
         if ((user.equals("Carl") || user.equals("Becca") || user.equals("Calle")) && pass.equals("12345")) {
             welcomeText.setText("Logging in...");
             client.setUsername(user);
+            client.setPassword(pass.toCharArray());
             client.setLoggedIn(true);
             client.connect();
 
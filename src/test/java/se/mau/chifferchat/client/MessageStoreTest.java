@@ -0,0 +1,80 @@
+package se.mau.chifferchat.client;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackPages() throws IOException {
+        try (MessageStore store = MessageStore.open(directory)) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, store.append("alice", message(i)));
+            }
+            store.append("bob", new MessageStore.StoredMessage(5, null, "sent by me", true));
+            assertEquals(10, store.count("alice"));
+            assertEquals(0, store.count("nobody"));
+
+            List<MessageStore.StoredMessage> page = store.read("alice", 4, 3);
+            assertEquals(List.of(message(4), message(5), message(6)), page);
+            assertEquals(2, store.read("alice", 8, 100).size());
+            assertTrue(store.read("alice", 10, 5).isEmpty());
+            assertEquals(List.of(new MessageStore.StoredMessage(5, null, "sent by me", true)),
+                    store.read("bob", 0, 1));
+        }
+        try (MessageStore store = MessageStore.open(directory)) {
+            assertEquals(List.of("alice", "bob"), store.conversations().stream().sorted().toList());
+            assertEquals(message(9), store.read("alice", 9, 1).get(0));
+        }
+    }
+
+    @Test
+    void dropsTornTail() throws IOException {
+        try (MessageStore store = MessageStore.open(directory)) {
+            for (int i = 0; i < 5; i++) {
+                store.append("alice", message(i));
+            }
+        }
+        // A crash between writing a record and its index entry, or halfway through either
+        String name = HexFormat.of().formatHex("alice".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve(name + ".idx"), new byte[]{0, 0, 1}, StandardOpenOption.APPEND);
+        Files.write(directory.resolve(name + ".log"), new byte[]{0, 0, 0, 90, 7, 7}, StandardOpenOption.APPEND);
+        try (MessageStore store = MessageStore.open(directory)) {
+            assertEquals(5, store.count("alice"));
+            assertEquals(5, store.append("alice", message(5)));
+            assertEquals(List.of(message(4), message(5)), store.read("alice", 4, 10));
+        }
+    }
+
+    @Test
+    void recordsAreBoundToTheirConversation() throws IOException {
+        try (MessageStore store = MessageStore.open(directory)) {
+            byte[] plain = "hello".getBytes(StandardCharsets.UTF_8);
+            byte[] sealed = store.seal("alice", plain);
+            assertArrayEquals(plain, store.unseal("alice", sealed));
+            assertThrows(RuntimeException.class, () -> store.unseal("bob", sealed));
+            sealed[sealed.length - 1] ^= 1;
+            assertThrows(RuntimeException.class, () -> store.unseal("alice", sealed));
+        }
+    }
+
+    private static MessageStore.StoredMessage message(int i) {
+        return new MessageStore.StoredMessage(1000 + i, "alice", "message " + i + " åäö", false);
+    }
+}
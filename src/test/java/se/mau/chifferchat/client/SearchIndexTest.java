@@ -0,0 +1,81 @@
+package se.mau.chifferchat.client;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void tokenizeLowercasesAndDropsShortAndRepeatedWords() {
+        assertEquals(List.of("hello", "world", "åsa", "42"), SearchIndex.tokenize("Hello, WORLD! a Åsa 42 hello"));
+        assertEquals(List.of(), SearchIndex.tokenize(" - x ! "));
+        assertEquals(List.of("a".repeat(32)), SearchIndex.tokenize("A".repeat(40)));
+    }
+
+    @Test
+    void intersectKeepsCommonValuesInOrder() {
+        assertArrayEquals(new long[]{3, 9}, SearchIndex.intersect(new long[]{1, 3, 5, 9}, new long[]{2, 3, 9, 11}));
+        assertArrayEquals(new long[0], SearchIndex.intersect(new long[]{1, 2}, new long[]{3, 4}));
+        assertArrayEquals(new long[0], SearchIndex.intersect(new long[0], new long[]{3}));
+    }
+
+    @Test
+    void searchMatchesAllWordsAndLastAsPrefix() throws Exception {
+        try (MessageStore store = MessageStore.open(directory)) {
+            store.append("alice", message("the quick brown fox", 1));
+            store.append("alice", message("a quick lunch", 2));
+            store.append("bob", message("quickly now", 3));
+
+            assertEquals(3, store.search("quick", 10).get().size());
+            List<SearchIndex.Hit> hits = store.search("quick bro", 10).get();
+            assertEquals(1, hits.size());
+            assertEquals("alice", hits.get(0).conversation());
+            assertEquals(0, hits.get(0).record());
+            // Newest first
+            assertEquals("bob", store.search("qui", 10).get().get(0).conversation());
+            assertTrue(store.search("lunch fox", 10).get().isEmpty());
+        }
+    }
+
+    @Test
+    void forgetsRecordsTheStoreLost() throws Exception {
+        try (MessageStore store = MessageStore.open(directory)) {
+            for (int i = 0; i < 5; i++) {
+                store.append("alice", message("word" + i, i));
+            }
+        }
+        // The saved snapshot still covers records 3 and 4, which a crash took from the store
+        String name = HexFormat.of().formatHex("alice".getBytes(StandardCharsets.UTF_8));
+        try (FileChannel index = FileChannel.open(directory.resolve(name + ".idx"), StandardOpenOption.WRITE)) {
+            index.truncate(3 * 8);
+        }
+        try (MessageStore store = MessageStore.open(directory)) {
+            assertEquals(3, store.count("alice"));
+            store.append("alice", message("replacement", 9));
+            assertEquals(1, store.search("word2", 10).get().size());
+            assertTrue(store.search("word3", 10).get().isEmpty());
+            assertTrue(store.search("word4", 10).get().isEmpty());
+            List<SearchIndex.Hit> hits = store.search("replacement", 10).get();
+            assertEquals(1, hits.size());
+            assertEquals(3, hits.get(0).record());
+        }
+    }
+
+    private static MessageStore.StoredMessage message(String text, long time) {
+        return new MessageStore.StoredMessage(time, "alice", text, false);
+    }
+}
@@ -0,0 +1,74 @@
+package se.mau.chifferchat.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SeenSequencesTest {
+
+    @Test
+    void marksEachNumberOnce() {
+        SeenSequences seen = new SeenSequences();
+        assertTrue(seen.mark("a", 1));
+        assertFalse(seen.mark("a", 1));
+        assertTrue(seen.mark("b", 1));
+        assertEquals(1, seen.floor("a"));
+        assertEquals(0, seen.floor("missing"));
+        assertFalse(seen.contains("missing"));
+    }
+
+    @Test
+    void floorWaitsForGapsToFill() {
+        SeenSequences seen = new SeenSequences();
+        assertTrue(seen.mark("a", 3));
+        assertTrue(seen.mark("a", 5));
+        assertEquals(0, seen.floor("a"));
+        assertTrue(seen.mark("a", 1));
+        assertEquals(1, seen.floor("a"));
+        assertTrue(seen.mark("a", 2));
+        assertEquals(3, seen.floor("a"));
+        assertFalse(seen.mark("a", 5));
+        assertTrue(seen.mark("a", 4));
+        assertEquals(5, seen.floor("a"));
+        assertFalse(seen.mark("a", 2));
+    }
+
+    @Test
+    void jumpBeyondWindowGivesUpOldestGaps() {
+        SeenSequences seen = new SeenSequences();
+        seen.mark("a", 1);
+        seen.mark("a", 3);
+        long far = 1 + SeenSequences.WINDOW + 10;
+        assertTrue(seen.mark("a", far));
+        assertEquals(far - SeenSequences.WINDOW, seen.floor("a"));
+        assertFalse(seen.mark("a", 2));
+        assertFalse(seen.mark("a", far));
+        assertTrue(seen.mark("a", far - 1));
+    }
+
+    @Test
+    void positionsRestoreToTheSameState() {
+        SeenSequences seen = new SeenSequences();
+        for (long sequence : new long[]{1, 2, 4, 7}) {
+            seen.mark("a", sequence);
+        }
+        seen.mark("b", 9);
+        Map<String, SeenSequences.Position> positions = seen.positions();
+        assertEquals(2, positions.get("a").floor());
+        assertArrayEquals(new long[]{4, 7}, positions.get("a").seen());
+
+        SeenSequences restored = new SeenSequences();
+        restored.restore(positions);
+        assertEquals(2, restored.size());
+        assertEquals(2, restored.floor("a"));
+        assertFalse(restored.mark("a", 4));
+        assertFalse(restored.mark("b", 9));
+        assertTrue(restored.mark("a", 3));
+        assertEquals(4, restored.floor("a"));
+    }
+}
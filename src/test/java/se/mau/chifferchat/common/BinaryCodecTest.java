@@ -0,0 +1,130 @@
+package se.mau.chifferchat.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryCodecTest {
+
+    static final List<CipherPayload> PAYLOADS = List.of(
+            CipherPayload.opaque("plain text, åäö 😀"),
+            CipherPayload.privateMessage(new byte[]{1, 2, 3}, new byte[12], new byte[]{4, 5}),
+            CipherPayload.groupMessage(List.of(new CipherPayload.WrappedKey("alice", new byte[]{6}),
+                    new CipherPayload.WrappedKey("bob", new byte[]{7, 8})), new byte[12], new byte[]{9}),
+            CipherPayload.session(new byte[16], List.of(new CipherPayload.WrappedKey("carl", new byte[]{10})),
+                    new byte[12], new byte[0]));
+
+    @Test
+    void everyOpcodeRoundTrips() throws IOException {
+        for (Opcode opcode : Opcode.values()) {
+            for (CipherPayload payload : PAYLOADS) {
+                Packet packet = sample(opcode, payload);
+                byte[] frame = BinaryCodec.encode(packet);
+                assertEquals(frame.length - 4, ByteBuffer.wrap(frame).getInt(), "length prefix of " + opcode);
+                Packet decoded = decodeFrame(frame);
+                assertEquals(opcode, decoded.opcode());
+                assertArrayEquals(frame, BinaryCodec.encode(decoded), "re-encoded " + opcode);
+            }
+        }
+    }
+
+    @Test
+    void payloadFieldsSurvive() throws IOException {
+        CipherPayload payload = PAYLOADS.get(2);
+        Packet decoded = decodeFrame(BinaryCodec.encode(Packet.of(Opcode.GROUP_MSG, "g1", payload)));
+        CipherPayload read = decoded.payload(1);
+        assertEquals(CipherPayload.Format.RSA_AES_GCM, read.getFormat());
+        assertArrayEquals(new byte[]{7, 8}, read.keyFor("bob"));
+        assertArrayEquals(payload.getCiphertext(), read.getCiphertext());
+        assertEquals("g1", decoded.string(0));
+    }
+
+    @Test
+    void payloadLengthMatchesEncoding() {
+        for (CipherPayload payload : PAYLOADS) {
+            int encoded = BinaryCodec.encode(Packet.of(Opcode.MESSAGE, payload)).length - 4 - 2;
+            assertEquals(encoded, BinaryCodec.payloadLength(payload), payload.toString());
+        }
+        assertEquals("😀åa".getBytes(StandardCharsets.UTF_8).length, BinaryCodec.utf8Length("😀åa"));
+    }
+
+    @Test
+    void rejectsTruncatedFrame() {
+        byte[] frame = BinaryCodec.encode(Packet.of(Opcode.KEY, "alice", new byte[32]));
+        ByteBuffer body = ByteBuffer.wrap(frame, 4, frame.length - 10).slice();
+        assertThrows(ProtocolException.class, () -> BinaryCodec.decode(body));
+    }
+
+    @Test
+    void rejectsTrailingBytes() {
+        byte[] frame = BinaryCodec.encode(Packet.of(Opcode.SYSTEM, "hi"));
+        byte[] longer = Arrays.copyOfRange(frame, 4, frame.length + 1);
+        assertThrows(ProtocolException.class, () -> BinaryCodec.decode(ByteBuffer.wrap(longer)));
+    }
+
+    @Test
+    void rejectsUnknownVersionAndOpcode() {
+        assertThrows(ProtocolException.class, () -> BinaryCodec.decode(ByteBuffer.wrap(new byte[]{9, 32})));
+        assertThrows(ProtocolException.class,
+                () -> BinaryCodec.decode(ByteBuffer.wrap(new byte[]{BinaryCodec.VERSION, (byte) 200})));
+    }
+
+    @Test
+    void rejectsLengthLargerThanWhatIsLeft() {
+        // A string claiming a gigabyte must fail before anything is allocated
+        ByteBuffer body = ByteBuffer.allocate(8).put((byte) BinaryCodec.VERSION).put((byte) Opcode.SYSTEM.code())
+                .putInt(1 << 30).flip();
+        assertThrows(ProtocolException.class, () -> BinaryCodec.decode(body));
+    }
+
+    @Test
+    void readerReadsConsecutiveFramesUntilEnd() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(BinaryCodec.encode(Packet.of(Opcode.SYSTEM, "one")));
+        stream.write(BinaryCodec.encode(Packet.of(Opcode.HISTORY_END, "g:1", 5L)));
+        PacketReader reader = BinaryCodec.reader(new ByteArrayInputStream(stream.toByteArray()));
+        assertEquals("one", reader.read().string(0));
+        assertEquals(5L, reader.read().longValue(1));
+        assertNull(reader.read());
+    }
+
+    @Test
+    void readerRejectsOversizedLength() {
+        byte[] prefix = ByteBuffer.allocate(4).putInt(BinaryCodec.MAX_FRAME_SIZE + 1).array();
+        PacketReader reader = BinaryCodec.reader(new ByteArrayInputStream(prefix));
+        assertThrows(ProtocolException.class, reader::read);
+    }
+
+    private static Packet decodeFrame(byte[] frame) throws ProtocolException {
+        return BinaryCodec.decode(ByteBuffer.wrap(frame, 4, frame.length - 4).slice());
+    }
+
+    static Packet sample(Opcode opcode, CipherPayload payload) {
+        Opcode.FieldType[] types = opcode.fields();
+        Object[] fields = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            fields[i] = switch (types[i]) {
+                case STRING -> "field" + i;
+                case BYTES -> new byte[]{(byte) i, 42};
+                case STRING_LIST -> List.of("a", "b" + i);
+                case GROUP_LIST -> List.of(new GroupSummary("id", "name", 3, 7L), new GroupSummary("x", "y", 0, 0L));
+                case PAYLOAD -> payload;
+                case LONG -> 42L + i;
+                case KEY_LIST -> List.of(new UserKey("alice", new byte[]{1, 2}));
+            };
+        }
+        return Packet.of(opcode, fields);
+    }
+}
@@ -0,0 +1,65 @@
+package se.mau.chifferchat.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HandshakeTest {
+
+    @Test
+    void parsesRequestWithSuites() {
+        Handshake handshake = Handshake.parse(Handshake.request("alice", List.of("x25519", "rsa4096")));
+        assertEquals("alice", handshake.username());
+        assertEquals(WireFormat.BINARY, handshake.format());
+        assertTrue(handshake.negotiated());
+        assertEquals(List.of("x25519", "rsa4096"), handshake.suites());
+        assertEquals("rsa4096", handshake.chooseSuite(List.of("rsa4096")));
+        assertNull(handshake.chooseSuite(List.of("other")));
+    }
+
+    @Test
+    void parsesRequestWithoutSuites() {
+        Handshake handshake = Handshake.parse(Handshake.request("bob", List.of()));
+        assertEquals("bob", handshake.username());
+        assertEquals(List.of(), handshake.suites());
+    }
+
+    @Test
+    void plainUsernameStaysOnText() {
+        Handshake handshake = Handshake.parse("carl");
+        assertEquals("carl", handshake.username());
+        assertEquals(WireFormat.TEXT, handshake.format());
+        assertFalse(handshake.negotiated());
+    }
+
+    @Test
+    void unknownProtocolFallsBackToText() {
+        assertEquals(WireFormat.TEXT, Handshake.parse("/hello bin9 dave").format());
+    }
+
+    @Test
+    void replyCarriesSuiteAndNumbering() {
+        Handshake handshake = Handshake.parse(Handshake.request("alice", List.of("x25519")));
+        String reply = handshake.reply("x25519", "log-1");
+        assertEquals(WireFormat.BINARY, Handshake.parseReply(reply));
+        assertEquals("x25519", Handshake.parseSuite(reply));
+        assertEquals("log-1", Handshake.parseNumbering(reply));
+
+        String noSuite = handshake.reply(null, "log-1");
+        assertNull(Handshake.parseSuite(noSuite));
+        assertEquals("log-1", Handshake.parseNumbering(noSuite));
+    }
+
+    @Test
+    void otherLinesAreNotReplies() {
+        assertNull(Handshake.parseReply("Welcome alice!"));
+        assertNull(Handshake.parseReply(null));
+        assertNull(Handshake.parseSuite("Welcome alice!"));
+        assertNull(Handshake.parseNumbering("/hello bin1 x25519"));
+    }
+}
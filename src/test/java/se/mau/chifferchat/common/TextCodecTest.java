@@ -0,0 +1,87 @@
+package se.mau.chifferchat.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TextCodecTest {
+
+    private static final Set<Opcode> CLIENT = EnumSet.of(Opcode.PUBKEY, Opcode.GET_KEY, Opcode.CREATE_GROUP,
+            Opcode.LIST_GROUPS, Opcode.ADD_TO_GROUP, Opcode.GROUP_MEMBERS, Opcode.GET_USERS, Opcode.GROUP_MSG,
+            Opcode.QUIT, Opcode.STATS, Opcode.PRIVATE_MSG, Opcode.HISTORY, Opcode.GET_KEYS, Opcode.MESSAGE);
+    // Sequence numbers only travel in binary frames
+    private static final Set<Opcode> WITHOUT_SEQUENCE = EnumSet.of(Opcode.GROUP_CHAT, Opcode.CHAT);
+
+    @Test
+    void clientLinesRoundTrip() {
+        for (Opcode opcode : CLIENT) {
+            for (CipherPayload payload : BinaryCodecTest.PAYLOADS) {
+                String line = TextCodec.encode(BinaryCodecTest.sample(opcode, payload));
+                Packet decoded = TextCodec.decodeClientLine(line);
+                assertEquals(opcode, decoded.opcode(), line);
+                assertEquals(line, TextCodec.encode(decoded));
+            }
+        }
+    }
+
+    @Test
+    void serverLinesRoundTrip() {
+        for (Opcode opcode : Opcode.values()) {
+            if (CLIENT.contains(opcode) || opcode == Opcode.DIRECT_CHAT) {
+                continue;
+            }
+            Packet packet = BinaryCodecTest.sample(opcode, BinaryCodecTest.PAYLOADS.get(1));
+            String line = TextCodec.encode(packet);
+            Packet decoded = TextCodec.decodeServerLine(line);
+            assertEquals(opcode, decoded.opcode(), line);
+            assertEquals(line, TextCodec.encode(decoded));
+            if (!WITHOUT_SEQUENCE.contains(opcode)) {
+                assertArrayEquals(BinaryCodec.encode(packet), BinaryCodec.encode(decoded), line);
+            }
+        }
+    }
+
+    @Test
+    void payloadTextFormsRoundTrip() {
+        for (CipherPayload payload : BinaryCodecTest.PAYLOADS) {
+            CipherPayload parsed = CipherPayload.parseText(payload.toText());
+            assertEquals(payload.getFormat(), parsed.getFormat());
+            assertEquals(payload.toText(), parsed.toText());
+        }
+    }
+
+    @Test
+    void malformedCommandsAreRejected() {
+        assertNull(TextCodec.decodeClientLine("/addtogroup onlyone"));
+        assertNull(TextCodec.decodeClientLine("/getkey"));
+        assertNull(TextCodec.decodeServerLine("/historyend g:1 notanumber"));
+        // Anything else that isn't a command is a chat message
+        assertEquals(Opcode.MESSAGE, TextCodec.decodeClientLine("just text").opcode());
+    }
+
+    @Test
+    void readLineStopsAtNewline() throws IOException {
+        InputStream in = new ByteArrayInputStream("/hello bin1 alice\r\nrest".getBytes(StandardCharsets.UTF_8));
+        assertEquals("/hello bin1 alice", TextCodec.readLine(in));
+        assertEquals('r', in.read());
+    }
+
+    @Test
+    void readerSkipsRejectedLines() throws IOException {
+        PacketReader reader = TextCodec.reader(new BufferedReader(new StringReader("/getkey\n/getusers\n")),
+                TextCodec::decodeClientLine);
+        assertEquals(Opcode.GET_USERS, reader.read().opcode());
+        assertNull(reader.read());
+    }
+}
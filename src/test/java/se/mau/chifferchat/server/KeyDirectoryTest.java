@@ -0,0 +1,94 @@
+package se.mau.chifferchat.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyDirectoryTest {
+
+    private static final byte[] FIRST = {1, 2, 3};
+    private static final byte[] SECOND = {4, 5, 6};
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void putReportsOnlyChanges() {
+        KeyDirectory keys = new KeyDirectory();
+        assertTrue(keys.put("alice", FIRST));
+        assertFalse(keys.put("alice", FIRST.clone()));
+        assertTrue(keys.put("alice", SECOND));
+        assertArrayEquals(SECOND, keys.get("alice").key());
+        assertNull(keys.get("bob"));
+        assertEquals(1, keys.size());
+    }
+
+    @Test
+    void fingerprintIndexFollowsRotation() {
+        KeyDirectory keys = new KeyDirectory();
+        keys.put("alice", FIRST);
+        String old = KeyDirectory.fingerprint(FIRST);
+        assertSame(keys.get("alice"), keys.getByFingerprint(old));
+
+        keys.put("alice", SECOND);
+        assertNull(keys.getByFingerprint(old));
+        assertEquals("alice", keys.getByFingerprint(KeyDirectory.fingerprint(SECOND)).username());
+    }
+
+    @Test
+    void watchersAreForgottenOnUnwatch() {
+        KeyDirectory keys = new KeyDirectory();
+        keys.watch("bob", "alice");
+        keys.watch("carl", "alice");
+        keys.watch("alice", "alice");
+        assertEquals(2, keys.watchersOf("alice").size());
+        keys.unwatchAll("bob");
+        assertEquals(List.of("carl"), List.copyOf(keys.watchersOf("alice")));
+    }
+
+    @Test
+    void keysSurviveReopen() throws IOException {
+        try (KeyDirectory keys = KeyDirectory.open(directory)) {
+            keys.put("alice", FIRST);
+            keys.put("bob", FIRST);
+            keys.put("alice", SECOND);
+        }
+        try (KeyDirectory keys = KeyDirectory.open(directory)) {
+            assertEquals(2, keys.size());
+            assertArrayEquals(SECOND, keys.get("alice").key());
+            assertEquals("bob", keys.getByFingerprint(KeyDirectory.fingerprint(FIRST)).username());
+        }
+    }
+
+    @Test
+    void tornTailIsDropped() throws IOException {
+        try (KeyDirectory keys = KeyDirectory.open(directory)) {
+            keys.put("alice", FIRST);
+            keys.put("bob", SECOND);
+        }
+        Path log = directory.resolve("keys.log");
+        long intact = Files.size(log);
+        Files.write(log, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+        try (KeyDirectory keys = KeyDirectory.open(directory)) {
+            assertEquals(2, keys.size());
+            assertArrayEquals(SECOND, keys.get("bob").key());
+            assertEquals(intact, Files.size(log));
+            keys.put("carl", FIRST);
+        }
+        try (KeyDirectory keys = KeyDirectory.open(directory)) {
+            assertEquals(3, keys.size());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package se.mau.chifferchat.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.mau.chifferchat.common.BinaryCodec;
+import se.mau.chifferchat.common.CipherPayload;
+import se.mau.chifferchat.common.Opcode;
+import se.mau.chifferchat.common.Packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLogTest {
+
+    // The smallest segment the log accepts, so a few megabytes of records roll it
+    private static final int SEGMENT_SIZE = BinaryCodec.MAX_FRAME_SIZE + 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsOneConversationInOrder() throws IOException {
+        try (MessageLog log = open()) {
+            for (long i = 1; i <= 100; i++) {
+                log.append("a", i, chat("a" + i, i));
+                if (i % 10 == 0) {
+                    log.append("b", i / 10, chat("b" + i / 10, i / 10));
+                }
+            }
+            List<MessageLog.LogRecord> page = log.read("a", 40, 25);
+            assertEquals(25, page.size());
+            assertEquals(41, page.get(0).sequence());
+            assertEquals(65, page.get(24).sequence());
+            assertEquals("a41", page.get(0).packet().payload(1).getText());
+
+            assertEquals(List.of(9L, 10L), log.read("b", 8, 100).stream().map(MessageLog.LogRecord::sequence)
+                    .toList());
+            assertEquals(0, log.read("b", 10, 100).size());
+            assertEquals(0, log.read("missing", 0, 100).size());
+            assertEquals(100, log.lastSequence("a"));
+            assertEquals(0, log.lastSequence("missing"));
+        }
+    }
+
+    @Test
+    void rejectsSequenceThatDoesNotIncrease() throws IOException {
+        try (MessageLog log = open()) {
+            log.append("a", 5, chat("x", 5));
+            assertThrows(IllegalArgumentException.class, () -> log.append("a", 5, chat("y", 5)));
+        }
+    }
+
+    @Test
+    void reopensAcrossRolledSegments() throws IOException {
+        String id;
+        String text = "x".repeat(2000);
+        try (MessageLog log = open()) {
+            id = log.getId();
+            for (long i = 1; i <= 5000; i++) {
+                log.append(i % 2 == 0 ? "even" : "odd", (i + 1) / 2, chat(text, i));
+            }
+            assertTrue(log.getSegmentCount() >= 3, "segments: " + log.getSegmentCount());
+        }
+        try (MessageLog log = open()) {
+            assertEquals(id, log.getId());
+            assertEquals(2500, log.lastSequence("even"));
+            assertEquals(2500, log.lastSequence("odd"));
+            assertEquals(2500, readAll(log, "odd").size());
+            log.append("odd", 2501, chat("after", 2501));
+            assertEquals("after", log.read("odd", 2500, 10).get(0).packet().payload(1).getText());
+        }
+    }
+
+    @Test
+    void recoversFromTornTail() throws IOException {
+        try (MessageLog log = open()) {
+            for (long i = 1; i <= 10; i++) {
+                log.append("a", i, chat("m" + i, i));
+            }
+        }
+        // Corrupt the body of the last record, as a crash halfway through writing it would
+        Path segment = lastSegment();
+        int last = lastRecordOffset(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF}), last + 8 + 20);
+        }
+        try (MessageLog log = open()) {
+            assertEquals(9, log.lastSequence("a"));
+            assertEquals(9, readAll(log, "a").size());
+            log.append("a", 10, chat("again", 10));
+            assertEquals("again", log.read("a", 9, 10).get(0).packet().payload(1).getText());
+        }
+        try (MessageLog log = open()) {
+            assertEquals(10, readAll(log, "a").size());
+        }
+    }
+
+    @Test
+    void ignoresRecordsLeftBehindAfterTheEnd() throws IOException {
+        try (MessageLog log = open()) {
+            for (long i = 1; i <= 5; i++) {
+                log.append("a", i, chat("m" + i, i));
+            }
+        }
+        // Cut the log back to three records, leaving the old fourth and fifth in place
+        // after a torn header, as if the file had been restored from an older copy
+        Path segment = lastSegment();
+        int third = recordOffsets(segment).get(2);
+        int fourth = third + 8 + readInt(segment, third);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 7), fourth);
+        }
+        try (MessageLog log = open()) {
+            assertEquals(3, log.lastSequence("a"));
+            log.append("a", 4, chat("new", 4));
+        }
+        try (MessageLog log = open()) {
+            List<MessageLog.LogRecord> records = readAll(log, "a");
+            assertEquals(4, records.size());
+            assertEquals("new", records.get(3).packet().payload(1).getText());
+        }
+    }
+
+    private MessageLog open() throws IOException {
+        return MessageLog.open(directory, SEGMENT_SIZE, 1000);
+    }
+
+    private static Packet chat(String text, long sequence) {
+        return Packet.of(Opcode.CHAT, "alice", CipherPayload.opaque(text), sequence);
+    }
+
+    private static List<MessageLog.LogRecord> readAll(MessageLog log, String conversation) {
+        List<MessageLog.LogRecord> all = new ArrayList<>();
+        List<MessageLog.LogRecord> page;
+        long after = 0;
+        while (!(page = log.read(conversation, after, 500)).isEmpty()) {
+            all.addAll(page);
+            after = page.get(page.size() - 1).sequence();
+        }
+        return all;
+    }
+
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().reduce((a, b) -> b)
+                    .orElseThrow();
+        }
+    }
+
+    // Record headers: int length, int crc, then the body; a zero length ends the segment
+    private static List<Integer> recordOffsets(Path segment) throws IOException {
+        List<Integer> offsets = new ArrayList<>();
+        int position = 0;
+        int length;
+        while ((length = readInt(segment, position)) > 0) {
+            offsets.add(position);
+            position += 8 + length;
+        }
+        return offsets;
+    }
+
+    private static int lastRecordOffset(Path segment) throws IOException {
+        List<Integer> offsets = recordOffsets(segment);
+        return offsets.get(offsets.size() - 1);
+    }
+
+    private static int readInt(Path segment, int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            channel.read(buffer, position);
+            return buffer.getInt(0);
+        }
+    }
+}